@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+  /*
+   * Finds which Arduino core source files a build needs so that files the sketch never uses aren't compiled.
+   *
+   * The index is built by scanning the source of each core file for the names it defines at file scope (names
+   * followed by "(", "=", ";", "[" or ",", such as functions and global objects, the class names that qualify
+   * methods defined outside a class, and names exported by .global in assembly files) and the names it uses
+   * (every identifier).  Starting from the names used in the user's code, plus names the compiler references
+   * implicitly, such as main(), each core file that defines a used name is needed, and the names it uses are then
+   * followed in turn.  Using a class also uses its base classes, as found in the class declarations in the core
+   * headers.  Names declared with __attribute__((weak)) in any core header or file are weak references, which
+   * don't cause a file to be linked, so they aren't followed.
+   *
+   * The scan doesn't expand macros, or follow calls made by inline code in headers, so it can miss a file.  If the
+   * link then fails, getUndefined() extracts the names from the linker's "undefined reference" errors so they can
+   * be resolved to the files that define them.
+   */
+class CoreResolver {
+  private static final Set<String>        IMPLICIT = new HashSet<>(Arrays.asList(
+                                            "main", "__cxa_pure_virtual", "__cxa_deleted_virtual"));
+  private static final Set<String>        KEYWORDS = new HashSet<>(Arrays.asList(
+                                            "if", "while", "for", "switch", "return", "sizeof", "alignof", "decltype",
+                                            "defined", "catch", "static_assert", "__attribute__", "asm", "__asm__",
+                                            "void", "int", "char", "unsigned", "signed", "long", "short", "float",
+                                            "double", "bool", "const", "volatile", "static", "inline", "extern",
+                                            "noexcept", "throw", "new", "delete", "case", "do", "else", "typeof",
+                                            "__typeof__", "operator", "namespace", "class", "struct", "union", "enum"));
+  private static final Set<String>        ACCESS = new HashSet<>(Arrays.asList(
+                                            "public", "protected", "private", "virtual"));
+  private static final Pattern            DIRECTIVE = Pattern.compile("#\\s*(if|ifdef|ifndef|elif|else|endif)\\b");
+  private static final Pattern            UNDEFINED = Pattern.compile("undefined reference to [`']([^']*)'");
+  private final Map<String, Set<String>>  definedBy = new HashMap<>();  // Name -> files that define it
+  private final Map<String, Set<String>>  uses = new HashMap<>();       // File -> names it uses
+  private final Set<String>               weak = new HashSet<>();       // Names only referenced weakly
+  private final Map<String, Set<String>>  bases = new HashMap<>();      // Class -> its base classes
+  private final List<String>              files = new ArrayList<>();
+
+  /**
+   * Index core source files
+   * @param coreFiles core files
+   * @param incDirs   directories holding core headers
+   */
+  CoreResolver (List<MegaTinyCompiler.CompFile> coreFiles, List<String> incDirs) throws IOException {
+    for (MegaTinyCompiler.CompFile compFile : coreFiles) {
+      List<String> tokens = tokenize(new String(Files.readAllBytes(Paths.get(compFile.srcDir + compFile.file))));
+      Set<String> defs = new HashSet<>();
+      if (compFile.file.toLowerCase().endsWith(".s")) {
+        scanAsm(tokens, defs);
+      } else {
+        scan(tokens, defs, weak, bases);
+      }
+      for (String name : defs) {
+        definedBy.computeIfAbsent(name, k -> new HashSet<>()).add(compFile.file);
+      }
+      uses.put(compFile.file, getNames(tokens));
+      files.add(compFile.file);
+    }
+    for (String dir : incDirs) {
+      try (Stream<Path> walk = Files.walk(Paths.get(dir))) {
+        for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
+          Path item = it.next();
+          if (item.getFileName().toString().toLowerCase().endsWith(".h")) {
+            scan(tokenize(new String(Files.readAllBytes(item))), new HashSet<>(), weak, bases);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the core files needed to resolve a set of names, and the names those files use.  The names passed in
+   * are always resolved, as the caller's references are strong, but weak references made by core files are not.
+   * @param names names used by the user's code, or reported as undefined by the linker
+   * @return Set of needed core files (relative to their source directory), in the order they were indexed
+   */
+  Set<String> resolve (Collection<String> names) {
+    Set<String> needed = new HashSet<>();
+    Set<String> seen = new HashSet<>();
+    Set<String> strong = new HashSet<>(names);
+    strong.addAll(IMPLICIT);
+    Deque<String> queue = new ArrayDeque<>(strong);
+    while (!queue.isEmpty()) {
+      String name = queue.pop();
+      if (seen.add(name) && (strong.contains(name) || !weak.contains(name))) {
+        queue.addAll(bases.getOrDefault(name, Collections.emptySet()));
+        for (String file : definedBy.getOrDefault(name, Collections.emptySet())) {
+          if (needed.add(file)) {
+            queue.addAll(uses.get(file));
+          }
+        }
+      }
+    }
+    Set<String> out = new LinkedHashSet<>();
+    for (String file : files) {
+      if (needed.contains(file)) {
+        out.add(file);
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Get the names used in a source file
+   * @param src source code
+   * @return Set of identifiers
+   */
+  static Set<String> getNames (String src) {
+    return getNames(tokenize(src));
+  }
+
+  /**
+   * Get the names mentioned in the linker's "undefined reference" errors (such as "Stream::timedRead()", or
+   * "vtable for Stream")
+   * @param linkOutput output from linker
+   * @return Set of identifiers (empty if the link didn't fail because of undefined references)
+   */
+  static Set<String> getUndefined (String linkOutput) {
+    Set<String> names = new HashSet<>();
+    Matcher mat = UNDEFINED.matcher(linkOutput);
+    while (mat.find()) {
+      names.addAll(getNames(mat.group(1)));
+    }
+    return names;
+  }
+
+  private static Set<String> getNames (List<String> tokens) {
+    Set<String> names = new HashSet<>();
+    for (String token : tokens) {
+      if (isName(token)) {
+        names.add(token);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Scan tokens for names defined at file scope (namespace and extern "C" blocks don't count as a scope), names
+   * declared weak (but not aliased) and the base classes of each class.  A method defined outside its class, such
+   * as "Print::println(...)", defines the class name, "Print", rather than "println", as methods are only used
+   * through an object, or subclass whose type names the class.
+   */
+  @SuppressWarnings("unchecked")
+  private static void scan (List<String> tokens, Set<String> defs, Set<String> weakDecls, Map<String, Set<String>> bases) {
+    Deque<Boolean> blocks = new ArrayDeque<>();     // true if block is namespace, or extern "C"
+    int depth = 0;                                  // Depth of braces, not counting transparent blocks
+    int parens = 0;
+    int stmtStart = 0;
+    String declName = null;                         // First name followed by "(" in current statement
+    boolean initList = false;                       // In constructor's member initializer list
+    Deque<Object[]> conds = new ArrayDeque<>();     // Scope at each open #if
+    for (int ii = 0; ii < tokens.size(); ii++) {
+      String tok = tokens.get(ii);
+      String next = getToken(tokens, ii + 1);
+      switch (tok) {
+      case "#if":
+        conds.push(new Object[] {depth, parens, new ArrayDeque<>(blocks)});
+        break;
+      case "#else":
+        // Each branch of a conditional starts in the same scope (branches may open the same block differently)
+        if (!conds.isEmpty()) {
+          Object[] scope = conds.peek();
+          depth = (Integer) scope[0];
+          parens = (Integer) scope[1];
+          blocks = new ArrayDeque<>((Deque<Boolean>) scope[2]);
+        }
+        break;
+      case "#endif":
+        conds.poll();
+        break;
+      case "(":
+        parens++;
+        break;
+      case ")":
+        parens = Math.max(0, parens - 1);
+        break;
+      case "{":
+        String first = tokens.get(stmtStart);
+        boolean transparent = first.equals("namespace") || (first.equals("extern") && ii == stmtStart + 2);
+        blocks.push(transparent);
+        depth += transparent ? 0 : 1;
+        stmtStart = ii + 1;
+        declName = null;
+        initList = false;
+        break;
+      case "}":
+        if (!blocks.isEmpty() && !blocks.pop()) {
+          depth--;
+        }
+        stmtStart = ii + 1;
+        declName = null;
+        break;
+      case ";":
+        if (depth == 0 && declName != null) {
+          List<String> stmt = tokens.subList(stmtStart, ii);
+          if (stmt.contains("weak") && !stmt.contains("alias")) {
+            weakDecls.add(declName);
+          }
+        }
+        stmtStart = ii + 1;
+        declName = null;
+        initList = false;
+        break;
+      case ":":
+        initList |= depth == 0 && parens == 0 && getToken(tokens, ii - 1).equals(")");
+        break;
+      case "class":
+      case "struct":
+        // Record base classes, such as "class UartClass : public HardwareSerial {"
+        if (isName(next) && getToken(tokens, ii + 2).equals(":") && !getToken(tokens, ii + 3).equals(":")) {
+          Set<String> names = bases.computeIfAbsent(next, k -> new HashSet<>());
+          for (int jj = ii + 3; jj < tokens.size() && !"{;".contains(tokens.get(jj)); jj++) {
+            if (isName(tokens.get(jj)) && !ACCESS.contains(tokens.get(jj))) {
+              names.add(tokens.get(jj));
+            }
+          }
+        }
+        break;
+      default:
+        if (depth == 0 && parens == 0 && !initList && isName(tok) && isExternal(tokens.subList(stmtStart, ii))) {
+          boolean isQualifier = next.equals(":") && getToken(tokens, ii + 2).equals(":");
+          boolean isMember = getToken(tokens, ii - 1).equals(":") && getToken(tokens, ii - 2).equals(":");
+          if (isQualifier) {
+            // Define class name, unless this qualifies another qualifier (ie, a namespace)
+            boolean isClass = !(getToken(tokens, ii + 4).equals(":") && getToken(tokens, ii + 5).equals(":"));
+            if (isClass && !KEYWORDS.contains(tok) && !isMacroName(tok)) {
+              defs.add(tok);
+            }
+          } else if (!isMember) {
+            boolean isOperator = getToken(tokens, ii - 1).equals("operator");
+            boolean isDecl = !next.isEmpty() && "(=;[,".contains(next);
+            if (isOperator || (isDecl && !KEYWORDS.contains(tok) && !isMacroName(tok))) {
+              defs.add(tok);
+              if (declName == null && next.equals("(")) {
+                declName = tok;
+              }
+            }
+          }
+        }
+        break;
+      }
+    }
+  }
+
+  /**
+   * Scan an assembly file for names exported using .global (or .globl)
+   */
+  private static void scanAsm (List<String> tokens, Set<String> defs) {
+    for (int ii = 0; ii + 2 < tokens.size(); ii++) {
+      if (tokens.get(ii).equals(".") && tokens.get(ii + 1).startsWith("glob") && isName(tokens.get(ii + 2))) {
+        defs.add(tokens.get(ii + 2));
+      }
+    }
+  }
+
+  private static String getToken (List<String> tokens, int idx) {
+    return idx >= 0 && idx < tokens.size() ? tokens.get(idx) : "";
+  }
+
+  private static boolean isExternal (List<String> stmt) {
+    // Names in typedefs and static declarations can't be referenced from another file
+    return !stmt.contains("typedef") && !stmt.contains("static");
+  }
+
+  private static boolean isName (String tok) {
+    return !tok.isEmpty() && (Character.isLetter(tok.charAt(0)) || tok.charAt(0) == '_');
+  }
+
+  private static boolean isMacroName (String tok) {
+    // Names like ISR, or SIGNAL are macros, not definitions
+    return tok.equals(tok.toUpperCase());
+  }
+
+  /**
+   * Split source code into identifiers, numbers and single character punctuation, dropping comments, preprocessor
+   * lines and the contents of string and character literals (each literal becomes a single '"' token).  Lines
+   * with #if, #ifdef, or #ifndef become "#if", #elif and #else become "#else" and #endif becomes "#endif".
+   */
+  private static List<String> tokenize (String src) {
+    List<String> tokens = new ArrayList<>();
+    int len = src.length();
+    boolean lineStart = true;
+    for (int ii = 0; ii < len; ii++) {
+      char cc = src.charAt(ii);
+      char nc = ii + 1 < len ? src.charAt(ii + 1) : 0;
+      if (cc == '\n') {
+        lineStart = true;
+      } else if (Character.isWhitespace(cc)) {
+        continue;
+      } else if (cc == '#' && lineStart) {
+        // Skip preprocessor line, including continuation lines, but keep a token for conditionals
+        Matcher mat = DIRECTIVE.matcher(src).region(ii, len);
+        if (mat.lookingAt()) {
+          tokens.add(mat.group(1).startsWith("el") ? "#else" : mat.group(1).startsWith("end") ? "#endif" : "#if");
+        }
+        while (ii < len && !(src.charAt(ii) == '\n' && !isContinued(src, ii))) {
+          ii++;
+        }
+        ii--;
+      } else if (cc == '/' && nc == '/') {
+        while (ii < len && src.charAt(ii) != '\n') {
+          ii++;
+        }
+        ii--;
+      } else if (cc == '/' && nc == '*') {
+        int end = src.indexOf("*/", ii + 2);
+        ii = end < 0 ? len : end + 1;
+      } else if (cc == '"' || cc == '\'') {
+        for (ii++; ii < len && src.charAt(ii) != cc; ii++) {
+          if (src.charAt(ii) == '\\') {
+            ii++;
+          }
+        }
+        tokens.add("\"");
+        lineStart = false;
+      } else if (Character.isLetterOrDigit(cc) || cc == '_') {
+        int start = ii;
+        while (ii + 1 < len && (Character.isLetterOrDigit(src.charAt(ii + 1)) || src.charAt(ii + 1) == '_')) {
+          ii++;
+        }
+        tokens.add(src.substring(start, ii + 1));
+        lineStart = false;
+      } else {
+        tokens.add(Character.toString(cc));
+        lineStart = false;
+      }
+    }
+    return tokens;
+  }
+
+  private static boolean isContinued (String src, int eol) {
+    int ii = eol - 1;
+    ii = ii >= 0 && src.charAt(ii) == '\r' ? ii - 1 : ii;
+    return ii >= 0 && src.charAt(ii) == '\\';
+  }
+}
@@ -0,0 +1,105 @@
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+  /*
+   * Background registry of connected programmers (HID devices listed in "programmers.props") and serial ports
+   *
+   * Enumerating HID devices and serial ports can take a noticeable amount of time on machines with many USB
+   * devices, so rather than scan each time the Programmer or Serial Port menu opens, a daemon thread scans once
+   * at startup and then rescans every SCAN_INTERVAL ms, which picks up devices as they're plugged in, or removed.
+   * The menus are built from the latest snapshot, which is replaced (never modified) after each scan.  Callers
+   * only wait if the first scan hasn't finished yet.  Scans hold HID_LOCK so they can't overlap EDBG opening, or
+   * shutting down the shared HidServices instance.
+   */
+class DeviceRegistry extends Thread {
+  static final Object                             HID_LOCK = new Object();
+  private static final long                       SCAN_INTERVAL = 2000;   // Time between rescans (ms)
+  private static final long                       FIRST_SCAN_WAIT = 5000; // Max wait for first scan (ms)
+  private static DeviceRegistry                   registry;
+  private final JSSCPort                          port;
+  private final CountDownLatch                    firstScan = new CountDownLatch(1);
+  private volatile List<Programmer.DebugDevice>   debuggers = Collections.emptyList();
+  private volatile List<String>                   portNames = Collections.emptyList();
+  private boolean                                 hidFailed;
+
+  private DeviceRegistry (JSSCPort port) {
+    super("Device scan");
+    this.port = port;
+    setDaemon(true);
+  }
+
+  /**
+   * Start the background scan (called once at startup)
+   * @param port JSSCPort used to enumerate serial ports
+   */
+  static synchronized void start (JSSCPort port) {
+    if (registry == null) {
+      registry = new DeviceRegistry(port);
+      registry.start();
+    }
+  }
+
+  /**
+   * Get the programmers found by the latest scan (scans now if the registry isn't running)
+   * @return unmodifiable List of connected programmers
+   */
+  static List<Programmer.DebugDevice> getDebuggers () {
+    DeviceRegistry reg = getRegistry();
+    return reg != null ? reg.debuggers : Programmer.getDebuggers();
+  }
+
+  /**
+   * Get the serial ports found by the latest scan (scans now if the registry isn't running)
+   * @param port JSSCPort used to enumerate serial ports if the registry isn't running
+   * @return unmodifiable List of serial port names
+   */
+  static List<String> getPortNames (JSSCPort port) {
+    DeviceRegistry reg = getRegistry();
+    return reg != null ? reg.portNames : port.scanPortNames();
+  }
+
+  private static DeviceRegistry getRegistry () {
+    DeviceRegistry reg;
+    synchronized (DeviceRegistry.class) {
+      reg = registry;
+    }
+    if (reg != null) {
+      try {
+        reg.firstScan.await(FIRST_SCAN_WAIT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return reg;
+  }
+
+  public void run () {
+    while (true) {
+      scan();
+      firstScan.countDown();
+      try {
+        Thread.sleep(SCAN_INTERVAL);
+      } catch (InterruptedException ex) {
+        return;
+      }
+    }
+  }
+
+  private void scan () {
+    if (!hidFailed) {
+      try {
+        debuggers = Collections.unmodifiableList(Programmer.getDebuggers());
+      } catch (Throwable ex) {
+        // Hidapi did not initialise (such as com/sun/jna/Structure$ByReference), so stop trying
+        hidFailed = true;
+        ex.printStackTrace();
+      }
+    }
+    try {
+      portNames = Collections.unmodifiableList(port.scanPortNames());
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+}
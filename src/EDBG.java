@@ -8,6 +8,10 @@ import org.hid4java.jna.HidApi;
 import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.prefs.Preferences;
 
   /*
     Peripheral Memory Map (Note: 32 General Purpose Working Registers in separate I/O space)
@@ -127,27 +131,36 @@ import java.util.*;
      */
 
 public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */ {
-  private static final int                    MaxPkt = 60;
   public  static final int                    UPDIClock = 500;      // UPDI CLock (in kHz)
+  private static final int[]                  UPDI_CLOCKS = {750, 900, 1200, 1500, 1800};  // Steps tried by tuneClock()
   private static final boolean                DEBUG_PRINT = false;  // If true, show debug messages
   private static final boolean                DEBUG_DECODE = false; // If true, show decoded messages
   private static final boolean                DEBUG_IO = false;     // If true, show sendCmd() cmd and response data
   private static final Map<Integer,String>    memTypes = new HashMap<>();
+  private static final Map<Integer,String>    cmdNames = new ConcurrentHashMap<>(); // Key is (handler << 8) | cmd ID
   private final HidServices                   hidServices;
   public HidDevice                            device;
-  private final boolean                       program;
+  private boolean                             program;
   private final MegaTinyIDE.ChipInfo          chip;
-  private final double                        targetVcc;
-  private int                                 sequence;
+  private double                              targetVcc;
+  private final String                        pidVid;
+  private EDBGFramer                          framer;
   private boolean                             sessionActive;
   private boolean                             physicalActive;
   private boolean                             debugActive;
   private boolean                             programActive;
   private OcdListener                         ocdListener;
-  private final MegaTinyIDE                   ide;
+  private final Host                          ide;
   private final JSSCPort                      jsscPort;
-  private final ByteArrayOutputStream         rxOut = new ByteArrayOutputStream();
+  private UPDITrace                           updiTrace;            // Decodes UPDI bytes, if "decode_updi" enabled
   private Utility.ProgressBar                 progress;
+  private final Map<Integer,Integer>          blockSizes = new HashMap<>();
+  private final Queue<Event>                  events = new ConcurrentLinkedQueue<>();
+  private EventReader                         eventReader;
+  private volatile Thread                     eventWaiter;
+  private int                                 updiClock = UPDIClock;  // UPDI clock in use (in kHz)
+  private boolean                             autoClock;            // "updi_autoclock" setting when opened
+  private String                              toolName = "EDBG";    // Programmer model used by LinkStats
   //                                                                ( prog/debug)
   private static final int MEMTYPE_SRAM                   = 0x20;   // (--/RW) - Absolute SRAM address
   private static final int MEMTYPE_EEPROM                 = 0x22;   // (RW/RW) - Absolute EEPROM address
@@ -165,6 +178,20 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
   private static final int MEMTYPE_USER_SIGNATURE         = 0xC5;   // (RW/RW) - Absolute user signature address USERROW
   private static final int MEMTYPE_CALIBRATION_SIGNATURE  = 0xC6;   // (RO/RO) - Absolute calibration signature address
 
+  // Fixed cap on memory read/write block size.  A 512 byte write plus its frame and command headers fits in the
+  // 15 AVR_CMD fragments of a 64 byte HID report, and tools with a smaller AVR command buffer are handled by
+  // reduceBlockSize() halving the block size when the tool rejects a block
+  private static final int MAX_AVR_PAYLOAD                = 512;
+  private static final int RATE_REPORT_MIN                = 256;    // Report transfer rate for transfers >= this size
+  private static final int EVT_AVR8_BREAK                 = 0x40;
+  private static final int EVT_AVR8_IDR                   = 0x41;
+  private static final long BREAK_TIMEOUT                 = 1000;   // breakWait() timeout since last event (in ms)
+  private static final int IDR_BATCH_MAX                  = 256;    // Flush IDR text to OcdListener at this size
+  private static final long IDLE_TIMEOUT                  = 30000;  // Close warm session after this long unused (ms)
+  private static final int CLOCK_TEST_SIZE                = 64;     // Size of block read twice by testClock()
+  private static EDBG                         warm;                 // Idle session kept open by close()
+  private static Timer                        idleTimer;
+
   private static final int STACK_POINTER                  = 0x003D; // Stack Pointer offset
   private static final int STATUS_REGISTER                = 0x003F; // Status Register (flags) offset
 
@@ -172,18 +199,64 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
     memTypes.put(0x20, "SRAM");
     memTypes.put(0x22, "EEPROM");
     memTypes.put(0xB0, "FLASH_PAGE");
+    memTypes.put(0xB1, "EEPROM_PAGE");
     memTypes.put(0xB2, "FUSES");
     memTypes.put(0xB4, "SIGNATURE");
     memTypes.put(0xB8, "REGFILE");
+    memTypes.put(0xC5, "USERROW");
+    cmdNames.put(0x0000, "DISCOVERY_QUERY");
+    cmdNames.put(0x0100, "HOUSEKEEPING_QUERY");
+    cmdNames.put(0x0101, "HOUSEKEEPING_SET");
+    cmdNames.put(0x0102, "HOUSEKEEPING_GET");
+    cmdNames.put(0x0110, "START_SESSION");
+    cmdNames.put(0x0111, "END_SESSION");
+    cmdNames.put(0x1200, "AVR8_QUERY");
+    cmdNames.put(0x1201, "AVR8_SET");
+    cmdNames.put(0x1202, "AVR8_GET");
+    cmdNames.put(0x1210, "AVR8_ACTIVATE_PHYSICAL");
+    cmdNames.put(0x1211, "AVR8_DEACTIVATE_PHYSICAL");
+    cmdNames.put(0x1212, "AVR8_GET_ID");
+    cmdNames.put(0x1213, "AVR8_ATTACH");
+    cmdNames.put(0x1214, "AVR8_DETACH");
+    cmdNames.put(0x1215, "AVR8_PROG_MODE_ENTER");
+    cmdNames.put(0x1216, "AVR8_PROG_MODE_LEAVE");
+    cmdNames.put(0x1220, "AVR8_ERASE");
+    cmdNames.put(0x1221, "AVR8_MEMORY_READ");
+    cmdNames.put(0x1222, "AVR8_MEMORY_READ_MASKED");
+    cmdNames.put(0x1223, "AVR8_MEMORY_WRITE");
+    cmdNames.put(0x1224, "AVR8_CRC");
+    cmdNames.put(0x1230, "AVR8_RESET");
+    cmdNames.put(0x1231, "AVR8_STOP");
+    cmdNames.put(0x1232, "AVR8_RUN");
+    cmdNames.put(0x1233, "AVR8_RUN_TO_ADDRESS");
+    cmdNames.put(0x1234, "AVR8_STEP");
+    cmdNames.put(0x1235, "AVR8_PC_READ");
+    cmdNames.put(0x1236, "AVR8_PC_WRITE");
+    cmdNames.put(0x1240, "AVR8_HW_BREAK_SET");
+    cmdNames.put(0x1241, "AVR8_HW_BREAK_CLEAR");
+    cmdNames.put(0x1243, "AVR8_SW_BREAK_SET");
+    cmdNames.put(0x1244, "AVR8_SW_BREAK_CLEAR");
+    cmdNames.put(0x1245, "AVR8_SW_BREAK_CLEAR_ALL");
+    cmdNames.put(0x2000, "EDBG_QUERY");
+    cmdNames.put(0x2001, "EDBG_SET");
+    cmdNames.put(0x2002, "EDBG_GET");
+  }
+
+  private static String getCmdName (int handler, int cmdId) {
+    int key = (handler << 8) | cmdId;
+    String name = cmdNames.get(key);
+    return name != null ? name : cmdNames.computeIfAbsent(key, k -> String.format("0x%02X/0x%02X", handler, cmdId));
   }
 
   // Progress Bar methods
 
   public void setProgressMessage (String msg) {
-    if (progress == null) {
-      progress = new Utility.ProgressBar(ide, "");
+    if (progress == null && ide.getFrame() != null) {
+      progress = new Utility.ProgressBar(ide.getFrame(), "");
+    }
+    if (progress != null) {
+      progress.setMessage(msg);
     }
-    progress.setMessage(msg);
   }
 
   public void setProgressValue (int value) {
@@ -217,82 +290,178 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
   }
 
   private void printUpdi (String type) {
-    if (ide.decodeUpdi()) {
-      ide.infoPrintln(type);
-      // Allow time for final bytes to trickle into rxOut buffer
-      try {
-        Thread.sleep(100);
-      } catch (InterruptedException ex) {
-        // do nothing
+    if (updiTrace != null) {
+      // Decoded asynchronously by UPDITrace, so don't wait for bytes to arrive
+      updiTrace.mark(type);
+    }
+  }
+
+  /*
+   *  Session pooling
+   *
+   *  Rather than tearing down the HID connection and UPDI configuration, close() leaves program, or debug mode,
+   *  deactivates the physical interface and keeps the session as a warm, idle session.  The next call to
+   *  getInstance() for the same programmer and target reuses it after a health check (HID device still open
+   *  and target Vcc still present), so it only needs to reactivate the physical interface and enter the
+   *  requested function.  The idle session is closed after IDLE_TIMEOUT, if it fails its health check, or
+   *  when closeIdle() is called, such as when a different programmer is selected, or on exit.  A session is
+   *  only reused if the "updi_autoclock" setting is unchanged, and a session opened with "decode_updi" enabled
+   *  is never kept, as it holds the decoder's serial port open and its UPDITrace thread running.
+   *  Note: the physical interface can't be kept active as leaving program mode deactivates it.
+   */
+
+  /**
+   * Get an EDBG instance, reusing the warm, idle session if it's for the same programmer and target
+   * @param frame   Host (MegaTinyIDE instance)
+   * @param port    JSSCPort used to decode UPDI, if enabled
+   * @param pidVid  VID-PID of programmer
+   * @param program if true, enter program mode, else attach debugger
+   * @return EDBG instance
+   */
+  static EDBG getInstance (Host frame, JSSCPort port, String pidVid, boolean program) throws EDBGException {
+    EDBG edbg;
+    synchronized (EDBG.class) {
+      edbg = warm;
+      warm = null;
+      if (idleTimer != null) {
+        idleTimer.cancel();
+        idleTimer = null;
       }
-      byte[] temp = rxOut.toByteArray();
-      //Utility.printHex(temp);
-      String updi = UPDIDecoder.decode(temp);
-      ide.infoPrintln(updi);
-      rxOut.reset();
+    }
+    if (edbg != null) {
+      if (edbg.pidVid.equals(pidVid) && edbg.chip == MegaTinyIDE.chipTypes.get(frame.getAvrChip()) &&
+          !frame.decodeUpdi() && edbg.autoClock == useAutoClock(frame) && edbg.isHealthy()) {
+        try {
+          edbg.activatePhysical(true);
+          edbg.enterFunction(program);
+          edbg.debugPrint("getInstance() reused warm session");
+          return edbg;
+        } catch (EDBGException ex) {
+          ex.printStackTrace();
+        }
+      }
+      edbg.shutdown();
+    }
+    return new EDBG(frame, port, pidVid, program);
+  }
+
+  /**
+   * Close the warm, idle session, if any
+   */
+  static void closeIdle () {
+    EDBG edbg;
+    synchronized (EDBG.class) {
+      edbg = warm;
+      warm = null;
+      if (idleTimer != null) {
+        idleTimer.cancel();
+        idleTimer = null;
+      }
+    }
+    if (edbg != null) {
+      edbg.shutdown();
     }
   }
 
-  EDBG (MegaTinyIDE frame, JSSCPort port, String pidVid, boolean program) throws EDBGException {
+  /**
+   * Check if the UPDI clock should be tuned (see "UPDI clock tuning", below)
+   * Note: can't change the UPDI clock while decoding UPDI, as the decoder's baud rate is fixed at UPDIClock
+   */
+  private static boolean useAutoClock (Host frame) {
+    return frame.getPrefs().getBoolean("updi_autoclock", false) && !frame.decodeUpdi();
+  }
+
+  private boolean isHealthy () {
+    try {
+      return (device == null || device.isOpen()) && (targetVcc = getAnalogVoltageRef()) >= 1.0;
+    } catch (Exception ex) {
+      return false;
+    }
+  }
+
+  private void enterFunction (boolean program) throws EDBGException {
+    this.program = program;
+    if (program) {
+      setFunctionProgram();
+      enterProgramMode();
+    } else {
+      setFunctionDebug();
+      attachDebugger(true);
+    }
+  }
+
+  EDBG (Host frame, JSSCPort port, String pidVid, boolean program) throws EDBGException {
     this.ide = frame;
     this.jsscPort = port;
-    if (frame.decodeUpdi()) {
+    this.pidVid = pidVid;
+    if (frame.decodeUpdi() && jsscPort != null) {
       // If used, setup UPDI decoder before setting up debugger
-      if (jsscPort != null) {
-        jsscPort.setParameters(EDBG.UPDIClock * 1000, 8, 2, SerialPort.PARITY_EVEN);
-        try {
-          jsscPort.open(new JSSCPort.RXEvent() {
-            @Override
-            public void rxChar (byte cc) {
-              rxOut.write(cc);
-            }
-            @Override
-            public void breakEvent () {
-              frame.infoPrintln("BREAK");
-            }
-          });
-        } catch (SerialPortException ex) {
-          ex.printStackTrace();
-        }
+      jsscPort.setParameters(EDBG.UPDIClock * 1000, 8, 2, SerialPort.PARITY_EVEN);
+      try {
+        jsscPort.openBuffered();
+        updiTrace = new UPDITrace(frame, jsscPort);
+        updiTrace.start();
+      } catch (SerialPortException ex) {
+        ex.printStackTrace();
       }
     }
     DebugDevice prog = getProgrammer(pidVid);
     if (prog != null) {
       String target = frame.getAvrChip();
+      toolName = prog.name;
          this.chip = MegaTinyIDE.chipTypes.get(target);
-      hidServices = HidManager.getHidServices();
       this.program = program;
-      device = hidServices.getHidDevice(prog.vid, prog.pid, prog.serialNum);
-      if (device != null) {
+      if (SimTarget.EDBG_KEY.equals(pidVid)) {
+        // Simulated tool and target (see EDBGSim)
+        hidServices = null;
+        prog.serialNum = EDBGSim.SERIAL;
+        framer = new EDBGFramer(new EDBGSim(SimTarget.getTarget(chip), frame.getPrefs().getInt("sim_latency", 1000)));
+      } else {
+        synchronized (DeviceRegistry.HID_LOCK) {
+          hidServices = HidManager.getHidServices();
+          device = hidServices.getHidDevice(prog.vid, prog.pid, prog.serialNum);
+        }
+        if (device == null) {
+          throw new EDBGException("Unable to connect to programmer: " + prog.name);
+        }
         if (device.isOpen()) {
           device.close();
         }
         if (device.open() && device.isOpen()) {
           device.setNonBlocking(true);
+          framer = new EDBGFramer(device);
         } else {
           throw new EDBGException("Unable to open programmer: " + prog.name);
         }
-        // Verify target has voltage
-        if ((targetVcc = getAnalogVoltageRef()) < 1.0) {
-          throw new EDBGException(prog.name + " indicates Target Vcc < 1 volt");
+      }
+      // Verify target has voltage
+      if ((targetVcc = getAnalogVoltageRef()) < 1.0) {
+        throw new EDBGException(prog.name + " indicates Target Vcc < 1 volt");
+      }
+      // Connect to target
+      startSession();
+      // Configure programmer for UPDI in Debug Mode with 500 kHz clock
+      setVariantUPDI();
+      setPhysicalInterfaceUPDI();
+      autoClock = useAutoClock(frame);
+      Preferences clockPrefs = frame.getPrefs().node("updi_clock");
+      String clockKey = prog.serialNum + "_" + chip.signature;
+      // The remembered clock is limited by the current target Vcc, which may be lower than when it was tuned
+      updiClock = autoClock ? Math.min(clockPrefs.getInt(clockKey, UPDIClock), getMaxClock()) : UPDIClock;
+      setClockUPDI(updiClock);
+      setUPDIDeviceInfo(chip);
+      if (updiClock != UPDIClock) {
+        // Verify remembered clock still works with this target, else forget it and start over at UPDIClock
+        if (!tryClock(-1)) {
+          clockPrefs.remove(clockKey);
+          changeClock(UPDIClock);
         }
-        // Connect to target
-        startSession();
-        // Configure programmer for UPDI in Debug Mode with 500 kHz clock
-        setVariantUPDI();
-        setPhysicalInterfaceUPDI();
-        setClockUPDI(UPDIClock);
-        setUPDIDeviceInfo(chip);
+      } else {
         activatePhysical(true);
-        if (program) {
-          setFunctionProgram();
-          enterProgramMode();
-        } else {
-          setFunctionDebug();
-          attachDebugger(true);
+        enterFunction(program);
+        if (autoClock) {
+          clockPrefs.putInt(clockKey, tuneClock());
         }
-      } else {
-        throw new EDBGException("Unable to connect to programmer: " + prog.name);
       }
     } else {
       throw new EDBGException("Programmer not selected in Settings Menu");
@@ -303,18 +472,204 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
     return targetVcc;
   }
 
-  public void close () {
-    if (program) {
-      exitProgramMode();
-    } else {
-      detachDebugger();
+  /**
+   * Get the UPDI clock in use
+   *
+   * @return UPDI clock (in kHz)
+   */
+  public int getUpdiClock () {
+    return updiClock;
+  }
+
+  /*
+   *  UPDI clock tuning
+   *
+   *  When the "updi_autoclock" preference is enabled, a new session steps the UPDI clock up through UPDI_CLOCKS
+   *  and, at each step, reads the target's signature and reads a test block twice (SRAM in debug mode, or flash
+   *  in program mode, as SRAM can't be read in program mode).  Tuning stops at the first step that fails, or
+   *  exceeds the limit set by target Vcc, and then falls back to the last clock that passed.  The result is
+   *  remembered in the "updi_clock" Preferences node keyed by the programmer's serial number and the target's
+   *  signature, so later sessions start at that clock (limited by the current target Vcc) after a single test.
+   *  Note: changing the clock requires deactivating and reactivating the physical interface.
+   */
+
+  /**
+   * Get the highest UPDI clock to use based on target Vcc
+   *
+   * @return UPDI clock (in kHz)
+   */
+  private int getMaxClock () {
+    if (targetVcc < 2.7) {
+      return UPDIClock;
+    } else if (targetVcc < 4.5) {
+      return 900;
+    }
+    return UPDI_CLOCKS[UPDI_CLOCKS.length - 1];
+  }
+
+  /**
+   * Step the UPDI clock up until a step fails, or the limit set by getMaxClock() is reached
+   * Note: must be in program, or debug mode to call
+   *
+   * @return highest UPDI clock that passed (in kHz)
+   */
+  private int tuneClock () throws EDBGException {
+    int best = updiClock;
+    int max = getMaxClock();
+    for (int kHz : UPDI_CLOCKS) {
+      if (kHz <= best) {
+        continue;
+      }
+      if (kHz > max || !tryClock(kHz)) {
+        break;
+      }
+      debugPrint(String.format("tuneClock() %d kHz passed", kHz));
+      best = kHz;
+    }
+    if (updiClock != best) {
+      changeClock(best);
+    }
+    return best;
+  }
+
+  /**
+   * Switch to a new UPDI clock, if kHz > 0, and check that the target works reliably at the clock
+   *
+   * @param kHz UPDI clock (in kHz), or -1 to test the clock already set
+   * @return true if target passed testClock()
+   */
+  private boolean tryClock (int kHz) {
+    try {
+      if (kHz > 0) {
+        changeClock(kHz);
+      } else {
+        activatePhysical(true);
+        enterFunction(program);
+      }
+      return testClock();
+    } catch (EDBGException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Leave program, or debug mode, change the UPDI clock and then reenter program, or debug mode
+   *
+   * @param kHz UPDI clock (in kHz)
+   */
+  private void changeClock (int kHz) throws EDBGException {
+    try {
+      if (programActive) {
+        exitProgramMode();
+      } else if (debugActive) {
+        detachDebugger();
+      }
+    } catch (EDBGException ex) {
+      // Target may not respond at a failed clock
+      programActive = debugActive = false;
+    }
+    if (physicalActive) {
+      deactivatePhysical();
+    }
+    setClockUPDI(kHz);
+    updiClock = kHz;
+    activatePhysical(true);
+    enterFunction(program);
+  }
+
+  /**
+   * Read the signature and check it matches the selected chip, then read a test block twice and compare
+   *
+   * @return true if both checks passed
+   */
+  private boolean testClock () throws EDBGException {
+    byte[] sig = getDeviceSignature();
+    if (sig.length != 3 || !String.format("%02X%02X%02X", sig[0], sig[1], sig[2]).equals(chip.signature)) {
+      return false;
     }
-    deactivatePhysical();
-    endSession();
+    int address = program ? 0 : chip.getInt("sbase");
+    int memType = program ? MEMTYPE_FLASH_PAGE : MEMTYPE_SRAM;
+    byte[] test = memoryRead(address, memType, CLOCK_TEST_SIZE);
+    return Arrays.equals(test, memoryRead(address, memType, CLOCK_TEST_SIZE));
+  }
+
+  /**
+   * Leave program, or debug mode and keep the session open as the warm, idle session (see getInstance()),
+   * unless it was opened with "decode_updi" enabled
+   */
+  public void close () {
     ide.removeProgrammer();
-    device.close();
-    hidServices.shutdown();
-    HidApi.exit();
+    if (updiTrace != null) {
+      // Don't keep a session that's decoding UPDI, so jsscPort is free for the Serial Monitor
+      shutdown();
+      return;
+    }
+    try {
+      if (program) {
+        exitProgramMode();
+      } else {
+        detachDebugger();
+      }
+      if (physicalActive) {
+        deactivatePhysical();
+      }
+    } catch (EDBGException ex) {
+      shutdown();
+      return;
+    }
+    EDBG old;
+    synchronized (EDBG.class) {
+      old = warm;
+      warm = this;
+      if (idleTimer != null) {
+        idleTimer.cancel();
+      }
+      idleTimer = new Timer("EDBG idle", true);
+      idleTimer.schedule(new TimerTask() {
+        @Override
+        public void run () {
+          closeIdle();
+        }
+      }, IDLE_TIMEOUT);
+    }
+    if (old != null && old != this) {
+      old.shutdown();
+    }
+  }
+
+  /**
+   * Close the HID connection and end the session
+   */
+  private void shutdown () {
+    if (eventReader != null) {
+      eventReader.shutdown();
+      eventReader = null;
+    }
+    try {
+      if (programActive) {
+        exitProgramMode();
+      } else if (debugActive) {
+        detachDebugger();
+      }
+      if (physicalActive) {
+        deactivatePhysical();
+      }
+      endSession();
+    } catch (EDBGException ex) {
+      ex.printStackTrace();
+    }
+    debugPrint(framer.toString());
+    if (device != null) {
+      synchronized (DeviceRegistry.HID_LOCK) {
+        device.close();
+        hidServices.shutdown();
+        HidApi.exit();
+      }
+    }
+    if (updiTrace != null) {
+      updiTrace.shutdown();
+      updiTrace = null;
+    }
     if (jsscPort != null) {
       try {
         jsscPort.close();
@@ -365,112 +720,101 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
   //  5  0x00  sequence LSB
   //  6  0x00  sequence MSB
   //  7  0x00  Source sub-protocol handler ID
+  //
+  //  Note: fragmenting and reassembly are done in place by EDBGFramer, so sendFrame() returns the Response ID
+  //  and the response data is read directly out of the framer's response frame (offset 6 onward).
 
   private byte[] sendAvrCmd (byte[] cmd) throws EDBGException {
+    framer.begin();
+    framer.put(cmd, 0, cmd.length);           // Append CMD starting with Destination sub-protocol handler ID
+    int rspId = sendFrame();
+    byte[] data;
+    switch (rspId) {
+    case -1:                                  // No response
+      return null;
+    case 0x80:                                // RSP_AVR8_OK, RSP_EDBG_OK
+      return new byte[0];
+    case 0x81:                                // AVR8_RSP_LIST, RSP_EDBG_LIST
+      data = new byte[framer.rspLength() - 6];
+      framer.copyData(6, data, 0, data.length);
+      return data;
+    case 0x83:                                // RSP_AVR8_PC- 4 bytes
+      data = new byte[4];
+      framer.copyData(6, data, 0, data.length);
+      return data;
+    default:                                  // RSP_AVR8_DATA, RSP_EDBG_DATA
+      data = new byte[framer.rspLength() - 6 - 1];
+      framer.copyData(6, data, 0, data.length);
+      return data;
+    }
+  }
+
+  /**
+   * Send the command assembled in the framer and check the response for errors
+   * @return Response ID (0x80, 0x81, 0x83 or 0x84), or -1 if the tool did not send a response
+   */
+  private int sendFrame () throws EDBGException {
+    // Note: synchronized with EventReader, which polls for events using the same HID device
+    synchronized (framer) {
+      long start = System.nanoTime();
+      long fragments = framer.getFragments();
+      boolean failed = true;
+      try {
+        int rspId = sendFrameLocked();
+        failed = rspId < 0;
+        return rspId;
+      } finally {
+        ide.getLinkStats().command(toolName, getCmdName(framer.cmdByte(0), framer.cmdByte(1)), System.nanoTime() - start,
+            (int) (framer.getFragments() - fragments), failed);
+      }
+    }
+  }
+
+  private int sendFrameLocked () throws EDBGException {
     try {
       if (DEBUG_DECODE) {
-        debugPrint("\nsendAvrCmd(): " + AvrPacketDecoder.decode(cmd));
+        debugPrint("\nsendAvrCmd(): " + AvrPacketDecoder.decode(framer.getCommand()));
       }
-      ByteArrayOutputStream bout1 = new ByteArrayOutputStream();
-      bout1.write(0x0E);                    // SOF
-      bout1.write(0x00);                    // Protocol version (always 0x00)
-      bout1.write(Utility.lsb(sequence));   // LSB of Sequence ID
-      bout1.write(Utility.msb(sequence));   // MSB  of Sequence ID
-      bout1.write(cmd, 0, cmd.length);      // Append CMD starting with Destination sub-protocol handler ID
-      sequence++;
-      byte[] cmd8 = bout1.toByteArray();
-      int numPkts = (cmd8.length / MaxPkt) + (cmd8.length % MaxPkt > 0 ? 1 : 0);
-      for (int ii = 0; ii < numPkts; ii++) {
-        int index = ii * MaxPkt;
-        int len = Math.min(MaxPkt, cmd8.length - index);
-        ByteArrayOutputStream bout2 = new ByteArrayOutputStream();
-        bout2.write(0x80);                  // AVR_CMD
-        byte tmp = (byte) ((ii + 1 << 4) + numPkts);
-        bout2.write(tmp);                   // Packet n of m (starts at 1)
-        bout2.write(Utility.msb(len));      // MSB of Number of bytes in the wrapped AVR packet
-        bout2.write(Utility.lsb(len));      // LSB of Number of bytes in the wrapped AVR packet
-        bout2.write(cmd8, index, len);
-        sequence++;
-        byte[] pkt = bout2.toByteArray();
-        byte[] resp = sendCmd(pkt);
-        if (resp.length > 0 && resp[0] == (byte) 0x80) {
-          if (resp[1] == 0x01) {
-            ByteArrayOutputStream bout3 = new ByteArrayOutputStream();
-            int frameNum, frameCount;
-            do {
-              byte[] data = sendCmd(new byte[] {(byte) 0x81});
-              frameNum = ((data[1] >> 4) & 0x0F);
-              frameCount = (data[1] & 0x0F);
-              if (data[0] == (byte) 0x81) {
-                // Note: value is big endian ordered
-                int clen = ((((int) data[2] & 0xFF) << 8) | ((int) data[3] & 0xFF));
-                bout3.write(data, 4, clen);
-              } else {
-                throw new EDBGException("sendAvrCmd() Response not 0x81");
-              }
-            } while (frameNum < frameCount);
-            byte[] temp = bout3.toByteArray();
-            byte[] data;
-            switch (temp[4]) {                  // Response ID
-            case (byte) 0x80:                   // RSP_AVR8_OK, RSP_EDBG_OK
-              debugPrint("OK");
-              return new byte[0];
-            case (byte) 0x81:                   // AVR8_RSP_LIST, RSP_EDBG_LIST
-              data = new byte[temp.length - 6];
-              System.arraycopy(temp, 6, data, 0, data.length);
-              return data;
-            case (byte) 0x82:                   // AVR_EVENT
-              debugPrint("EVENT");
-              // should never get here
-              throw new EDBGException("sendAvrCmd() Error AVR_EVENT response");
-            case (byte) 0x83:                   // RSP_AVR8_PC- 4 bytes
-              debugPrint("PC");
-              data = new byte[4];
-              System.arraycopy(temp, 6, data, 0, data.length);
-              return data;
-            case (byte) 0x84:                   // RSP_AVR8_DATA, RSP_EDBG_DATA
-              debugPrint("DATA");
-              data = new byte[temp.length - 6 - 1];
-              System.arraycopy(temp, 6, data, 0, data.length);
-              return data;
-            case (byte) 0xA0:                   // RSP_AVR8_FAILED, RSP_EDBG_FAILED, RSP_HOUSEKEEPING_FAILED, etc.
-              debugPrint("FAILED");
-              String failMsg = AvrPacketDecoder.getFailMessage(temp[3], temp[5]);
-              throw new EDBGException("sendAvrCmd() RSP_AVR8_FAILED:" + failMsg);
-            }
-            throw new EDBGException("sendAvrCmd() Error parsing response");
-          }
-        } else {
-          throw new EDBGException("sendAvrCmd() Response not 0x80");
-        }
+      if (DEBUG_IO) {
+        System.out.println("sendFrame()");
+        Utility.printHex(framer.getCommand());
       }
-      return null;
+      if (!framer.send()) {
+        return -1;
+      }
+      if (DEBUG_IO) {
+        System.out.println("response:");
+        Utility.printHex(framer.getResponse());
+      }
+      int rspId = framer.rspId();
+      switch (rspId) {                        // Response ID
+      case 0x80:                              // RSP_AVR8_OK, RSP_EDBG_OK
+        debugPrint("OK");
+        return rspId;
+      case 0x81:                              // AVR8_RSP_LIST, RSP_EDBG_LIST
+        return rspId;
+      case 0x82:                              // AVR_EVENT
+        debugPrint("EVENT");
+        // should never get here
+        throw new EDBGException("sendAvrCmd() Error AVR_EVENT response");
+      case 0x83:                              // RSP_AVR8_PC- 4 bytes
+        debugPrint("PC");
+        return rspId;
+      case 0x84:                              // RSP_AVR8_DATA, RSP_EDBG_DATA
+        debugPrint("DATA");
+        return rspId;
+      case 0xA0:                              // RSP_AVR8_FAILED, RSP_EDBG_FAILED, RSP_HOUSEKEEPING_FAILED, etc.
+        debugPrint("FAILED");
+        String failMsg = AvrPacketDecoder.getFailMessage((byte) framer.rspByte(3), (byte) framer.rspByte(5));
+        throw new EDBGException("sendAvrCmd() RSP_AVR8_FAILED:" + failMsg);
+      }
+      throw new EDBGException("sendAvrCmd() Error parsing response");
     } catch (Exception ex) {
       ex.printStackTrace();
       throw new EDBGException("sendAvrCmd() unexpected exception: " + ex.getMessage());
     }
   }
 
-  private byte[] sendCmd (byte[] cmd) {
-    if (DEBUG_IO) {
-      System.out.println("sendCmd()");
-      Utility.printHex(cmd);
-    }
-    byte[] buf = new byte[64];
-    System.arraycopy(cmd, 0, buf, 0, cmd.length);
-    device.write(buf, buf.length, (byte) 0);
-    Byte[] bytes = device.read();             // Note; an array of Byte objects
-    byte[] data = new byte[bytes.length];
-    for (int ii = 0; ii < bytes.length; ii++) {
-      data[ii] = bytes[ii];
-    }
-    if (DEBUG_IO) {
-      System.out.println("response:");
-      Utility.printHex(data);
-    }
-    return data;
-  }
-
   private static int getUnsigned16 (byte[] data, int off) {
     return ((int) data[off] & 0xFF) + (((int) data[off + 1] & 0xFF) << 8);
   }
@@ -1182,7 +1526,9 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
           0x00,
           0x00,                 // Address (4 byte MSB)
       });
-      printUpdi(String.format("eraseTarget(0x%04X, 0x%02X)", address, mode));
+      if (updiTrace != null) {
+        printUpdi(String.format("eraseTarget(0x%04X, 0x%02X)", address, mode));
+      }
     } else {
       throw new EDBGException("Call to eraseTarget() when program mode is not active");
     }
@@ -1197,24 +1543,40 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
    * @param length  number of bytes to read
    */
   private byte[] memoryRead (int address, int memType, int length) throws EDBGException {
-    byte[] ret =  sendAvrCmd(new byte[] {
-        0x12,                 // AVR8GENERIC
-        0x21,                 // Command ID (CMD_AVR8_MEMORY_READ)
-        0x00,                 // Command version (always (0x00)
-        Utility.lsb(memType), // Type (UPDI - table 7-46)
-        Utility.lsb(address), // Address LSB
-        Utility.msb(address), // Address MSB
-        0x00,
-        0x00,                 // Address (4 byte MSB)
-        Utility.lsb(length),  // Bytes to read (LSB)
-        Utility.msb(length),  // Bytes to read (MSB)
-        0x00,
-        0x00,                 // Bytes to read (4 byte MSB)
-    });
-    printUpdi(String.format("memoryRead(0x%04X, %s, 0x%04X)", address, getTypeDesc(memType), length));
+    byte[] ret = new byte[length];
+    memoryRead(address, memType, ret, 0, length);
     return ret;
   }
 
+  /**
+   * Reads memory from the target directly into dst[] (no intermediate arrays are allocated)
+   * Note: Memories can only be accessed when the device is in STOPPED mode
+   *
+   * @param address Start address [byte address] of memory to read
+   * @param memType Memory type to access, such as MEMTYPE_FLASH_PAGE
+   * @param dst     destination array
+   * @param off     offset into dst[] for first byte read
+   * @param length  number of bytes to read
+   */
+  private void memoryRead (int address, int memType, byte[] dst, int off, int length) throws EDBGException {
+    long start = System.nanoTime();
+    framer.begin();
+    framer.put(0x12);                 // AVR8GENERIC
+    framer.put(0x21);                 // Command ID (CMD_AVR8_MEMORY_READ)
+    framer.put(0x00);                 // Command version (always (0x00)
+    framer.put(memType);              // Type (UPDI - table 7-46)
+    framer.put32(address);            // Address (4 bytes, LSB first)
+    framer.put32(length);             // Bytes to read (4 bytes, LSB first)
+    if (sendFrame() != 0x84 || framer.rspLength() - 6 - 1 < length) {
+      throw new EDBGException("memoryRead() invalid response");
+    }
+    framer.copyData(6, dst, off, length);
+    ide.getLinkStats().bytes(toolName, getTypeDesc(memType), false, length, System.nanoTime() - start);
+    if (updiTrace != null) {
+      printUpdi(String.format("memoryRead(0x%04X, %s, 0x%04X)", address, getTypeDesc(memType), length));
+    }
+  }
+
   // Note: memoryWriteMasked() not implemented
 
   /**
@@ -1226,47 +1588,152 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
    * @param data    byte[] array of data to write
    */
   private void memoryWrite (int address, int memType, byte[] data) throws EDBGException {
-    byte[] cmd = new byte[] {
-        0x12,                     // AVR8GENERIC
-        0x23,                     // Command ID (CMD_AVR8_MEMORY_WRITE)
-        0x00,                     // Command version (always (0x00)
-        Utility.lsb(memType),     // Type (UPDI - table 7-46)
-        Utility.lsb(address),     // Address LSB
-        Utility.msb(address),     // Address MSB
-        0x00,
-        0x00,                     // Address (4 byte MSB)
-        Utility.lsb(data.length), // Bytes to write (LSB)
-        Utility.msb(data.length), // Bytes to write (MSB)
-        0x00,
-        0x00,                     // Bytes to read (4 byte MSB)
-        0x00,                     // 0x00 = write first, then reply, 0x01 = reply first, then write
-    };
-    byte[] tmp = new byte[cmd.length + data.length];
-    System.arraycopy(cmd, 0, tmp, 0, cmd.length);
-    System.arraycopy(data, 0, tmp, cmd.length, data.length);
-    sendAvrCmd(tmp);
-    printUpdi(String.format("memoryWrite(0x%04X, %s, length = 0x%04X)", address, getTypeDesc(memType), data.length));
+    memoryWrite(address, memType, data, 0, data.length);
+  }
+
+  /**
+   * Writes len bytes from data[] starting at off to memory on the target (no intermediate arrays are allocated)
+   * Note: Memories can only be accessed when the device is in STOPPED mode
+   *
+   * @param address Start address [byte address] of memory to write
+   * @param memType Memory type to access, such as MEMTYPE_FLASH_PAGE
+   * @param data    byte[] array of data to write
+   * @param off     offset into data[] of first byte to write
+   * @param len     number of bytes to write
+   */
+  private void memoryWrite (int address, int memType, byte[] data, int off, int len) throws EDBGException {
+    long start = System.nanoTime();
+    framer.begin();
+    framer.put(0x12);                 // AVR8GENERIC
+    framer.put(0x23);                 // Command ID (CMD_AVR8_MEMORY_WRITE)
+    framer.put(0x00);                 // Command version (always (0x00)
+    framer.put(memType);              // Type (UPDI - table 7-46)
+    framer.put32(address);            // Address (4 bytes, LSB first)
+    framer.put32(len);                // Bytes to write (4 bytes, LSB first)
+    framer.put(0x00);                 // 0x00 = write first, then reply, 0x01 = reply first, then write
+    framer.put(data, off, len);
+    sendFrame();
+    ide.getLinkStats().bytes(toolName, getTypeDesc(memType), true, len, System.nanoTime() - start);
+    if (updiTrace != null) {
+      printUpdi(String.format("memoryWrite(0x%04X, %s, length = 0x%04X)", address, getTypeDesc(memType), len));
+    }
+  }
+
+  /**
+   * Get the smallest legal block size for memType, which is the page size for paged memories
+   * @param memType Memory type to access, such as MEMTYPE_FLASH_PAGE
+   * @return minimum block size (in bytes)
+   */
+  private int getMinBlock (int memType) {
+    switch (memType) {
+    case MEMTYPE_FLASH_PAGE:
+      return chip.getInt("fpage");
+    case MEMTYPE_EEPROM:
+    case MEMTYPE_EEPROM_PAGE:
+    case MEMTYPE_USER_SIGNATURE:
+      return chip.getInt("epage");
+    default:
+      return 64;
+    }
+  }
+
+  /**
+   * Get the block size to use for memType, which is the largest multiple of the memory's page size that fits
+   * in MAX_AVR_PAYLOAD.  If the tool has rejected a block of this size, the smaller size it accepted is used instead
+   * @param memType Memory type to access, such as MEMTYPE_FLASH_PAGE
+   * @return block size (in bytes)
+   */
+  private int getBlockSize (int memType) {
+    Integer size = blockSizes.get(memType);
+    if (size == null) {
+      int minBlock = getMinBlock(memType);
+      size = Math.max((MAX_AVR_PAYLOAD / minBlock) * minBlock, minBlock);
+      blockSizes.put(memType, size);
+    }
+    return size;
+  }
+
+  /**
+   * Called when the tool fails a block transfer to halve the block size for memType (keeping it a multiple
+   * of the page size)
+   * @param memType Memory type to access, such as MEMTYPE_FLASH_PAGE
+   * @param block block size that failed
+   * @return true if block size was reduced, false if already at smallest legal block size
+   */
+  private boolean reduceBlockSize (int memType, int block) {
+    int minBlock = getMinBlock(memType);
+    if (block > minBlock) {
+      int size = Math.max(((block / 2) / minBlock) * minBlock, minBlock);
+      blockSizes.put(memType, size);
+      debugPrint("reduceBlockSize() " + getTypeDesc(memType) + " block size now " + size);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Report the transfer rate and the bytes the JVM allocated during a read, or write loop (not counting the
+   * array returned by readMemLoop())
+   */
+  private void printRate (String op, int memType, int len, long start, int block, long allocStart) {
+    long micros = (System.nanoTime() - start) / 1000;
+    long alloc = allocStart >= 0 ? EDBGFramer.getAllocatedBytes() - allocStart : -1;
+    if (len >= RATE_REPORT_MIN && micros > 0) {
+      ide.infoPrintln(String.format("%s %s: %,d bytes in %d ms (%,d bytes/sec, %d byte blocks%s)", op,
+          getTypeDesc(memType), len, micros / 1000, len * 1000000L / micros, block,
+          alloc >= 0 ? String.format(", %,d bytes allocated", alloc) : ""));
+    }
   }
 
   private byte[] readMemLoop (int address, int memType, int len) throws EDBGException {
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    for (int ii = 0; ii < len; ii += 64) {
-      int remain = Math.min(len - ii, 64);
-      byte[] chunk = memoryRead(address + ii, memType, remain);
-      bout.write(chunk, 0, chunk.length);
+    byte[] data = new byte[len];
+    long allocStart = EDBGFramer.getAllocatedBytes();
+    long start = System.nanoTime();
+    int block = getBlockSize(memType);
+    for (int ii = 0; ii < len; ) {
+      int remain = Math.min(len - ii, block);
+      try {
+        memoryRead(address + ii, memType, data, ii, remain);
+      } catch (EDBGException ex) {
+        if (remain > getMinBlock(memType) && reduceBlockSize(memType, block)) {
+          ide.getLinkStats().retry(toolName, getCmdName(0x12, 0x21));
+          block = getBlockSize(memType);
+          continue;
+        }
+        throw ex;
+      }
+      ii += remain;
       setProgressValue((int) ((float) ii / len * 100.0));
     }
-    return bout.toByteArray();
+    printRate("Read", memType, len, start, block, allocStart);
+    return data;
   }
 
   private void writeMemLoop (int address, int memType, byte[] data) throws EDBGException {
-    for (int ii = 0; ii < data.length; ii += 64) {
-      int remain = Math.min(data.length - ii, 64);
-      byte[] buf = new byte[remain];
-      System.arraycopy(data, ii, buf, 0, remain);
-      memoryWrite(address + ii, memType, buf);
-      setProgressValue((int) ((float) ii / data.length * 100.0));
+    writeMemLoop(address, memType, data, 0, data.length);
+  }
+
+  private void writeMemLoop (int address, int memType, byte[] data, int off, int len) throws EDBGException {
+    long allocStart = EDBGFramer.getAllocatedBytes();
+    long start = System.nanoTime();
+    int block = getBlockSize(memType);
+    for (int ii = 0; ii < len; ) {
+      int remain = Math.min(len - ii, block);
+      try {
+        memoryWrite(address + ii, memType, data, off + ii, remain);
+      } catch (EDBGException ex) {
+        // Note: rewriting a partially written block with the same data is harmless
+        if (remain > getMinBlock(memType) && reduceBlockSize(memType, block)) {
+          ide.getLinkStats().retry(toolName, getCmdName(0x12, 0x23));
+          block = getBlockSize(memType);
+          continue;
+        }
+        throw ex;
+      }
+      ii += remain;
+      setProgressValue((int) ((float) ii / len * 100.0));
     }
+    printRate("Write", memType, len, start, block, allocStart);
   }
 
   /**
@@ -1305,6 +1772,31 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
     }
   }
 
+  /**
+   * Erase and write only the flash pages selected in pages.  Each run of consecutive pages is erased one
+   * page at a time (Application page erase) and then written using writeMemLoop()
+   *
+   * @param address  starting address of data[] (multiple of page size)
+   * @param data     data to write (length is a multiple of pageSize)
+   * @param pageSize target's flash page size (in bytes)
+   * @param pages    set bit n to erase and write the page at data[n * pageSize]
+   */
+  public void writeFlashPages (int address, byte[] data, int pageSize, BitSet pages) throws EDBGException {
+    if (programActive) {
+      int numPages = data.length / pageSize;
+      for (int first = pages.nextSetBit(0); first >= 0 && first < numPages; first = pages.nextSetBit(first)) {
+        int end = Math.min(pages.nextClearBit(first), numPages);
+        for (int page = first; page < end; page++) {
+          eraseTarget(address + page * pageSize, 0x04);         // Application page erase
+        }
+        writeMemLoop(address + first * pageSize, MEMTYPE_FLASH_PAGE, data, first * pageSize, (end - first) * pageSize);
+        first = end;
+      }
+    } else {
+      throw new EDBGException("Call to writeFlashPages() when program mode is not active");
+    }
+  }
+
   /**
    * Read "len" bytes from SRAM starting at "address"
    * Note: base address of SRAM varies with size of SRAM and must be in debug mode to call
@@ -1793,39 +2285,160 @@ public class EDBG extends Programmer          /* implements JSSCPort.RXEvent */
     return null;
   }
 
+  /*
+   *  Event handling
+   *
+   *  The tool only reports an event (EVT_AVR8_BREAK, or EVT_AVR8_IDR) in reply to an AVR_EVT (0x82) report, so
+   *  EventReader polls with AVR_EVT requests while armed and adds any events it reads to the lock-free events
+   *  queue, then unparks the thread waiting in breakWait().  The tool answers each poll straight away, with an
+   *  empty reply if no event is pending, so the wait between polls starts at EVT_MIN_NS when armed, or after an
+   *  event, and doubles with each empty reply up to EVT_QUIET_NS.  This keeps break and IDR latency low while
+   *  events are arriving, without a steady stream of HID round trips (each holding the framer) while the target
+   *  runs quietly.  EventReader disarms itself after it reads a BREAK event and parks until breakWait() arms it.
+   */
+
+  private static class Event {
+    final int     id;
+    final byte[]  data;
+
+    Event (byte[] data) {
+      this.id = data[0] & 0xFF;
+      this.data = data;
+    }
+  }
+
+  private class EventReader extends Thread {
+    private static final long EVT_MIN_NS = 1000000;     // Wait between polls after arming, or an event
+    private static final long EVT_QUIET_NS = 20000000;  // Longest wait between polls while no events arrive
+    private static final long EVT_MAX_NS = 200000000;   // Longest back off between polls after repeated errors
+    private volatile boolean  armed, running = true;
+    private volatile long     quietNs = EVT_MIN_NS;     // Wait after an empty poll (doubles up to EVT_QUIET_NS)
+    private long              polls, received, failures;
+    private int               errors;                   // Consecutive failed polls (reset by a good poll)
+
+    EventReader () {
+      super("EDBG EventReader");
+      setDaemon(true);
+    }
+
+    void arm () {
+      quietNs = EVT_MIN_NS;
+      armed = true;
+      LockSupport.unpark(this);
+    }
+
+    void disarm () {
+      armed = false;
+    }
+
+    void shutdown () {
+      running = false;
+      LockSupport.unpark(this);
+      try {
+        join(2000);                                     // Allow time for an in progress HID read to time out
+      } catch (InterruptedException ex) {
+        // do nothing
+      }
+      debugPrint(String.format("EventReader: %d polls, %d events, %d failures", polls, received, failures));
+    }
+
+    public void run () {
+      while (running) {
+        if (!armed) {
+          LockSupport.park(this);
+          continue;
+        }
+        byte[] rsp = null;
+        long idleNs = quietNs;
+        synchronized (framer) {
+          try {
+            if (framer.exchange(EDBGFramer.AVR_EVT) > 0) {
+              rsp = decodeResponse(framer.report());
+            }
+            errors = 0;
+          } catch (Exception ex) {
+            // Log only the first of a run of failed polls and back off, as the tool is probably disconnected
+            if (errors++ == 0) {
+              ide.infoPrintln("EDBG event poll failed: " + ex.getMessage());
+            }
+            failures++;
+            idleNs = Math.min(EVT_MIN_NS << Math.min(errors, 8), EVT_MAX_NS);
+          }
+          polls++;
+        }
+        if (rsp != null && rsp.length > 0) {
+          received++;
+          Event evt = new Event(rsp);
+          if (evt.id == EVT_AVR8_BREAK) {
+            armed = false;
+          }
+          events.offer(evt);
+          LockSupport.unpark(eventWaiter);
+          quietNs = EVT_MIN_NS;
+        } else {
+          quietNs = Math.min(quietNs * 2, EVT_QUIET_NS);
+          LockSupport.parkNanos(this, idleNs);
+        }
+      }
+    }
+  }
+
+  /**
+   * Send any complete lines of IDR text in msg to the OcdListener, or all of msg if flushAll is true, or if
+   * msg has grown to IDR_BATCH_MAX, or more characters
+   */
+  private void flushIdr (StringBuilder msg, boolean flushAll) {
+    int end = flushAll || msg.length() >= IDR_BATCH_MAX ? msg.length() : msg.lastIndexOf("\n") + 1;
+    if (end > 0) {
+      if (ocdListener != null) {
+        ocdListener.msgReceived(msg.substring(0, end));
+      }
+      msg.delete(0, end);
+    }
+  }
+
   /**
    * Wait for Break Event and handle IDR events, if any
    * @param doTimeout if true, return after timeout period
    */
   private void breakWait (boolean doTimeout) throws InterruptedException {
-    int timeout = 20;
+    if (eventReader == null) {
+      eventReader = new EventReader();
+      eventReader.start();
+    }
+    events.clear();                                     // Discard events left over from a timed out wait
     StringBuilder msg = new StringBuilder();
-    while (!doTimeout || timeout-- > 0) {
-      byte[] data = sendCmd(new byte[] {(byte) 0x82});  // AVR_EVENT
-      byte[] rsp = decodeResponse(data);
-      if (rsp != null) {
-        if (rsp[0] == 0x40) {                           // EVT_AVR8_BREAK
-          if (DEBUG_PRINT) {
-            Break brk = new Break(rsp);
-            debugPrint(brk.toString());
-          }
-          return;
-        } else if (rsp[0] == 0x41) {                    // EVT_AVR8_IDR
-          char cc = (char) rsp[2];
-          msg.append(cc);
-          if (cc == '\n') {
-            if (ocdListener != null) {
-              ocdListener.msgReceived(msg.toString());
+    long deadline = System.nanoTime() + BREAK_TIMEOUT * 1000000;
+    eventWaiter = Thread.currentThread();
+    eventReader.arm();
+    try {
+      while (!doTimeout || System.nanoTime() < deadline) {
+        Event evt;
+        while ((evt = events.poll()) != null) {
+          if (evt.id == EVT_AVR8_BREAK) {
+            flushIdr(msg, true);
+            if (DEBUG_PRINT) {
+              Break brk = new Break(evt.data);
+              debugPrint(brk.toString());
             }
-            msg.setLength(0);
+            return;
+          } else if (evt.id == EVT_AVR8_IDR && evt.data.length > 2) {
+            msg.append((char) evt.data[2]);
+            deadline = System.nanoTime() + BREAK_TIMEOUT * 1000000;
           }
-          timeout = 20;
-          Thread.sleep(10);
-          continue;
         }
+        // Deliver IDR text in batches once the queue has been drained
+        flushIdr(msg, false);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        LockSupport.parkNanos(this, doTimeout ? Math.max(deadline - System.nanoTime(), 0) : BREAK_TIMEOUT * 1000000);
       }
-      Thread.sleep(50);
+    } finally {
+      eventReader.disarm();
+      eventWaiter = null;
     }
+    flushIdr(msg, true);
     if (ocdListener != null) {
       ocdListener.msgReceived("timeout\n");
     }
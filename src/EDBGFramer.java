@@ -0,0 +1,292 @@
+import org.hid4java.HidDevice;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/*
+ *  Allocation-free framing layer used by EDBG to wrap AVR commands into 64 byte HID reports
+ *
+ *  All buffers are allocated once and reused for every command.  A command is assembled in place by calling
+ *  begin() followed by the put() methods, after which send() writes the SOF, protocol version and sequence
+ *  header in front of it, splits it into AVR_CMD fragments and reassembles the AVR_RSP fragments into the
+ *  response frame.  The response is then read directly out of the response frame via rspId(), rspByte() and
+ *  copyData(), so no per-fragment arrays are created.
+ *
+ *  Note: the resize counter only increments when one of the frame buffers has to grow to hold a larger command,
+ *  or response than any seen before.  It doesn't count other allocations, so EDBG's read and write loops use
+ *  getAllocatedBytes() to report the bytes the JVM actually allocated while they ran.
+ *
+ *  Reports are exchanged through a Link, which is normally the tool's HidDevice, but can also be a software
+ *  stand-in for the tool, such as EDBGSim.
+ *
+ *  Command frame (txFrame)           Response frame (rxFrame)
+ *    0  0x0E  SOF                      0  0x0E  SOF
+ *    1  0x00  Protocol version         1  0x00  sequence LSB
+ *    2  0x00  sequence LSB             2  0x00  sequence MSB
+ *    3  0x00  sequence MSB             3  0x12  Source sub-protocol handler ID
+ *    4  0x12  sub-protocol handler ID  4  0x84  Response ID
+ *    5  ....  Command, etc.            5  0x00  Version
+ *                                      6  ....  Response data
+ */
+
+class EDBGFramer {
+  static final int            REPORT_SIZE = 64;
+  static final int            MAX_FRAGMENTS = 15;         // Fragment number and count are 4 bit fields
+  static final int            MaxPkt = REPORT_SIZE - 4;   // Payload bytes per AVR_CMD, or AVR_RSP fragment
+  private static final int    HEADER = 4;                 // SOF, Protocol version, sequence LSB and MSB
+  private static final int    READ_TIMEOUT = 1000;        // Timeout for reading a report (in milliseconds)
+  static final int            AVR_CMD = 0x80;
+  static final int            AVR_RSP = 0x81;
+  static final int            AVR_EVT = 0x82;
+  private final Link          link;
+  private final byte[]        txReport = new byte[REPORT_SIZE];
+  private final byte[]        rxReport = new byte[REPORT_SIZE];
+  private byte[]              txFrame = new byte[REPORT_SIZE * 2];
+  private byte[]              rxFrame = new byte[REPORT_SIZE * 2];
+  private int                 txLen, rxLen;
+  private int                 sequence;
+  private long                resizes, fragments, commands;
+
+  /*
+   * Transport used to exchange 64 byte reports with the tool
+   */
+  interface Link {
+    void write (byte[] report);
+    int read (byte[] report, int timeout);
+  }
+
+  EDBGFramer (HidDevice device) {
+    this(new Link() {
+      @Override
+      public void write (byte[] report) {
+        device.write(report, report.length, (byte) 0);
+      }
+      @Override
+      public int read (byte[] report, int timeout) {
+        return device.read(report, timeout);
+      }
+    });
+  }
+
+  EDBGFramer (Link link) {
+    this.link = link;
+  }
+
+  /**
+   * Start assembling a new command in the command frame
+   */
+  void begin () {
+    txLen = HEADER;
+  }
+
+  void put (int val) {
+    ensureTx(1);
+    txFrame[txLen++] = (byte) val;
+  }
+
+  /**
+   * Append a 16 bit value in little endian order
+   * @param val value to append
+   */
+  void put16 (int val) {
+    ensureTx(2);
+    txFrame[txLen++] = (byte) val;
+    txFrame[txLen++] = (byte) (val >> 8);
+  }
+
+  /**
+   * Append a 32 bit value in little endian order
+   * @param val value to append
+   */
+  void put32 (int val) {
+    ensureTx(4);
+    txFrame[txLen++] = (byte) val;
+    txFrame[txLen++] = (byte) (val >> 8);
+    txFrame[txLen++] = (byte) (val >> 16);
+    txFrame[txLen++] = (byte) (val >> 24);
+  }
+
+  void put (byte[] data, int off, int len) {
+    ensureTx(len);
+    System.arraycopy(data, off, txFrame, txLen, len);
+    txLen += len;
+  }
+
+  private void ensureTx (int count) {
+    if (txLen + count > txFrame.length) {
+      txFrame = Arrays.copyOf(txFrame, Math.max(txFrame.length * 2, txLen + count));
+      resizes++;
+    }
+  }
+
+  private void ensureRx (int count) {
+    if (rxLen + count > rxFrame.length) {
+      rxFrame = Arrays.copyOf(rxFrame, Math.max(rxFrame.length * 2, rxLen + count));
+      resizes++;
+    }
+  }
+
+  /**
+   * Send the command assembled since begin() as one, or more AVR_CMD fragments and, once the tool
+   * acknowledges the command, read back and reassemble the AVR_RSP fragments into the response frame
+   * @return true if a response was received, else false
+   */
+  boolean send () {
+    txFrame[0] = 0x0E;                        // SOF
+    txFrame[1] = 0x00;                        // Protocol version (always 0x00)
+    txFrame[2] = Utility.lsb(sequence);       // LSB of Sequence ID
+    txFrame[3] = Utility.msb(sequence);       // MSB of Sequence ID
+    sequence++;
+    commands++;
+    rxLen = 0;
+    int numPkts = (txLen / MaxPkt) + (txLen % MaxPkt > 0 ? 1 : 0);
+    for (int ii = 0; ii < numPkts; ii++) {
+      int index = ii * MaxPkt;
+      int len = Math.min(MaxPkt, txLen - index);
+      Arrays.fill(txReport, (byte) 0);
+      txReport[0] = (byte) AVR_CMD;
+      txReport[1] = (byte) ((ii + 1 << 4) + numPkts);  // Packet n of m (starts at 1)
+      txReport[2] = Utility.msb(len);                   // MSB of Number of bytes in the wrapped AVR packet
+      txReport[3] = Utility.lsb(len);                   // LSB of Number of bytes in the wrapped AVR packet
+      System.arraycopy(txFrame, index, txReport, 4, len);
+      fragments++;
+      if (transfer() > 0 && rxReport[0] == (byte) AVR_CMD) {
+        if (rxReport[1] == 0x01) {
+          int frameNum, frameCount;
+          do {
+            exchange(AVR_RSP);
+            frameNum = ((rxReport[1] >> 4) & 0x0F);
+            frameCount = (rxReport[1] & 0x0F);
+            if (rxReport[0] == (byte) AVR_RSP) {
+              // Note: value is big endian ordered
+              int clen = (((int) rxReport[2] & 0xFF) << 8) | ((int) rxReport[3] & 0xFF);
+              ensureRx(clen);
+              System.arraycopy(rxReport, 4, rxFrame, rxLen, clen);
+              rxLen += clen;
+              fragments++;
+            } else {
+              throw new Programmer.EDBGException("EDBGFramer.send() Response not 0x81");
+            }
+          } while (frameNum < frameCount);
+          return true;
+        }
+      } else {
+        throw new Programmer.EDBGException("EDBGFramer.send() Response not 0x80");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Send a single byte report, such as AVR_RSP, or AVR_EVT, and read the tool's reply into the report buffer
+   * @param cmd report command byte
+   * @return number of bytes read
+   */
+  int exchange (int cmd) {
+    Arrays.fill(txReport, (byte) 0);
+    txReport[0] = (byte) cmd;
+    return transfer();
+  }
+
+  /**
+   * Send a two byte report, such as a CMSIS-DAP DAP_Info request, and read the tool's reply into the report buffer
+   * @param cmd  report command byte
+   * @param parm parameter byte
+   * @return number of bytes read
+   */
+  int exchange (int cmd, int parm) {
+    Arrays.fill(txReport, (byte) 0);
+    txReport[0] = (byte) cmd;
+    txReport[1] = (byte) parm;
+    return transfer();
+  }
+
+  private int transfer () {
+    link.write(txReport);
+    return link.read(rxReport, READ_TIMEOUT);
+  }
+
+  /**
+   * Get the last report read from the tool
+   * Note: the returned array is reused by the next call to send(), or exchange()
+   * @return report buffer
+   */
+  byte[] report () {
+    return rxReport;
+  }
+
+  int rspLength () {
+    return rxLen;
+  }
+
+  int rspByte (int idx) {
+    return rxFrame[idx] & 0xFF;
+  }
+
+  int rspId () {
+    return rxLen > 4 ? rxFrame[4] & 0xFF : -1;
+  }
+
+  /**
+   * Copy bytes from the response frame into dst[]
+   * @param from offset into response frame
+   * @param dst  destination array
+   * @param off  offset into destination array
+   * @param len  number of bytes to copy
+   */
+  void copyData (int from, byte[] dst, int off, int len) {
+    System.arraycopy(rxFrame, from, dst, off, len);
+  }
+
+  /**
+   * Get a byte of the command assembled since begin()
+   * @param idx index of byte (0 = sub-protocol handler ID, 1 = command ID)
+   * @return byte value
+   */
+  int cmdByte (int idx) {
+    return txFrame[HEADER + idx] & 0xFF;
+  }
+
+  byte[] getCommand () {
+    return Arrays.copyOfRange(txFrame, HEADER, txLen);
+  }
+
+  byte[] getResponse () {
+    return Arrays.copyOf(rxFrame, rxLen);
+  }
+
+  long getResizes () {
+    return resizes;
+  }
+
+  long getFragments () {
+    return fragments;
+  }
+
+  long getCommands () {
+    return commands;
+  }
+
+  void resetCounters () {
+    resizes = fragments = commands = 0;
+  }
+
+  public String toString () {
+    return String.format("EDBGFramer: %d commands, %d fragments, %d resizes", commands, fragments, resizes);
+  }
+
+  /**
+   * Get the number of bytes the current thread has allocated on the heap so far
+   * @return bytes allocated, or -1 if the JVM can't measure this
+   */
+  static long getAllocatedBytes () {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+      if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,507 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+  /*
+   * Software stand-in for an EDBG-based tool (such as an Atmel-ICE) connected to a SimTarget
+   *
+   * Implements EDBGFramer.Link, so EDBG talks to it through the same 64 byte HID report framing it uses with a
+   * real tool.  AVR_CMD fragments are reassembled into a command, which is run against the SimTarget, and the
+   * response is split into AVR_RSP fragments.  BREAK events are queued after ATTACH (with break), RESET, STOP,
+   * STEP and RUN_TO_ADDRESS and returned in reply to AVR_EVT.  The commands EDBG uses from the DISCOVERY,
+   * HOUSEKEEPING, EDBG_CTRL and AVR8GENERIC handlers are implemented.  Anything else fails with
+   * AVR8_FAILURE_INVALID_COMMAND, or the handler's equivalent.
+   *
+   * Time is modelled by waiting latency nanoseconds for each report read (a real tool answers once per USB frame)
+   * plus the time the UPDI bytes for each command would take on the wire at the UPDI clock set by the host, plus
+   * the time the target's NVMCTRL takes to erase and write each page.
+   */
+class EDBGSim implements EDBGFramer.Link {
+  static final String           SERIAL = "SIM000000001";      // Tool serial number
+  private static final int      VTARGET = 5000;               // Target voltage (in mV)
+  private static final int      UPDI_FRAME_BITS = 12;         // Start, 8 data, parity and 2 stop bits
+  private static final int      UPDI_CMD_BYTES = 8;           // Approx UPDI bytes to set up an access
+  private static final byte[]   AVR8_COMMANDS = {0x00, 0x01, 0x02, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16,
+                                                 0x20, 0x21, 0x23, 0x30, 0x31, 0x32, 0x33, 0x34, 0x35, 0x36,
+                                                 0x40, 0x41, 0x43, 0x44, 0x45};
+  // Failure codes
+  private static final int      FAILURE_NOT_ATTACHED = 0x23;
+  private static final int      FAILURE_INVALID_PHYSICAL_STATE = 0x31;
+  private static final int      FAILURE_ILLEGAL_STATE = 0x32;
+  private static final int      FAILURE_INVALID_MEMTYPE = 0x34;
+  private static final int      FAILURE_INVALID_SIZE = 0x35;
+  private static final int      FAILURE_INVALID_ALIGNMENT = 0x37;
+  private static final int      FAILURE_INVALID_COMMAND = 0x90;
+  private final SimTarget       target;
+  private final long            latency;
+  private final byte[]          reply = new byte[EDBGFramer.REPORT_SIZE];
+  private byte[]                cmd = new byte[EDBGFramer.REPORT_SIZE * 2];
+  private byte[]                rsp = new byte[EDBGFramer.REPORT_SIZE * 2];
+  private int                   cmdLen, rspLen, rspSent, rspFragment;
+  private final Queue<byte[]>   events = new ConcurrentLinkedQueue<>();
+  private int                   updiClock = EDBG.UPDIClock;   // in kHz
+  private int                   progBase = 0x8000;
+  private boolean               physical, debug, program;
+  private int                   pc;                           // Word address
+
+  /**
+   * @param target  simulated target
+   * @param latency time to wait for each report read (in microseconds)
+   */
+  EDBGSim (SimTarget target, int latency) {
+    this.target = target;
+    this.latency = latency * 1000L;
+  }
+
+  @Override
+  public synchronized void write (byte[] report) {
+    Arrays.fill(reply, (byte) 0);
+    reply[0] = report[0];
+    switch (report[0] & 0xFF) {
+    case EDBGFramer.AVR_CMD:
+      cmdFragment(report);
+      break;
+    case EDBGFramer.AVR_RSP:
+      rspFragment();
+      break;
+    case EDBGFramer.AVR_EVT:
+      byte[] evt = events.poll();
+      if (evt != null) {
+        int len = 5 + evt.length;
+        reply[1] = Utility.msb(len);
+        reply[2] = Utility.lsb(len);
+        reply[3] = 0x0E;                                        // SOF
+        reply[4] = 0x00;
+        reply[7] = 0x12;                                        // AVR8GENERIC
+        System.arraycopy(evt, 0, reply, 8, evt.length);
+      }
+      break;
+    }
+  }
+
+  /**
+   * Add an AVR_CMD fragment to the command and, after the last fragment, run the command
+   */
+  private void cmdFragment (byte[] report) {
+    int frag = (report[1] >> 4) & 0x0F;
+    int count = report[1] & 0x0F;
+    int len = ((report[2] & 0xFF) << 8) | (report[3] & 0xFF);
+    if (frag == 1) {
+      cmdLen = 0;
+    }
+    if (cmdLen + len > cmd.length) {
+      cmd = Arrays.copyOf(cmd, Math.max(cmd.length * 2, cmdLen + len));
+    }
+    System.arraycopy(report, 4, cmd, cmdLen, len);
+    cmdLen += len;
+    if (frag == count) {
+      process();
+      reply[1] = 0x01;                                          // Response is ready
+    }
+  }
+
+  /**
+   * Send the next AVR_RSP fragment of the response
+   */
+  private void rspFragment () {
+    int numFrags = Math.max((rspLen + EDBGFramer.MaxPkt - 1) / EDBGFramer.MaxPkt, 1);
+    int len = Math.min(EDBGFramer.MaxPkt, rspLen - rspSent);
+    reply[1] = (byte) ((++rspFragment << 4) | numFrags);
+    reply[2] = Utility.msb(len);
+    reply[3] = Utility.lsb(len);
+    System.arraycopy(rsp, rspSent, reply, 4, len);
+    rspSent += len;
+  }
+
+  @Override
+  public int read (byte[] report, int timeout) {
+    SimTarget.delay(latency);
+    synchronized (this) {
+      System.arraycopy(reply, 0, report, 0, reply.length);
+    }
+    return reply.length;
+  }
+
+  // = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =
+  //                    Command processing
+  // = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =
+
+  //  Command frame (cmd)               Response frame (rsp)
+  //    0  0x0E  SOF                      0  0x0E  SOF
+  //    1  0x00  Protocol version         1  ....  sequence LSB
+  //    2  ....  sequence LSB             2  ....  sequence MSB
+  //    3  ....  sequence MSB             3  ....  handler ID
+  //    4  ....  handler ID               4  ....  Response ID
+  //    5  ....  Command ID               5  0x00  Version (failure code if FAILED)
+  //    6  0x00  Command version          6  ....  Response data
+  //    7  ....  parameters
+
+  private void process () {
+    rspLen = 0;
+    rspSent = 0;
+    rspFragment = 0;
+    putRsp(0x0E);
+    putRsp(cmd[2]);
+    putRsp(cmd[3]);
+    putRsp(cmd[4]);
+    int handler = cmd[4] & 0xFF;
+    int cmdId = cmd[5] & 0xFF;
+    switch (handler) {
+    case 0x00:                                                  // DISCOVERY
+      if (cmdId == 0x00 && (cmd[7] & 0xFF) == 0x80) {
+        list("Simulated EDBG".getBytes(StandardCharsets.UTF_8));
+      } else if (cmdId == 0x00 && (cmd[7] & 0xFF) == 0x81) {
+        list(SERIAL.getBytes(StandardCharsets.UTF_8));
+      } else {
+        failed(0x10);
+      }
+      break;
+    case 0x01:                                                  // HOUSEKEEPING
+      housekeeping(cmdId);
+      break;
+    case 0x20:                                                  // EDBG_CTRL
+      if (cmdId == 0x00) {
+        list(new byte[] {0x00, 0x01, 0x02});
+      } else {
+        failed(0x10);
+      }
+      break;
+    case 0x12:                                                  // AVR8GENERIC
+      avr8(cmdId);
+      break;
+    default:
+      failed(0x10);
+      break;
+    }
+  }
+
+  private void housekeeping (int cmdId) {
+    switch (cmdId) {
+    case 0x00:                                                  // QUERY
+      list(new byte[] {0x00, 0x01, 0x02, 0x10, 0x11});
+      break;
+    case 0x02:                                                  // GET
+      if (cmd[7] == 0x00) {                                     // HK_CONTEXT_CONFIG
+        data(new byte[] {0x01, 0x01, 0x00, 0x00, 0x00});        // HW 1, FW 1.0.0
+      } else if (cmd[7] == 0x01) {                              // HK_CONTEXT_ANALOG
+        data(new byte[] {Utility.lsb(VTARGET), Utility.msb(VTARGET)});
+      } else {
+        failed(0x10);
+      }
+      break;
+    case 0x10:                                                  // START_SESSION
+    case 0x11:                                                  // END_SESSION
+      ok();
+      break;
+    default:
+      failed(0x10);
+      break;
+    }
+  }
+
+  private void avr8 (int cmdId) {
+    switch (cmdId) {
+    case 0x00:                                                  // QUERY
+      list(AVR8_COMMANDS);
+      break;
+    case 0x01:                                                  // SET
+      set(cmd[7] & 0xFF, cmd[8] & 0xFF);
+      ok();
+      break;
+    case 0x02:                                                  // GET
+      data(new byte[cmd[9] & 0xFF]);
+      break;
+    case 0x10:                                                  // ACTIVATE_PHYSICAL
+      physical = true;
+      updiTime(UPDI_CMD_BYTES * 4);
+      ok();
+      break;
+    case 0x11:                                                  // DEACTIVATE_PHYSICAL
+      physical = debug = program = false;
+      ok();
+      break;
+    case 0x12:                                                  // GET_ID
+      if (physical) {
+        data("tinyAVR P:0D:1-3".getBytes(StandardCharsets.UTF_8));
+      } else {
+        failed(FAILURE_INVALID_PHYSICAL_STATE);
+      }
+      break;
+    case 0x13:                                                  // ATTACH
+      if (physical) {
+        debug = true;
+        if (cmd[7] != 0) {
+          breakEvent(0x40, 0x00);                               // STOP
+        }
+        ok();
+      } else {
+        failed(FAILURE_INVALID_PHYSICAL_STATE);
+      }
+      break;
+    case 0x14:                                                  // DETACH
+      debug = false;
+      ok();
+      break;
+    case 0x15:                                                  // PROG_MODE_ENTER
+    case 0x16:                                                  // PROG_MODE_LEAVE
+      if (physical) {
+        program = cmdId == 0x15;
+        updiTime(UPDI_CMD_BYTES * 4);
+        ok();
+      } else {
+        failed(FAILURE_INVALID_PHYSICAL_STATE);
+      }
+      break;
+    case 0x20:                                                  // ERASE
+      erase(cmd[7] & 0xFF, getInt32(8));
+      break;
+    case 0x21:                                                  // MEMORY_READ
+      memoryRead(cmd[7] & 0xFF, getInt32(8), getInt32(12));
+      break;
+    case 0x23:                                                  // MEMORY_WRITE
+      memoryWrite(cmd[7] & 0xFF, getInt32(8), getInt32(12), 17);
+      break;
+    case 0x30:                                                  // RESET
+    case 0x31:                                                  // STOP
+    case 0x33:                                                  // RUN_TO_ADDRESS
+    case 0x34:                                                  // STEP
+      if (!debug) {
+        failed(FAILURE_NOT_ATTACHED);
+        break;
+      }
+      if (cmdId == 0x30) {
+        pc = 0;
+        breakEvent(0x80, 0x00);                                 // RESET
+      } else if (cmdId == 0x31) {
+        breakEvent(0x40, 0x00);                                 // STOP
+      } else {
+        pc = cmdId == 0x33 ? getInt32(7) : pc + 1;
+        breakEvent(0x00, 0x01);                                 // BP1 (RUN_TO, or STEP)
+      }
+      ok();
+      break;
+    case 0x32:                                                  // RUN
+    case 0x40:                                                  // HW_BREAK_SET
+    case 0x41:                                                  // HW_BREAK_CLEAR
+    case 0x43:                                                  // SW_BREAK_SET
+    case 0x44:                                                  // SW_BREAK_CLEAR
+    case 0x45:                                                  // SW_BREAK_CLEAR_ALL
+      if (debug) {
+        ok();
+      } else {
+        failed(FAILURE_NOT_ATTACHED);
+      }
+      break;
+    case 0x35:                                                  // PC_READ
+      if (debug) {
+        putRsp(0x83);
+        putRsp(0x00);
+        putRsp(pc);
+        putRsp(pc >> 8);
+        putRsp(0x00);
+        putRsp(0x00);
+      } else {
+        failed(FAILURE_NOT_ATTACHED);
+      }
+      break;
+    case 0x36:                                                  // PC_WRITE
+      if (debug) {
+        pc = getInt32(7);
+        ok();
+      } else {
+        failed(FAILURE_NOT_ATTACHED);
+      }
+      break;
+    default:
+      failed(FAILURE_INVALID_COMMAND);
+      break;
+    }
+  }
+
+  /**
+   * Handle CMD_AVR8_SET for the contexts EDBG uses
+   * @param context 0 = CONFIG, 1 = PHYSICAL, 2 = DEVICE
+   * @param address parameter address
+   */
+  private void set (int context, int address) {
+    if (context == 0x01 && address == 0x31) {                   // AVR8_PHY_XM_PDI_CLK
+      updiClock = Math.max((cmd[10] & 0xFF) | ((cmd[11] & 0xFF) << 8), 1);
+    } else if (context == 0x02 && address == 0x00) {            // PROG_BASE
+      progBase = (cmd[10] & 0xFF) | ((cmd[11] & 0xFF) << 8);
+    }
+  }
+
+  private void erase (int mode, int address) {
+    if (!program) {
+      failed(FAILURE_ILLEGAL_STATE);
+      return;
+    }
+    switch (mode) {
+    case 0x00:                                                  // Chip erase
+      target.chipErase();
+      break;
+    case 0x04:                                                  // Application page erase
+      target.execute(progBase + address, SimTarget.NVM_ER);
+      break;
+    default:
+      failed(FAILURE_INVALID_COMMAND);
+      return;
+    }
+    updiTime(UPDI_CMD_BYTES);
+    target.waitReady();
+    ok();
+  }
+
+  private void memoryRead (int memType, int address, int len) {
+    if (len + 7 > EDBGFramer.MAX_FRAGMENTS * EDBGFramer.MaxPkt) {
+      failed(FAILURE_INVALID_SIZE);
+      return;
+    }
+    if (memType == 0xB0 && (address % target.getFlashPageSize() != 0 || len % target.getFlashPageSize() != 0)) {
+      failed(FAILURE_INVALID_ALIGNMENT);
+      return;
+    }
+    putRsp(0x84);
+    putRsp(0x00);
+    for (int ii = 0; ii < len; ii++) {
+      switch (memType) {
+      case 0xB8:                                                // REGFILE
+        putRsp(target.regs[(address + ii) & 0x1F]);
+        break;
+      case 0xB0:                                                // FLASH_PAGE
+        putRsp(target.read(progBase + address + ii));
+        break;
+      case 0x20:                                                // SRAM
+      case 0x22:                                                // EEPROM
+      case 0xB2:                                                // FUSES
+      case 0xB4:                                                // SIGNATURE
+      case 0xC5:                                                // USER_SIGNATURE
+        putRsp(target.read(address + ii));
+        break;
+      default:
+        rspLen = 4;
+        failed(FAILURE_INVALID_MEMTYPE);
+        return;
+      }
+    }
+    putRsp(0x00);                                               // Status
+    updiTime(UPDI_CMD_BYTES + len);
+  }
+
+  private void memoryWrite (int memType, int address, int len, int off) {
+    int fpage = target.getFlashPageSize();
+    switch (memType) {
+    case 0xB0:                                                  // FLASH_PAGE
+      if (!program) {
+        failed(FAILURE_ILLEGAL_STATE);
+        return;
+      }
+      if (address % fpage != 0 || len % fpage != 0) {
+        failed(FAILURE_INVALID_ALIGNMENT);
+        return;
+      }
+      for (int page = 0; page < len; page += fpage) {
+        for (int ii = 0; ii < fpage; ii++) {
+          target.write(progBase + address + page + ii, cmd[off + page + ii]);
+        }
+        target.execute(progBase + address + page, SimTarget.NVM_WP);
+        updiTime(UPDI_CMD_BYTES + fpage);
+        target.waitReady();
+      }
+      break;
+    case 0x22:                                                  // EEPROM
+    case 0xC5:                                                  // USER_SIGNATURE
+      // Tool does an erase and write for each page touched
+      for (int ii = 0; ii < len; ii++) {
+        target.write(address + ii, cmd[off + ii]);
+        if (ii == len - 1 || (address + ii + 1) % target.getEepromPageSize() == 0) {
+          target.execute(address + ii, SimTarget.NVM_ERWP);
+          updiTime(UPDI_CMD_BYTES * 2);
+          target.waitReady();
+        }
+      }
+      updiTime(len);
+      break;
+    case 0xB2:                                                  // FUSES
+      for (int ii = 0; ii < len; ii++) {
+        target.write(0x1006, cmd[off + ii]);                    // NVMCTRL.DATAL
+        target.execute(address + ii, SimTarget.NVM_WFU);
+        updiTime(UPDI_CMD_BYTES * 2);
+        target.waitReady();
+      }
+      break;
+    case 0x20:                                                  // SRAM
+      for (int ii = 0; ii < len; ii++) {
+        target.write(address + ii, cmd[off + ii]);
+      }
+      updiTime(UPDI_CMD_BYTES + len);
+      break;
+    case 0xB8:                                                  // REGFILE
+      for (int ii = 0; ii < len; ii++) {
+        target.regs[(address + ii) & 0x1F] = cmd[off + ii];
+      }
+      updiTime(UPDI_CMD_BYTES + len);
+      break;
+    default:
+      failed(FAILURE_INVALID_MEMTYPE);
+      return;
+    }
+    ok();
+  }
+
+  /**
+   * Queue a BREAK event
+   * @param cause bit 7 = RESET, bit 6 = STOP (low nibble is always 0x04, "stopped")
+   * @param bps   bit 5 = SWBP, bit 1 = BP1, bit 0 = BP0
+   */
+  private void breakEvent (int cause, int bps) {
+    events.offer(new byte[] {0x40, Utility.lsb(pc), Utility.msb(pc), 0x00, 0x00, 0x00, (byte) (cause | 0x04),
+                             (byte) bps});
+  }
+
+  /**
+   * Wait for the time count UPDI bytes take on the wire at the current UPDI clock
+   */
+  private void updiTime (int count) {
+    SimTarget.delay((long) count * UPDI_FRAME_BITS * 1000000L / updiClock);
+  }
+
+  private int getInt32 (int idx) {
+    return (cmd[idx] & 0xFF) | ((cmd[idx + 1] & 0xFF) << 8) | ((cmd[idx + 2] & 0xFF) << 16) | ((cmd[idx + 3] & 0xFF) << 24);
+  }
+
+  private void putRsp (int val) {
+    if (rspLen >= rsp.length) {
+      rsp = Arrays.copyOf(rsp, rsp.length * 2);
+    }
+    rsp[rspLen++] = (byte) val;
+  }
+
+  private void ok () {
+    putRsp(0x80);
+    putRsp(0x00);
+  }
+
+  private void list (byte[] data) {
+    putRsp(0x81);
+    putRsp(0x00);
+    for (byte cc : data) {
+      putRsp(cc);
+    }
+  }
+
+  private void data (byte[] data) {
+    putRsp(0x84);
+    putRsp(0x00);
+    for (byte cc : data) {
+      putRsp(cc);
+    }
+    putRsp(0x00);                                               // Status
+  }
+
+  private void failed (int code) {
+    putRsp(0xA0);
+    putRsp(code);
+  }
+}
@@ -0,0 +1,114 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+  /*
+   * Helper methods used to verify flash using the tinyAVR 0/1-series CRCSCAN peripheral
+   *
+   * CRCSCAN does not make the CRC it computes available.  Instead, it computes a CRC-16-CCITT (polynomial 0x1021,
+   * initial value 0xFFFF) over the whole flash, including a checksum stored (high byte first) in the last two
+   * bytes of flash, and sets STATUS.OK if the result is zero.  So, to verify a code image, the host computes the
+   * checksum of the image padded with 0xFF to the full size of flash, writes it to the last two bytes of flash
+   * and then runs CRCSCAN.  Only the CRCSCAN STATUS register needs to be read back.
+   *
+   * When reading flash, the same checksum lets a single read be verified.  If the bytes read contain a valid
+   * checksum and CRCSCAN reports OK, the bytes read match what is on the chip.  If not, such as when the code
+   * was not programmed with a checksum, the caller falls back to reading flash a second time and comparing.
+   */
+class FlashCrc {
+
+  /**
+   * Compute CRC-16-CCITT (polynomial 0x1021, initial value 0xFFFF, no final XOR) as used by CRCSCAN
+   * @param data data to check
+   * @param off  offset to first byte
+   * @param len  number of bytes
+   * @return 16 bit CRC
+   */
+  static int crc16 (byte[] data, int off, int len) {
+    int crc = 0xFFFF;
+    for (int ii = off; ii < off + len; ii++) {
+      crc ^= (data[ii] & 0xFF) << 8;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+      }
+      crc &= 0xFFFF;
+    }
+    return crc;
+  }
+
+  /**
+   * Create a copy of code[] padded with 0xFF to flashSize with the checksum stored in the last two bytes
+   * @param code      code image
+   * @param flashSize size of target's flash (in bytes)
+   * @return flash image, or null if code[] uses the last two bytes of flash
+   */
+  static byte[] addChecksum (byte[] code, int flashSize) {
+    if (code.length > flashSize - 2) {
+      return null;
+    }
+    byte[] image = new byte[flashSize];
+    Arrays.fill(image, (byte) 0xFF);
+    System.arraycopy(code, 0, image, 0, code.length);
+    int crc = crc16(image, 0, flashSize - 2);
+    image[flashSize - 2] = Utility.msb(crc);
+    image[flashSize - 1] = Utility.lsb(crc);
+    return image;
+  }
+
+  /**
+   * Get the checksum stored in the last two bytes of a flash image
+   * @param flash flash image
+   * @return stored checksum
+   */
+  static int getChecksum (byte[] flash) {
+    return ((flash[flash.length - 2] & 0xFF) << 8) | (flash[flash.length - 1] & 0xFF);
+  }
+
+  /**
+   * Check that a full flash image contains a valid checksum in its last two bytes
+   * @param flash flash image
+   * @return true if checksum is valid
+   */
+  static boolean hasChecksum (byte[] flash) {
+    return crc16(flash, 0, flash.length) == 0;
+  }
+
+  /**
+   * Write the checksum for code[] to the last flash page and then verify flash using CRCSCAN
+   * @param prog      Programmer (must be in program mode and code[] must have already been written)
+   * @param code      code image
+   * @param pageSize  target's flash page size (in bytes)
+   * @param flashSize size of target's flash (in bytes)
+   * @return true if verified, false if not supported, or failed (caller should verify by reading back)
+   */
+  static boolean writeAndVerify (Programmer prog, byte[] code, int pageSize, int flashSize) {
+    byte[] image = prog.canCrcScan() ? addChecksum(code, flashSize) : null;
+    if (image != null) {
+      try {
+        BitSet lastPage = new BitSet();
+        lastPage.set(flashSize / pageSize - 1);
+        prog.writeFlashPages(0, image, pageSize, lastPage);
+        return prog.crcScanFlash();
+      } catch (Programmer.EDBGException ex) {
+        // Fall back to readback verify
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Verify a single read of all of flash using its stored checksum and CRCSCAN
+   * @param prog  Programmer
+   * @param flash bytes read from all of flash
+   * @return true if verified, false if not supported, or failed (caller should read flash again and compare)
+   */
+  static boolean verifyRead (Programmer prog, byte[] flash) {
+    if (prog.canCrcScan() && hasChecksum(flash)) {
+      try {
+        return prog.crcScanFlash();
+      } catch (Programmer.EDBGException ex) {
+        // Fall back to second read
+      }
+    }
+    return false;
+  }
+}
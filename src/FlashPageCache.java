@@ -0,0 +1,193 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.prefs.Preferences;
+import java.util.zip.CRC32;
+
+  /*
+   * Keeps a CRC32 hash of each flash page in the last image written to a target, keyed by the target's serial
+   * number, so that "Program Flash" can erase and rewrite only the pages that differ from what is already on
+   * the target.  Hashes are stored in the "flash_cache" node of MegaTinyIDE's Preferences as a string of
+   * 8 digit hex values (one per page), along with the page size they were computed for.  If the page size
+   * doesn't match the target's (such as when a different chip now has the same serial key), the cached hashes
+   * are treated as missing.
+   *
+   * If the target has no cached hashes, it's programmed using a chip erase followed by a full write.  Otherwise,
+   * the target is checked to see if it still contains the last image written and only pages that differ are
+   * erased and written.  If on-chip CRC verification is in use (see FlashCrc), this check compares the checksum
+   * stored in the last two bytes of flash with the cached checksum of the last image and runs CRCSCAN.  If not,
+   * or if this check fails, flash is read back and compared against the new image.
+   * Pages that were used by the previous image, but not by the new image, are erased (rewritten with 0xFF) so
+   * the result is the same as a chip erase followed by a full write.
+   */
+class FlashPageCache {
+  private static final String CRC_SUFFIX = ".crc";
+  private static final String PAGE_SUFFIX = ".page";
+  private final Preferences   prefs;
+  private String              lastSerial;
+
+  FlashPageCache (Preferences prefs) {
+    this.prefs = prefs.node("flash_cache");
+  }
+
+  /**
+   * Program data[] into the target's flash starting at address 0x0000, erasing and writing only pages that
+   * differ if the target's serial number has cached page hashes
+   * @param prog     Programmer (must be in program mode)
+   * @param data     code image
+   * @param pageSize target's flash page size (in bytes)
+   * @param flashSize size of target's flash if on-chip CRC verification is in use, else 0
+   * @return number of pages written
+   */
+  int program (Programmer prog, byte[] data, int pageSize, int flashSize) throws Programmer.EDBGException {
+    int numPages = (data.length + pageSize - 1) / pageSize;
+    lastSerial = getKey(prog.getDeviceSerialNumber());
+    int[] cached = get(lastSerial, pageSize);
+    int cachedCrc = prefs.getInt(lastSerial + CRC_SUFFIX, -1);
+    remove(lastSerial);                                       // Forget hashes until write succeeds
+    if (cached != null) {
+      int total = Math.max(numPages, cached.length);
+      byte[] image = padImage(data, total * pageSize);
+      BitSet pages = new BitSet(total);
+      if (flashSize > 0 && cachedCrc >= 0 && matchesChecksum(prog, pageSize, flashSize, cachedCrc)) {
+        // Target still holds the last image, so compare hashes of the new image with the cached hashes
+        int[] hashes = hashPages(image, pageSize);
+        int blank = hashPages(padImage(new byte[0], pageSize), pageSize)[0];
+        for (int ii = 0; ii < total; ii++) {
+          if (hashes[ii] != (ii < cached.length ? cached[ii] : blank)) {
+            pages.set(ii);
+          }
+        }
+      } else {
+        byte[] current = prog.readFlash(0, image.length);
+        for (int ii = 0; ii < total; ii++) {
+          if (!pageEquals(image, current, ii * pageSize, pageSize)) {
+            pages.set(ii);
+          }
+        }
+      }
+      try {
+        if (!pages.isEmpty()) {
+          prog.writeFlashPages(0, image, pageSize, pages);
+        }
+        put(lastSerial, data, pageSize, flashSize);
+        return pages.cardinality();
+      } catch (Programmer.EDBGException ex) {
+        // Fall through to full erase and write
+      }
+    }
+    byte[] image = padImage(data, numPages * pageSize);
+    prog.eraseTarget(0, 0);
+    prog.writeFlash(0, image);
+    put(lastSerial, data, pageSize, flashSize);
+    return numPages;
+  }
+
+  /**
+   * Check that the checksum in the last two bytes of flash is the cached checksum and that CRCSCAN reports
+   * that flash matches it
+   */
+  private static boolean matchesChecksum (Programmer prog, int pageSize, int flashSize, int crc) {
+    try {
+      byte[] lastPage = prog.readFlash(flashSize - pageSize, pageSize);
+      return FlashCrc.getChecksum(lastPage) == crc && prog.crcScanFlash();
+    } catch (Programmer.EDBGException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Cache the page hashes and, if flashSize > 0, the flash checksum for data[]
+   */
+  private void put (String serial, byte[] data, int pageSize, int flashSize) {
+    int numPages = (data.length + pageSize - 1) / pageSize;
+    put(serial, hashPages(padImage(data, numPages * pageSize), pageSize), pageSize);
+    byte[] image = flashSize > 0 ? FlashCrc.addChecksum(data, flashSize) : null;
+    if (image != null) {
+      prefs.putInt(serial + CRC_SUFFIX, FlashCrc.getChecksum(image));
+    }
+  }
+
+  /**
+   * Discard the cached hashes for the target last programmed (such as after a failed verify)
+   */
+  void invalidate () {
+    if (lastSerial != null) {
+      remove(lastSerial);
+    }
+  }
+
+  private static String getKey (byte[] serial) {
+    StringBuilder buf = new StringBuilder();
+    // Note: EDBG reads 10 serial number bytes and SDBG reads 13, so only use the first 10 bytes
+    for (int ii = 0; ii < Math.min(serial.length, 10); ii++) {
+      buf.append(String.format("%02X", serial[ii] & 0xFF));
+    }
+    return buf.toString();
+  }
+
+  private static byte[] padImage (byte[] data, int len) {
+    byte[] image = new byte[len];
+    Arrays.fill(image, (byte) 0xFF);
+    System.arraycopy(data, 0, image, 0, Math.min(data.length, len));
+    return image;
+  }
+
+  private static boolean pageEquals (byte[] a, byte[] b, int off, int len) {
+    for (int ii = off; ii < off + len; ii++) {
+      if (a[ii] != b[ii]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static int[] hashPages (byte[] image, int pageSize) {
+    int[] hashes = new int[image.length / pageSize];
+    CRC32 crc = new CRC32();
+    for (int ii = 0; ii < hashes.length; ii++) {
+      crc.reset();
+      crc.update(image, ii * pageSize, pageSize);
+      hashes[ii] = (int) crc.getValue();
+    }
+    return hashes;
+  }
+
+  /**
+   * Get the cached page hashes for a target
+   * @param serial   target's serial number key
+   * @param pageSize target's flash page size (in bytes)
+   * @return hashes, or null if none are cached, or they were computed for a different page size
+   */
+  int[] get (String serial, int pageSize) {
+    String val = prefs.get(serial, null);
+    if (val == null || val.length() % 8 != 0 || prefs.getInt(serial + PAGE_SUFFIX, 0) != pageSize) {
+      return null;
+    }
+    int[] hashes = new int[val.length() / 8];
+    try {
+      for (int ii = 0; ii < hashes.length; ii++) {
+        hashes[ii] = (int) Long.parseLong(val.substring(ii * 8, ii * 8 + 8), 16);
+      }
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+    return hashes;
+  }
+
+  void put (String serial, int[] hashes, int pageSize) {
+    StringBuilder buf = new StringBuilder();
+    for (int hash : hashes) {
+      buf.append(String.format("%08X", hash));
+    }
+    if (buf.length() <= Preferences.MAX_VALUE_LENGTH) {
+      prefs.put(serial, buf.toString());
+      prefs.putInt(serial + PAGE_SUFFIX, pageSize);
+    }
+  }
+
+  void remove (String serial) {
+    prefs.remove(serial);
+    prefs.remove(serial + CRC_SUFFIX);
+    prefs.remove(serial + PAGE_SUFFIX);
+  }
+}
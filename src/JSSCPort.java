@@ -1,5 +1,5 @@
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 import java.util.prefs.Preferences;
 import java.util.regex.Pattern;
 
@@ -18,6 +18,14 @@ import javax.swing.event.MenuListener;
  *
  *  Note: updated code to: 2.9.2, see: https://github.com/java-native/jssc/releases, requires slf4j-simple-1.7.9.jar
  *
+ *  When opened with a handler, each block of bytes received is passed to the handler's rxBytes() method.  When
+ *  opened with openBuffered(), received bytes go into a lock-free, single producer/single consumer ring buffer
+ *  (written only by the event thread) and readBytes() pulls them directly from the ring.  If the ring fills
+ *  because nothing is reading, new bytes are dropped.  Otherwise, readBytes() reads directly from the port.
+ *  Readers that don't block, such as SerialMonitor and UPDITrace, use readAvailable() instead of readBytes().
+ *  Note: JSSC can only return received bytes in a new byte[], so the event thread allocates one array per
+ *  RXCHAR event, but readBytes(buf, off, count, timeout) then copies from the ring straight into buf[].
+ *
  *  CH340E (~ indicates active Low, 3 mA source, 4 mA sink for all outputs)
  *
  *                  +--------+
@@ -31,7 +39,12 @@ import javax.swing.event.MenuListener;
 
 public class JSSCPort implements SerialPortEventListener {
   private static final Map<String,Integer>  baudRates = new LinkedHashMap<>();
-  private final ArrayBlockingQueue<Integer> queue = new ArrayBlockingQueue<>(1000);
+  private static final int                  RING_SIZE = 65536;      // Must be a power of 2
+  private static final long                 POLL_NS = 100000;       // Time between checks for RX bytes (ns)
+  private final byte[]                      ring = new byte[RING_SIZE];
+  private volatile long                     head;                   // Total bytes written (only by serialEvent())
+  private volatile long                     tail;                   // Total bytes read (only by readBytes())
+  private volatile long                     dropped;                // Bytes dropped because the ring was full
   private static Pattern                    macPat = Pattern.compile("cu.");
   private static final int                  flowCtrl = SerialPort.FLOWCONTROL_NONE;
   private static final int                  eventMasks = SerialPort.MASK_RXCHAR | SerialPort.MASK_BREAK;
@@ -42,11 +55,23 @@ public class JSSCPort implements SerialPortEventListener {
   private final boolean                     setDTR = false;
   private SerialPort                        serialPort;
   private final List<RXEvent>               rxHandlers = new ArrayList<>();
-  private boolean                           hasRxHandler;
+  private boolean                           listening, buffered;
 
   interface RXEvent {
     void rxChar (byte cc);
     void breakEvent ();
+
+    /**
+     * Called with each block of bytes received (override to handle bytes in bulk)
+     * @param data array holding bytes received
+     * @param off  offset into data[] of first byte
+     * @param len  number of bytes
+     */
+    default void rxBytes (byte[] data, int off, int len) {
+      for (int ii = off; ii < off + len; ii++) {
+        rxChar(data[ii]);
+      }
+    }
   }
 
   static {
@@ -93,21 +118,21 @@ public class JSSCPort implements SerialPortEventListener {
 
   public byte[] readBytes (int size) throws SerialPortException {
     try {
-      return serialPort.readBytes(size, 100);
+      return readBytes(size, 100);
     } catch (SerialPortTimeoutException ex) {
       throw new IllegalStateException("readBytes() Timeout");
     }
   }
 
   public void sendBreak () throws SerialPortException {
-    serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+    purgePort(SerialPort.PURGE_RXCLEAR);
     serialPort.setParams(SerialPort.BAUDRATE_300, dataBits, stopBits, parity, setRTS, setDTR);
     serialPort.writeBytes(new byte[] {0});
     readBytes(1);
     try {
       Thread.sleep(5);
     } catch (InterruptedException ex) {}
-    serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+    purgePort(SerialPort.PURGE_RXCLEAR);
     serialPort.setParams(baudRate, dataBits, stopBits, parity, setRTS, setDTR);
   }
 
@@ -116,12 +141,12 @@ public class JSSCPort implements SerialPortEventListener {
    * @throws SerialPortException
    */
   public void sendDoubleBreak () throws SerialPortException {
-    serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+    purgePort(SerialPort.PURGE_RXCLEAR);
     for (int ii = 0; ii < 2; ii++) {
       sendBreak();
-      serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+      purgePort(SerialPort.PURGE_RXCLEAR);
     }
-    serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+    purgePort(SerialPort.PURGE_RXCLEAR);
   }
 
   /**
@@ -158,12 +183,44 @@ public class JSSCPort implements SerialPortEventListener {
     this.parity = parity;
   }
 
+  /**
+   * Change the baud rate (if the port is open, the new rate takes effect immediately)
+   * @param baudRate new baud rate
+   * @throws SerialPortException on error
+   */
+  void setBaudRate (int baudRate) throws SerialPortException {
+    this.baudRate = baudRate;
+    if (serialPort != null && serialPort.isOpened()) {
+      serialPort.setParams(baudRate, dataBits, stopBits, parity, setRTS, setDTR);
+    }
+  }
+
+  /**
+   * Get name of port selected by setPort(), or from prefs
+   * @return port name, or null if none selected
+   */
+  public String getPortName () {
+    return portName;
+  }
+
   /**
    * Open serial port and assign RX handler
    * @param handler RX handler
    * @throws SerialPortException on error
    */
   void open (RXEvent handler) throws SerialPortException {
+    open(handler, handler != null);
+  }
+
+  /**
+   * Open serial port and buffer received bytes in the ring buffer for readBytes()
+   * @throws SerialPortException on error
+   */
+  void openBuffered () throws SerialPortException {
+    open(null, true);
+  }
+
+  private void open (RXEvent handler, boolean listen) throws SerialPortException {
     if (serialPort != null) {
       if (serialPort.isOpened()) {
         close();
@@ -172,10 +229,11 @@ public class JSSCPort implements SerialPortEventListener {
     if (portName != null) {
       synchronized (this) {
         if (handler != null) {
-          hasRxHandler = true;
           rxHandlers.add(handler);
         }
       }
+      tail = head;
+      buffered = listen && handler == null;
       serialPort = new SerialPort(portName);
       serialPort.openPort();
       serialPort.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
@@ -183,8 +241,9 @@ public class JSSCPort implements SerialPortEventListener {
       serialPort.setEventsMask(eventMasks);
       serialPort.setFlowControlMode(flowCtrl);
       purgePort(SerialPort.PURGE_RXCLEAR + SerialPort.PURGE_TXCLEAR);
-      if (handler != null) {
+      if (listen) {
         serialPort.addEventListener(this);
+        listening = true;
       }
     }
   }
@@ -197,9 +256,11 @@ public class JSSCPort implements SerialPortEventListener {
       synchronized (this) {
         rxHandlers.clear();
       }
-      if (hasRxHandler) {
+      if (listening) {
         serialPort.removeEventListener();
+        listening = false;
       }
+      buffered = false;
       serialPort.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
       serialPort.closePort();
       serialPort = null;
@@ -208,6 +269,9 @@ public class JSSCPort implements SerialPortEventListener {
 
   public void purgePort(int flags) throws SerialPortException {
     serialPort.purgePort(flags);
+    if ((flags & SerialPort.PURGE_RXCLEAR) != 0) {
+      tail = head;
+    }
   }
 
   /**
@@ -221,17 +285,11 @@ public class JSSCPort implements SerialPortEventListener {
         int rxCount = se.getEventValue();
         byte[] inChars = serialPort.readBytes(rxCount);
         if (rxHandlers.size() > 0) {
-          for (byte cc : inChars) {
-            for (RXEvent handler : rxHandlers) {
-              handler.rxChar(cc);
-            }
+          for (RXEvent handler : rxHandlers) {
+            handler.rxBytes(inChars, 0, inChars.length);
           }
         } else {
-          for (byte cc : inChars) {
-            if (queue.remainingCapacity() > 0) {
-              queue.add((int) cc);
-            }
-          }
+          ringWrite(inChars);
         }
       } else if (type == SerialPortEvent.BREAK) {
         for (RXEvent handler : rxHandlers) {
@@ -263,9 +321,106 @@ public class JSSCPort implements SerialPortEventListener {
    * @throws SerialPortException
    */
   byte[] readBytes (int count, int timeout) throws SerialPortException, SerialPortTimeoutException {
+    if (buffered) {
+      byte[] data = new byte[count];
+      ringRead(data, 0, count, timeout);
+      return data;
+    }
     return serialPort.readBytes(count, timeout);
   }
 
+  /**
+   * Read bytes from the serial port into buf[] (only opened with openBuffered() reads without allocating a
+   * temporary array for each call)
+   * @param buf array to read into
+   * @param off offset into buf[] of first byte
+   * @param count number of bytes to read
+   * @param timeout timeout vaue (in milliseconds)
+   * @throws SerialPortException
+   */
+  void readBytes (byte[] buf, int off, int count, int timeout) throws SerialPortException, SerialPortTimeoutException {
+    if (buffered) {
+      ringRead(buf, off, count, timeout);
+    } else {
+      System.arraycopy(serialPort.readBytes(count, timeout), 0, buf, off, count);
+    }
+  }
+
+  /**
+   * Add bytes received to the ring buffer (called only from the event thread)
+   * Note: bytes that do not fit are dropped
+   * @param data bytes received
+   */
+  private void ringWrite (byte[] data) {
+    long pos = head;
+    int len = (int) Math.min(data.length, RING_SIZE - (pos - tail));
+    dropped += data.length - len;
+    int idx = (int) pos & (RING_SIZE - 1);
+    int first = Math.min(len, RING_SIZE - idx);
+    System.arraycopy(data, 0, ring, idx, first);
+    System.arraycopy(data, first, ring, 0, len - first);
+    head = pos + len;
+  }
+
+  /**
+   * Wait for count bytes to arrive in the ring buffer and copy them into buf[]
+   * @param buf array to read into
+   * @param off offset into buf[] of first byte
+   * @param count number of bytes to read
+   * @param timeout timeout vaue (in milliseconds)
+   * @throws SerialPortTimeoutException if count bytes do not arrive in time
+   */
+  private void ringRead (byte[] buf, int off, int count, int timeout) throws SerialPortTimeoutException {
+    long pos = tail;
+    long limit = System.nanoTime() + timeout * 1000000L;
+    while (head - pos < count) {
+      if (System.nanoTime() > limit) {
+        throw new SerialPortTimeoutException(serialPort, "readBytes()", timeout);
+      }
+      LockSupport.parkNanos(POLL_NS);
+    }
+    int idx = (int) pos & (RING_SIZE - 1);
+    int first = Math.min(count, RING_SIZE - idx);
+    System.arraycopy(ring, idx, buf, off, first);
+    System.arraycopy(ring, 0, buf, off + first, count - first);
+    tail = pos + count;
+  }
+
+  /**
+   * Copy whatever bytes are waiting in the ring buffer into buf[] without blocking (openBuffered() only)
+   * @param buf array to read into
+   * @param off offset into buf[] of first byte
+   * @param max maximum number of bytes to read
+   * @return number of bytes read (0 if none are waiting)
+   */
+  int readAvailable (byte[] buf, int off, int max) {
+    long pos = tail;
+    int count = (int) Math.min(max, head - pos);
+    int idx = (int) pos & (RING_SIZE - 1);
+    int first = Math.min(count, RING_SIZE - idx);
+    System.arraycopy(ring, idx, buf, off, first);
+    System.arraycopy(ring, 0, buf, off + first, count - first);
+    tail = pos + count;
+    return count;
+  }
+
+  /**
+   * Get the total number of bytes written to the ring buffer (openBuffered() only), which is the position in
+   * the received byte stream that the next byte will have
+   * @return bytes received since the JSSCPort was created (not counting bytes dropped)
+   */
+  long getReceived () {
+    return head;
+  }
+
+  /**
+   * Get the number of received bytes dropped because the ring buffer was full
+   * @return bytes dropped since the JSSCPort was created
+   */
+  long getDropped () {
+    return dropped;
+  }
+
   /**
    * Send string to TX
    * @param data string to send
@@ -287,7 +442,7 @@ public class JSSCPort implements SerialPortEventListener {
         // Populate menu on demand
         menu.removeAll();
         ButtonGroup group = new ButtonGroup();
-        for (String pName : SerialPortList.getPortNames(macPat)) {
+        for (String pName : DeviceRegistry.getPortNames(JSSCPort.this)) {
           JRadioButtonMenuItem item = new JRadioButtonMenuItem(pName, pName.equals(portName));
           //menu.setVisible(true);
           menu.add(item);
@@ -309,12 +464,12 @@ public class JSSCPort implements SerialPortEventListener {
   }
 
   /**
-   * Scan for conntected USB serial devices
+   * Get conntected USB serial devices (from DeviceRegistry's latest scan)
    * @return List of connected serial device names
    */
   List<String> getSerialDeviceNames () {
     List<String> list = new ArrayList<>();
-    for (String pName : SerialPortList.getPortNames(macPat)) {
+    for (String pName : DeviceRegistry.getPortNames(this)) {
       if (!pName.toLowerCase(Locale.ROOT).contains("bluetooth")) {
         list.add(pName);
       }
@@ -322,6 +477,14 @@ public class JSSCPort implements SerialPortEventListener {
     return list;
   }
 
+  /**
+   * Scan for serial ports (slow on some systems, so use getSerialDeviceNames(), which uses DeviceRegistry)
+   * @return List of serial port names
+   */
+  List<String> scanPortNames () {
+    return Arrays.asList(SerialPortList.getPortNames(macPat));
+  }
+
   /**
    * Returns JMenu that can be used to select the serial port's baud rate
    * @return Baud rate JMenu
@@ -0,0 +1,170 @@
+import java.util.Map;
+import java.util.TreeMap;
+
+  /*
+   * Always-on transport instrumentation for EDBG and SDBG
+   *
+   * For each programmer model (the "name" attribute in programmers.props, or "Serial UPDI") this keeps, for each
+   * command (EDBG AVR command, or UPDI instruction), a count, total, min and max latency, a latency histogram,
+   * the number of HID fragments used, failures and retries.  It also keeps the number of bytes read and written,
+   * and the time taken to move them, for each memory type.  Recording a sample only does a map lookup and a few
+   * additions, so it's cheap enough to leave enabled.  report() formats the counters for the Monitor pane and
+   * toCsv() formats them for export.
+   */
+class LinkStats {
+  // Upper bound (in microseconds) of each histogram bucket (last bucket counts everything slower)
+  private static final long[]                 BUCKETS = {50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000,
+                                                         50000, 100000, 200000, 500000, Long.MAX_VALUE};
+  private final Map<String,Map<String,Cmd>>   cmds = new TreeMap<>();
+  private final Map<String,Map<String,Mem>>   mems = new TreeMap<>();
+
+  private static final class Cmd {
+    private long        count, totalNs, maxNs, minNs = Long.MAX_VALUE;
+    private long        fragments, failures, retries;
+    private final long[] hist = new long[BUCKETS.length];
+  }
+
+  private static final class Mem {
+    private long        readBytes, readNs, writeBytes, writeNs;
+  }
+
+  /**
+   * Record one command
+   * @param tool      programmer model
+   * @param cmd       command name
+   * @param ns        latency (in nanoseconds)
+   * @param fragments HID fragments sent and received (0 if not applicable)
+   * @param failed    true if the command failed, or timed out
+   */
+  synchronized void command (String tool, String cmd, long ns, int fragments, boolean failed) {
+    Cmd entry = getCmd(tool, cmd);
+    entry.count++;
+    entry.totalNs += ns;
+    entry.maxNs = Math.max(entry.maxNs, ns);
+    entry.minNs = Math.min(entry.minNs, ns);
+    entry.fragments += fragments;
+    if (failed) {
+      entry.failures++;
+    }
+    long micros = ns / 1000;
+    int bkt = 0;
+    while (micros >= BUCKETS[bkt]) {
+      bkt++;
+    }
+    entry.hist[bkt]++;
+  }
+
+  /**
+   * Record a retry of an operation
+   * @param tool programmer model
+   * @param cmd  name of operation retried
+   */
+  synchronized void retry (String tool, String cmd) {
+    getCmd(tool, cmd).retries++;
+  }
+
+  /**
+   * Record bytes read from, or written to a memory type
+   * @param tool    programmer model
+   * @param memType memory type name, such as "FLASH_PAGE"
+   * @param write   true if bytes were written, else read
+   * @param count   number of bytes
+   * @param ns      time taken (in nanoseconds)
+   */
+  synchronized void bytes (String tool, String memType, boolean write, int count, long ns) {
+    Mem entry = mems.computeIfAbsent(tool, k -> new TreeMap<>()).computeIfAbsent(memType, k -> new Mem());
+    if (write) {
+      entry.writeBytes += count;
+      entry.writeNs += ns;
+    } else {
+      entry.readBytes += count;
+      entry.readNs += ns;
+    }
+  }
+
+  private Cmd getCmd (String tool, String cmd) {
+    return cmds.computeIfAbsent(tool, k -> new TreeMap<>()).computeIfAbsent(cmd, k -> new Cmd());
+  }
+
+  synchronized void reset () {
+    cmds.clear();
+    mems.clear();
+  }
+
+  /**
+   * Format the counters as a table for the Monitor pane
+   * @return formatted text
+   */
+  synchronized String report () {
+    StringBuilder buf = new StringBuilder();
+    if (cmds.isEmpty()) {
+      return "Transport Stats: no commands recorded\n";
+    }
+    for (String tool : cmds.keySet()) {
+      buf.append(String.format("Transport Stats: %s\n", tool));
+      buf.append(String.format("  %-26s %8s %9s %9s %9s %6s %6s %6s\n", "Command", "Count", "Avg us", "Min us",
+          "Max us", "Frags", "Fails", "Retry"));
+      for (Map.Entry<String,Cmd> ent : cmds.get(tool).entrySet()) {
+        Cmd cmd = ent.getValue();
+        if (cmd.count > 0) {
+          buf.append(String.format("  %-26s %8d %9d %9d %9d %6d %6d %6d\n", ent.getKey(), cmd.count,
+              cmd.totalNs / cmd.count / 1000, cmd.minNs / 1000, cmd.maxNs / 1000, cmd.fragments, cmd.failures,
+              cmd.retries));
+        } else {
+          buf.append(String.format("  %-26s %8d %9s %9s %9s %6d %6d %6d\n", ent.getKey(), 0, "-", "-", "-", 0, 0,
+              cmd.retries));
+        }
+      }
+      Map<String,Mem> memMap = mems.get(tool);
+      if (memMap != null) {
+        buf.append(String.format("  %-26s %10s %12s %10s %12s\n", "Memory", "Read", "Read B/s", "Written",
+            "Write B/s"));
+        for (Map.Entry<String,Mem> ent : memMap.entrySet()) {
+          Mem mem = ent.getValue();
+          buf.append(String.format("  %-26s %,10d %,12d %,10d %,12d\n", ent.getKey(), mem.readBytes,
+              rate(mem.readBytes, mem.readNs), mem.writeBytes, rate(mem.writeBytes, mem.writeNs)));
+        }
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Format the counters as CSV (one row per command, followed by one row per memory type)
+   * @return CSV text
+   */
+  synchronized String toCsv () {
+    StringBuilder buf = new StringBuilder();
+    buf.append("tool,command,count,total_us,min_us,max_us,fragments,failures,retries");
+    for (long bound : BUCKETS) {
+      buf.append(bound == Long.MAX_VALUE ? ",us_over" : ",us_lt_" + bound);
+    }
+    buf.append('\n');
+    for (String tool : cmds.keySet()) {
+      for (Map.Entry<String,Cmd> ent : cmds.get(tool).entrySet()) {
+        Cmd cmd = ent.getValue();
+        buf.append(String.format("\"%s\",\"%s\",%d,%d,%d,%d,%d,%d,%d", tool, ent.getKey(), cmd.count,
+            cmd.totalNs / 1000, cmd.count > 0 ? cmd.minNs / 1000 : 0, cmd.maxNs / 1000, cmd.fragments,
+            cmd.failures, cmd.retries));
+        for (long count : cmd.hist) {
+          buf.append(',').append(count);
+        }
+        buf.append('\n');
+      }
+    }
+    buf.append('\n');
+    buf.append("tool,memory,read_bytes,read_us,written_bytes,write_us\n");
+    for (String tool : mems.keySet()) {
+      for (Map.Entry<String,Mem> ent : mems.get(tool).entrySet()) {
+        Mem mem = ent.getValue();
+        buf.append(String.format("\"%s\",\"%s\",%d,%d,%d,%d\n", tool, ent.getKey(), mem.readBytes,
+            mem.readNs / 1000, mem.writeBytes, mem.writeNs / 1000));
+      }
+    }
+    return buf.toString();
+  }
+
+  private static long rate (long bytes, long ns) {
+    return ns > 0 ? bytes * 1000000000L / ns : 0;
+  }
+}
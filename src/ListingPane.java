@@ -604,7 +604,8 @@ public class ListingPane extends JPanel {   // https://regex101.com
         debugListener.debugState(active);
       }
       if (active) {
-        ide.appendToInfoPane(String.format("Debugger Attached (%d bps, Vcc = %1.2f volts)\n", EDBG.UPDIClock * 1000, debugger.targetVoltage()));
+        int clock = debugger instanceof EDBG ? ((EDBG) debugger).getUpdiClock() : EDBG.UPDIClock;
+        ide.appendToInfoPane(String.format("Debugger Attached (%d bps, Vcc = %1.2f volts)\n", clock * 1000, debugger.targetVoltage()));
       } else {
         ide.appendToInfoPane("Debugger Detached\n");
       }
@@ -983,11 +984,12 @@ public class ListingPane extends JPanel {   // https://regex101.com
     public void updateState (boolean showChange) {
       try {
         if (debugger != null) {
-          byte[] regs = debugger.readRegisters(0, 32);
-          int pc = debugger.getProgramCounter();
+          Programmer.DebugState state = debugger.getDebugState(portMask);
+          byte[] regs = state.getRegs();
+          int pc = state.pc;
           highlightAddress(pc);
-          byte flags = debugger.getStatusRegister();
-          int sp = debugger.getStackPointer();
+          byte flags = state.sreg;
+          int sp = state.sp;
           //                             Offset = 8          Offset = 0
           // PORTA Base = 0x0400, PORTA.IN = 0x0408, PORTA.DIR = 0x0400
           // PORTB Base = 0x0420, PORTB.IN = 0x0428, PORTB.DIR = 0x0420
@@ -999,18 +1001,18 @@ public class ListingPane extends JPanel {   // https://regex101.com
           //
           boolean portAUsed = (portMask & 0xFF) != 0;
           if (portAUsed) {
-            vPrtA = debugger.readSRam(0x0408, 1)[0];         // PORTA.IN
-            vDirA = debugger.readSRam(0x0400, 1)[0];         // PORTA.DIR
+            vPrtA = state.getPortIn(0);                       // PORTA.IN
+            vDirA = state.getPortDir(0);                      // PORTA.DIR
           }
           boolean portBUsed = (portMask & 0xFF00) != 0;
           if (portBUsed) {
-            vPrtB = debugger.readSRam(0x0428, 1)[0];         // PORTB.IN
-            vDirB = debugger.readSRam(0x0420, 1)[0];         // PORTB.DIR
+            vPrtB = state.getPortIn(1);                       // PORTB.IN
+            vDirB = state.getPortDir(1);                      // PORTB.DIR
           }
           boolean portCUsed = (portMask & 0xFF0000) != 0;
           if (portCUsed) {
-            vPrtC = debugger.readSRam(0x0448, 1)[0];         // PORTC.IN
-            vDirC = debugger.readSRam(0x0440, 1)[0];         // PORTC.DIR
+            vPrtC = state.getPortIn(2);                       // PORTC.IN
+            vDirC = state.getPortDir(2);                      // PORTC.DIR
           }
           SwingUtilities.invokeLater(() -> {
             setRegs(regs, showChange);
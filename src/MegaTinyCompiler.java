@@ -3,10 +3,21 @@ import cpp14.CPP14ProtoGen;
 import javax.swing.*;
 import java.io.*;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -28,6 +39,8 @@ import java.util.stream.Stream;
 
 class MegaTinyCompiler {
   private static final String fileSep = System.getProperty("file.separator");
+  private static final String CORE_LIB = "libcore.a";
+  private static final String CORE_PREFIX = "core-";            // Saved libraries are core-<tool>-<chip>-<clock>-<key>.a
 
   private static final String preProC = "avr-gcc " +                  // https://linux.die.net/man/1/avr-g++
                                         "-w " +                       // Inhibit all warning messages
@@ -38,6 +51,7 @@ class MegaTinyCompiler {
                                         "-mmcu=*[CHIP]* " +           // Select CHIP microcontroller type
                                         "*[ARDUINO]* " +              // #defines for Arduino code
                                         "-I *[TDIR]* " +              // Also search in temp directory for header files
+                                        "*[RINC]*" +                  // Also search in staged variant and Arduino files
                                         "-I *[IDIR]* " +              // Also search in user's src directory for header files
                                         "*[SDIR]**[FILE]* ";          // Source file is temp/FILE.x
 
@@ -51,6 +65,7 @@ class MegaTinyCompiler {
                                         "-mmcu=*[CHIP]* " +           // Select CHIP microcontroller type
                                         "*[ARDUINO]* " +              // #defines for Arduino code
                                         "-I *[TDIR]* " +              // Also search in temp directory for header files
+                                        "*[RINC]*" +                  // Also search in staged variant and Arduino files
                                         "-I *[IDIR]* " +              // Also search in user's src directory for header files
                                         "*[SDIR]**[FILE]* ";          // Source file is temp/FILE.x
 
@@ -72,8 +87,11 @@ class MegaTinyCompiler {
                                         "*[ARDUINO]* " +              // #defines for Arduino code
                                         "*[DEFINES]* " +              // Add in conditional #defines, if any
                                         "-I *[TDIR]* " +              // Also search in temp directory for header files
-                                        "-I *[IDIR]* " +              // Also search in user directory for header files
+                                        "*[RINC]*" +                  // Also search in staged variant and Arduino files
+                                        "*[UINC]*" +                  // Also search in user directory for header files
                                         "*[SDIR]**[FILE]* " +         // Source file is temp/FILE.x
+                                        "-MMD " +                     // Write dependencies (used by ObjectCache)
+                                        "-MF *[TDIR]**[FILE]*.d " +   //   to temp/FILE.x.d
                                         "-o *[TDIR]**[FILE]*.o ";     // Output to file temp/FILE.x.o
 
   private static final String compC = "avr-gcc " +                    // https://linux.die.net/man/1/avr-gcc
@@ -92,8 +110,11 @@ class MegaTinyCompiler {
                                         "*[DEFINES]* " +              // Add in conditional #defines, if any
                                         "-fno-fat-lto-objects " +     //
                                         "-I *[TDIR]* " +              // Also search in temp directory for header files
-                                        "-I *[IDIR]* " +              // Also search in user directory for header files
+                                        "*[RINC]*" +                  // Also search in staged variant and Arduino files
+                                        "*[UINC]*" +                  // Also search in user directory for header files
                                         "*[SDIR]**[FILE]* " +         // Source file is temp/FILE.x
+                                        "-MMD " +                     // Write dependencies (used by ObjectCache)
+                                        "-MF *[TDIR]**[FILE]*.d " +   //   to temp/FILE.x.d
                                         "-o *[TDIR]**[FILE]*.o ";     // Output to file temp/FILE.x.o
 
   private static final String compAsm = "avr-gcc " +                  // https://linux.die.net/man/1/avr-gcc
@@ -107,8 +128,11 @@ class MegaTinyCompiler {
                                         "*[ARDUINO]* " +              // #defines for Arduino code
                                         "*[DEFINES]* " +              // Add in conditional #defines, if any
                                         "-I *[TDIR]* " +              // Also search in temp directory for header files
-                                        "-I *[IDIR]* " +              // Also search in user directory for header files
+                                        "*[RINC]*" +                  // Also search in staged variant and Arduino files
+                                        "*[UINC]*" +                  // Also search in user directory for header files
                                         "*[SDIR]**[FILE]* " +         // Source file is temp/FILE.x
+                                        "-MMD " +                     // Write dependencies (used by ObjectCache)
+                                        "-MF *[TDIR]**[FILE]*.d " +   //   to temp/FILE.x.d
                                         "-o *[TDIR]**[FILE]*.o ";     // Output to file temp/FILE.x.o
 
   private static final String link = "avr-gcc " +                     // https://linux.die.net/man/1/avr-g++
@@ -127,6 +151,11 @@ class MegaTinyCompiler {
                                         "-L*[TDIR]* " +               // Also search in temp dir for -l option
                                         "-lm ";                       // Link Math library (??)
 
+  private static final String archive = "avr-gcc-ar " +              // https://linux.die.net/man/1/avr-ar (with LTO plugin)
+                                        "rcs " +                      // Add objects, create archive and write index
+                                        "*[TDIR]**[AFILE]* " +        // Output to file temp/AFILE
+                                        "*[LIST]*";                   // List of object files (each prefixed by temp/)
+
   private static final String list = "avr-objdump " +                 // https://linux.die.net/man/1/avr-objdump
                                         "-d " +                       // Disassemble code
                                         "*[INTLV]* " +                // If enabled, source code intermixed with disassembly
@@ -297,14 +326,20 @@ class MegaTinyCompiler {
     try {
       // Copy contents of "source" pane to source file with appropriate extension for code type
       Utility.saveFile(tmpDir + srcName, src);
-      // Copy "variant" files into tmpDir so compiler can reference them
-      Utility.copyResourcesToDir(chipInfo.variant, tmpDir);
-      // If Arduino project, copy needed files
+      // Use "variant" files, and Arduino files if needed, in place from the staged resources directory
+      List<String> resDirs = new ArrayList<>();
       if (ardiuno) {
         System.out.println("Compile Arduino project");
-        Utility.copyResourcesToDir("arduino", tmpDir);
+        resDirs.add(Utility.stageResources("arduino", tags.get("RDIR")));
+      }
+      resDirs.add(Utility.stageResources(chipInfo.variant, tags.get("RDIR")));
+      StringBuilder resInc = new StringBuilder();
+      for (String resDir : resDirs) {
+        resInc.append("-I ").append(resDir).append(" ");
       }
+      tags.put("RINC", resInc.toString());
       List<CompFile> compFiles = new ArrayList<>();
+      List<CompFile> coreFiles = new ArrayList<>();
       try {
         // Preprocess source code using GNU c or c++ compiler
         tags.put("IDIR", srcDir);     // User #include directory
@@ -394,19 +429,26 @@ class MegaTinyCompiler {
             return out;
           }
         }
-        // Build list of all files to be compiled
-        File file = new File(tmpDir);
-        Path path = file.toPath();
-        Stream<Path> walk = Files.walk(path, FileVisitOption.FOLLOW_LINKS);
-        for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
-          Path item = it.next();
-          String fName = item.getFileName().toString();
-          String[] parts = fName.split("\\.");
-          if (parts.length > 1 && (parts[1].equalsIgnoreCase("c") || parts[1].equalsIgnoreCase("cpp") || parts[1].equalsIgnoreCase("s"))) {
-            String compFile = item.toString().substring(path.toString().length());
-            compFile = compFile.startsWith("/") ? compFile.substring(1) : compFile;
-            if (!compFile.contains("deprecated")) {
-              compFiles.add(new CompFile(tmpDir, tmpDir, compFile));
+        // Build list of all files to be compiled (files from the Arduino core are compiled into the core library)
+        List<String> srcDirs = new ArrayList<>(resDirs);
+        srcDirs.add(0, tmpDir);
+        for (String dir : srcDirs) {
+          Path path = new File(dir).toPath();
+          Stream<Path> walk = Files.walk(path, FileVisitOption.FOLLOW_LINKS);
+          for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
+            Path item = it.next();
+            String fName = item.getFileName().toString();
+            String[] parts = fName.split("\\.");
+            if (parts.length > 1 && (parts[1].equalsIgnoreCase("c") || parts[1].equalsIgnoreCase("cpp") || parts[1].equalsIgnoreCase("s"))) {
+              String compFile = item.toString().substring(path.toString().length());
+              compFile = compFile.startsWith("/") ? compFile.substring(1) : compFile;
+              if (!compFile.contains("deprecated")) {
+                if (ardiuno && tags.get("ADIR") != null && !dir.equals(tmpDir)) {
+                  coreFiles.add(new CompFile(dir, tmpDir, compFile));
+                } else {
+                  compFiles.add(new CompFile(dir, tmpDir, compFile));
+                }
+              }
             }
           }
         }
@@ -418,64 +460,107 @@ class MegaTinyCompiler {
       // Compile source code and add in included code files as they are discovered
       progress = new Utility.ProgressBar(ide, "Compiling and Building");
       StringBuilder linkList = new StringBuilder();
-      progress.setMaximum(compFiles.size());
-      int progCount = 0;
-      progress.setValue(progCount);
+      // Build compile commands in order (tags is shared, so this can't be done by the workers)
+      List<String> cmds = new ArrayList<>();
       for (CompFile compFile : compFiles) {
         linkList.append(tmpDir).append(compFile.file).append(".o ");
-        String tmpExe1 = tags.get("TEXE");
-        String suffix = compFile.file.substring(compFile.file.indexOf("."));
-        tags.put("IDIR", srcDir);           // User #include directory
-        tags.put("SDIR", compFile.srcDir);
-        tags.put("TDIR", compFile.dstDir);
-        tags.put("FILE", compFile.file);
-        String cmd;
-        switch (suffix.toLowerCase()) {
-          case ".c":
-            cmd = Utility.replaceTags(tmpExe1 + "bin" + fileSep + compC, tags);
-            break;
-          case ".cpp":
-            cmd = Utility.replaceTags(tmpExe1 + "bin" + fileSep + compCpp, tags);
-            break;
-          case ".s":
-            cmd = Utility.replaceTags(tmpExe1 + "bin" + fileSep + compAsm, tags);
-            break;
-          default:
-            throw new IllegalStateException("Unknown file type: " + suffix);
+        cmds.add(getCompileCmd(compFile, srcDir, tags));
+      }
+      // Arduino core files are linked from a library saved by earlier builds for this chip and clock, which holds
+      // the core files those builds needed.  Only the core files CoreResolver finds the user's code needs, and which
+      // aren't already in the library, are compiled and then added to it.
+      Map<String, String> coreCmds = new LinkedHashMap<>();
+      CoreResolver resolver = null;
+      Set<String> needed = new HashSet<>();
+      Set<String> inLib = new HashSet<>();
+      String coreLib = null;
+      if (coreFiles.size() > 0) {
+        for (CompFile compFile : coreFiles) {
+          coreCmds.put(compFile.file, getCompileCmd(compFile, null, tags));
         }
-        System.out.println("Compile: " + cmd);
-        Process proc = Runtime.getRuntime().exec(cmd);
-        String ret = Utility.runCmd(proc);
-        int retVal = proc.waitFor();
-        if (retVal != 0) {
-          String msg = "While Compiling: " + compFile.file + "\n" + ret;
+        resolver = new CoreResolver(coreFiles, resDirs);
+        Set<String> names = CoreResolver.getNames(Utility.getFile(tmpDir + srcName));
+        for (CompFile compFile : compFiles) {
+          names.addAll(CoreResolver.getNames(Utility.getFile(compFile.srcDir + compFile.file)));
+        }
+        needed = resolver.resolve(names);
+        if (tags.get("ADIR") != null) {
+          List<String> keyCmds = new ArrayList<>(coreCmds.values());
+          coreLib = tags.get("ADIR") + CORE_PREFIX + getToolKey(keyCmds, tags.get("RINC")) + "-" + chip + "-" +
+                    tags.get("CLOCK") + "-" + getCoreKey(keyCmds) + ".a";
+          File list = new File(getListFile(coreLib));
+          if (new File(coreLib).exists() && list.exists()) {
+            System.out.println("Core: " + coreLib);
+            Files.copy(Paths.get(coreLib), Paths.get(tmpDir + CORE_LIB), StandardCopyOption.REPLACE_EXISTING);
+            inLib.addAll(Files.readAllLines(list.toPath(), StandardCharsets.UTF_8));
+          }
+        }
+        linkList.append(tmpDir).append(CORE_LIB).append(" ");
+      }
+      // Reuse objects from previous builds if enabled (a size of 0 MB disables the cache)
+      String cacheDir = tags.get("CDIR");
+      int cacheSize = prefs.getInt("obj_cache_size", 64);
+      ObjectCache cache = cacheDir != null && cacheSize > 0 ? new ObjectCache(cacheDir, cacheSize * 1024L * 1024L) : null;
+      try {
+        while (true) {
+          // Compile user's files (first pass only) and any needed core files not yet in the library
+          List<CompFile> coreAdd = new ArrayList<>();
+          for (CompFile compFile : coreFiles) {
+            if (needed.contains(compFile.file) && !inLib.contains(compFile.file)) {
+              coreAdd.add(compFile);
+              compFiles.add(compFile);
+              cmds.add(coreCmds.get(compFile.file));
+            }
+          }
+          progress.setMaximum(compFiles.size());
+          progress.setValue(0);
+          String err = compileAll(compFiles, cmds, cache, progress);
+          if (err == null && coreAdd.size() > 0) {
+            err = addToCoreLib(coreAdd, coreLib, inLib, tags);
+          }
+          if (err != null) {
+            tags.put("ERR", err);
+            return tags;
+          }
+          // Link all object files
+          tags.put("LIST", linkList.toString());
+          tags.put("OFILE", srcBase + ".elf");
+          String cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + link, tags);
+          System.out.println("Link: " + cmd);
+          Process proc = Runtime.getRuntime().exec(cmd);
+          String ret = Utility.runCmd(proc);
+          if (proc.waitFor() == 0) {
+            break;
+          }
+          // If the library is missing core files CoreResolver didn't find, add the files that define the undefined
+          // names, or if none do, all the core files, then link again
+          Set<String> undefined = CoreResolver.getUndefined(ret);
+          if (resolver != null && !undefined.isEmpty() && !inLib.containsAll(coreCmds.keySet())) {
+            Set<String> more = resolver.resolve(undefined);
+            more.addAll(needed);
+            needed = inLib.containsAll(more) ? new HashSet<>(coreCmds.keySet()) : more;
+            System.out.println("Resolve: " + undefined);
+            compFiles.clear();
+            cmds.clear();
+            continue;
+          }
+          String msg = "While Linking\n" + ret;
           System.out.println(msg);
           tags.put("ERR", msg);
           return tags;
         }
-        progress.setValue(++progCount);
-      }
-      // Link all object files
-      tags.put("LIST", linkList.toString());
-      tags.put("OFILE", srcBase + ".elf");
-      String cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + link, tags);
-      System.out.println("Link: " + cmd);
-      Process proc = Runtime.getRuntime().exec(cmd);
-      String ret = Utility.runCmd(proc);
-      int retVal = proc.waitFor();
-      if (retVal != 0) {
-        String msg = "While Linking\n" + ret;
-        System.out.println(msg);
-        tags.put("ERR", msg);
-        return tags;
+      } finally {
+        if (cache != null) {
+          cache.trim();
+        }
       }
       // Generate Arduino-like sketch hex output, listing and code/data size info
       for (String[] seq : build) {
-        cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + seq[1], tags);
+        String cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + seq[1], tags);
         System.out.println("Run: " + cmd);
-        proc = Runtime.getRuntime().exec(cmd);
-        ret = Utility.runCmd(proc);
-        retVal = proc.waitFor();
+        Process proc = Runtime.getRuntime().exec(cmd);
+        String ret = Utility.runCmd(proc);
+        int retVal = proc.waitFor();
         if (retVal != 0) {
           String msg = "While Building\n" + ret;
           System.out.println(msg);
@@ -514,6 +599,237 @@ class MegaTinyCompiler {
     return out;
   }
 
+  /**
+   * Build the command to compile a file
+   * @param compFile file to compile
+   * @param srcDir   user's #include directory, or null for Arduino core files, which must not depend on the
+   *                 sketch's headers, as the library they're added to is shared by every sketch
+   * @param tags     tags Map
+   * @return compile command
+   */
+  private static String getCompileCmd (CompFile compFile, String srcDir, Map<String, String> tags) {
+    String tmpExe = tags.get("TEXE");
+    String suffix = compFile.file.substring(compFile.file.indexOf("."));
+    tags.put("UINC", srcDir != null ? "-I " + srcDir + " " : "");
+    tags.put("SDIR", compFile.srcDir);
+    tags.put("TDIR", compFile.dstDir);
+    tags.put("FILE", compFile.file);
+    // Create subdirectory for object file, if needed (such as "api/" for Arduino core files)
+    new File(compFile.dstDir + compFile.file).getParentFile().mkdirs();
+    switch (suffix.toLowerCase()) {
+      case ".c":
+        return Utility.replaceTags(tmpExe + "bin" + fileSep + compC, tags);
+      case ".cpp":
+        return Utility.replaceTags(tmpExe + "bin" + fileSep + compCpp, tags);
+      case ".s":
+        return Utility.replaceTags(tmpExe + "bin" + fileSep + compAsm, tags);
+      default:
+        throw new IllegalStateException("Unknown file type: " + suffix);
+    }
+  }
+
+  /**
+   * Compute a key for the Arduino core library from the compile commands, which include the chip, clock and
+   * #defines, as well as the paths to the staged core and variant files (which change when the files change),
+   * and the toolchain
+   * @param cmds compile commands for the core files
+   * @return 16 digit hex key
+   */
+  private static String getCoreKey (List<String> cmds) throws NoSuchAlgorithmException {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    for (String cmd : cmds) {
+      ObjectCache.hashCommand(md, cmd);
+    }
+    return ObjectCache.toHex(md.digest()).substring(0, 16);
+  }
+
+  /**
+   * Compute a key for the parts of the build environment shared by every core library, which are the toolchain
+   * and the staged core and variant files.  Libraries with a different key can't be used again (unless the
+   * toolchain, or core reverts to an earlier version) so they're deleted when a new library is started.
+   * @param cmds   compile commands for the core files
+   * @param resInc -I options for the staged resource directories
+   * @return 8 digit hex key
+   */
+  private static String getToolKey (List<String> cmds, String resInc) throws NoSuchAlgorithmException {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    md.update(resInc.getBytes(StandardCharsets.UTF_8));
+    Set<String> programs = new TreeSet<>();
+    for (String cmd : cmds) {
+      programs.add(cmd.substring(0, Math.max(0, cmd.indexOf(' '))));
+    }
+    for (String program : programs) {
+      ObjectCache.hashCommand(md, program + " ");
+    }
+    return ObjectCache.toHex(md.digest()).substring(0, 8);
+  }
+
+  /**
+   * Add compiled Arduino core files to temp/libcore.a (which holds a copy of coreLib, if it existed) and, if coreLib
+   * isn't null, save a copy as coreLib, along with a list of the core files it holds, for later builds.  When a new
+   * library is started, libraries built by a different toolchain, or from different core files are deleted, but
+   * those for other chips, clocks and #defines are kept.
+   * @param coreFiles compiled core files to add
+   * @param coreLib   path to save library (or null, if not saved)
+   * @param inLib     core files in library (updated)
+   * @param tags      tags Map
+   * @return null if library was built, else error message
+   */
+  private static String addToCoreLib (List<CompFile> coreFiles, String coreLib, Set<String> inLib,
+                                      Map<String, String> tags) throws IOException, InterruptedException {
+    String tmpDir = tags.get("TDIR");
+    StringBuilder objList = new StringBuilder();
+    for (CompFile compFile : coreFiles) {
+      objList.append(tmpDir).append(compFile.file).append(".o ");
+    }
+    tags.put("LIST", objList.toString());
+    tags.put("AFILE", CORE_LIB);
+    String cmd = Utility.replaceTags(tags.get("TEXE") + "bin" + fileSep + archive, tags);
+    System.out.println("Archive: " + cmd);
+    Process proc = Runtime.getRuntime().exec(cmd);
+    String ret = Utility.runCmd(proc);
+    if (proc.waitFor() != 0) {
+      String msg = "While Archiving\n" + ret;
+      System.out.println(msg);
+      return msg;
+    }
+    boolean newLib = inLib.isEmpty();
+    for (CompFile compFile : coreFiles) {
+      inLib.add(compFile.file);
+    }
+    if (coreLib != null) {
+      try {
+        File lib = new File(coreLib);
+        if (newLib) {
+          String prefix = lib.getName().substring(0, lib.getName().indexOf('-', CORE_PREFIX.length()) + 1);
+          File[] files = lib.getParentFile().listFiles((dir, name) ->
+                                                          name.startsWith(CORE_PREFIX) && !name.startsWith(prefix));
+          if (files != null) {
+            for (File file : files) {
+              file.delete();
+            }
+          }
+        }
+        // Write to temp files, then rename, so a partially written library is never used.  The list is written
+        // last, so if a build is interrupted between the two, the list can only be missing files the library has
+        Path tmp = Paths.get(coreLib + ".tmp");
+        Files.copy(Paths.get(tmpDir + CORE_LIB), tmp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, lib.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.write(tmp, new ArrayList<>(inLib), StandardCharsets.UTF_8);
+        Files.move(tmp, Paths.get(getListFile(coreLib)), StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException ex) {
+        ex.printStackTrace();                 // Not fatal, as missing files are just rebuilt next time
+      }
+    }
+    return null;
+  }
+
+  private static String getListFile (String coreLib) {
+    return coreLib.substring(0, coreLib.length() - 2) + ".lst";
+  }
+
+  /**
+   * Compile each file in compFiles using a pool of worker threads (one per CPU).  Once a file fails, files after
+   * it in compile order are cancelled: those not yet started are skipped and the compilers already running for
+   * them are destroyed and not waited for (their output is neither cached, nor used, as the build has failed).
+   * Files before the failed one are allowed to finish, as one of them may also fail, so the error reported is
+   * always for the first file, in compile order, that fails, just as if the files were compiled one at a time.
+   * Note: Process.destroy() only stops the compiler driver (avr-gcc, or avr-g++), so a compiler pass it already
+   * started may run on briefly, but without the driver it can't go on to produce an object file.
+   * @param compFiles files to compile
+   * @param cmds      compile command for each file in compFiles
+   * @param cache     ObjectCache used to skip compiling unchanged files (or null if disabled)
+   * @param progress  progress bar (advanced as each file is compiled)
+   * @return null if all files compiled, else error message for the first file that failed
+   */
+  private static String compileAll (List<CompFile> compFiles, List<String> cmds, ObjectCache cache,
+                                    Utility.ProgressBar progress)
+      throws InterruptedException {
+    int threads = Math.max(1, Math.min(cmds.size(), Runtime.getRuntime().availableProcessors()));
+    ExecutorService pool = Executors.newFixedThreadPool(threads, run -> {
+      Thread thread = new Thread(run, "Compile");
+      thread.setDaemon(true);
+      return thread;
+    });
+    AtomicInteger failedAt = new AtomicInteger(Integer.MAX_VALUE);   // Index of first file that failed
+    Map<Integer,Process> running = new ConcurrentHashMap<>();         // Compilers running, keyed by index
+    AtomicInteger done = new AtomicInteger();
+    List<Future<String>> results = new ArrayList<>();
+    for (int ii = 0; ii < cmds.size(); ii++) {
+      int idx = ii;
+      String cmd = cmds.get(ii);
+      CompFile compFile = compFiles.get(ii);
+      String file = compFile.file;
+      results.add(pool.submit(() -> {
+        if (idx > failedAt.get()) {
+          return null;                                // Skipped after an earlier failure
+        }
+        try {
+          String objFile = compFile.dstDir + file + ".o";
+          String key = cache != null ? cache.getKey(cmd, compFile.srcDir + file) : null;
+          if (key != null && cache.fetch(key, objFile)) {
+            System.out.println("Cached: " + file);
+          } else {
+            System.out.println("Compile: " + cmd);
+            Process proc = Runtime.getRuntime().exec(cmd);
+            running.put(idx, proc);
+            if (idx > failedAt.get()) {
+              proc.destroy();                         // An earlier file failed while this one was starting
+            }
+            String ret = Utility.runCmd(proc);
+            int status = proc.waitFor();
+            running.remove(idx);
+            if (idx > failedAt.get()) {
+              return null;                            // Cancelled after an earlier failure
+            }
+            if (status != 0) {
+              cancelAfter(idx, failedAt, running);
+              return "While Compiling: " + file + "\n" + ret;
+            }
+            if (key != null) {
+              cache.store(key, objFile, compFile.dstDir + file + ".d");
+            }
+          }
+        } catch (Exception ex) {
+          cancelAfter(idx, failedAt, running);
+          return "While Compiling: " + file + "\n" + ex.getMessage();
+        }
+        synchronized (done) {
+          // Lock so values are posted to the progress bar in order
+          progress.setValue(done.incrementAndGet());
+        }
+        return null;
+      }));
+    }
+    pool.shutdown();
+    // Wait for the workers up to the first failure and report it (later files were cancelled)
+    String err = null;
+    for (int ii = 0; ii < results.size() && ii <= failedAt.get(); ii++) {
+      try {
+        String msg = results.get(ii).get();
+        if (err == null && msg != null) {
+          System.out.println(msg);
+          err = msg;
+        }
+      } catch (ExecutionException ex) {
+        err = err != null ? err : ex.getMessage();
+      }
+    }
+    return err;
+  }
+
+  /**
+   * Record that the file at index idx failed and destroy the compilers running for files after it
+   */
+  private static void cancelAfter (int idx, AtomicInteger failedAt, Map<Integer,Process> running) {
+    int first = failedAt.accumulateAndGet(idx, Math::min);
+    for (Map.Entry<Integer,Process> entry : running.entrySet()) {
+      if (entry.getKey() > first) {
+        entry.getValue().destroy();
+      }
+    }
+  }
+
   private static boolean isArduino (String src) {
     // Crude, placeholder test (need something better)
     return src.contains("setup") && src.contains("loop");
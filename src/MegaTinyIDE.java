@@ -34,22 +34,24 @@ import static javax.swing.JOptionPane.*;
  *  License: MIT (<a href="https://opensource.org/licenses/MIT">...</a>)
  */
 
-public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
+public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener, Programmer.Host {
   private static final String     VERSION_URL = "https://raw.githubusercontent.com/wholder/MegaTinyIDE/master/resources/version.props";
   private static final String     DOWNLOAD = "https://github.com/wholder/MegaTinyIDE/blob/master/out/artifacts/MegaTinyIDE_jar/MegaTinyIDE.jar";
   private static final String     fileSep =  System.getProperty("file.separator");
   private static String           tempBase = System.getProperty("java.io.tmpdir");
   private static final Font       tFont = Utility.getCodeFont(12);
-  private static final int        cmdMask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+  private static final int        cmdMask = GraphicsEnvironment.isHeadless() ? KeyEvent.CTRL_DOWN_MASK :  // For SimHarness
+                                              Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
   private static final KeyStroke  OPEN_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_O, cmdMask) ;
   private static final KeyStroke  LOAD_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_L, cmdMask) ;
   private static final KeyStroke  SAVE_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_S, cmdMask) ;
   private static final KeyStroke  QUIT_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_Q, cmdMask) ;
   private static final KeyStroke  BUILD_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_B, cmdMask) ;
   private static final KeyStroke  DEBUG_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_D, cmdMask) ;
+  private static final int        STATS_MS = 1000;                      // Live Transport Stats refresh period
   static Map<String,ChipInfo>     chipTypes = new LinkedHashMap<>();
   static Map<String,ChipInfo>     chipSignatures = new LinkedHashMap<>();
-  public enum                     Tab {DOC(0), SRC(1), LIST(2), HEX(3), INFO(4);
+  public enum                     Tab {DOC(0), SRC(1), LIST(2), HEX(3), INFO(4), SERIAL(5);
   final int                       num; Tab(int num) {this.num = num;}}
   private final String            osName = System.getProperty("os.name").toLowerCase();
   private enum                    OpSys {MAC, WIN, LINUX}
@@ -61,6 +63,9 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
   private ListingPane             listPane;
   private MyTextPane              hexPane;
   private final MyTextPane        infoPane;
+  private final JTextArea         statsView = new JTextArea();          // Live Transport Stats (below Monitor)
+  private final JScrollPane       statsScroll = new JScrollPane(statsView);
+  private final javax.swing.Timer statsTimer = new javax.swing.Timer(STATS_MS, ev -> updateStatsView());
   private final JMenuItem         openMenu = new JMenuItem("Open");
   private final JMenuItem         debugMenu = new JCheckBoxMenuItem("Show Debugger");
   private final JMenuItem         saveMenu = new JMenuItem("Save");
@@ -72,15 +77,19 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
   private final JMenuItem         readFlash = new JMenuItem("Read Flash");
   private final JMenuItem         disasmFlash = new JMenuItem("Disassemble Flash");
   private final JMenuItem         progFlash = new JMenuItem("Program Flash");
+  private final JMenuItem         progAll = new JMenuItem("Program All...");
   private final JMenuItem         readFuses = new JMenuItem("Read/Modify Fuses");
   private final JMenu             progMenu;
-  private String                  tmpDir, tmpExe;
+  private String                  tmpDir, tmpExe, tmpCache, tmpRes, coreDir;
   private String                  progVidPid;
   private String                  avrChip;
   private String                  editFile;
-  private boolean                 compiled, codeDirty, showDebugger;
+  private boolean                 compiled, codeDirty, showDebugger, crcWarned;
   final Preferences               prefs = Preferences.userRoot().node(this.getClass().getName());
+  final LinkStats                 linkStats = new LinkStats();
   final JSSCPort                  jsscPort = new JSSCPort(prefs);
+  private final FlashPageCache    flashCache = new FlashPageCache(prefs);
+  private final SerialMonitor     serialMonitor;
   boolean                         directHex;
   private File                    cFile;
   private Map<String, String>     compileMap;
@@ -120,6 +129,7 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     readFlash.setEnabled(!active);
     disasmFlash.setEnabled(!active);
     progFlash.setEnabled(!active);
+    progAll.setEnabled(!active);
     readFuses.setEnabled(!active);
     progMenu.setEnabled(!active);
   }
@@ -138,10 +148,98 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     return "wholder".equals(System.getProperty("user.name"));
   }
 
+  /**
+   * Verify data read from all of flash.  If enabled, uses the checksum stored in flash and the target's
+   * CRCSCAN peripheral (see FlashCrc), else reads flash a second time and compares
+   * @param prog Programmer
+   * @param data bytes read from flash
+   * @return true if verified
+   */
+  private boolean verifyFlashRead (Programmer prog, byte[] data) {
+    if (useCrcVerify(prog) && FlashCrc.verifyRead(prog, data)) {
+      return true;
+    }
+    return Arrays.equals(data, prog.readFlash(0, data.length));
+  }
+
+  /**
+   * Check if flash should be verified using the CRCSCAN peripheral, which needs the "crc_verify" preference and
+   * a programmer that can run CRCSCAN in program mode.  If the programmer can't, this is reported once, and flash
+   * is verified by reading it back without writing a checksum to flash.
+   * @param prog Programmer
+   * @return true if CRC verification should be used
+   */
+  private boolean useCrcVerify (Programmer prog) {
+    if (!prefs.getBoolean("crc_verify", false)) {
+      return false;
+    }
+    if (!prog.canCrcScan()) {
+      if (!crcWarned) {
+        crcWarned = true;
+        infoPrintln("On-Chip CRC Verify is only supported by the serial programmer, so flash is read back");
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Show, or hide the Live Transport Stats view below the Monitor pane.  While shown, statsTimer refreshes it
+   * from linkStats every STATS_MS milliseconds, so the counters can be watched while programming, or debugging.
+   */
+  private void showStatsView (boolean show) {
+    statsScroll.setVisible(show);
+    if (show) {
+      updateStatsView();
+      statsTimer.start();
+    } else {
+      statsTimer.stop();
+    }
+    statsScroll.getParent().revalidate();
+  }
+
+  private void updateStatsView () {
+    String report = linkStats.report();
+    if (!report.equals(statsView.getText())) {
+      statsView.setText(report);
+      statsView.setCaretPosition(0);
+    }
+  }
+
+  private void exportLinkStats () {
+    JFileChooser fc = new JFileChooser(prefs.get("default.dir", "/"));
+    fc.setDialogTitle("Export Transport Stats");
+    fc.setFileFilter(new FileNameExtensionFilter("CSV files (*.csv)", "csv"));
+    fc.setSelectedFile(new File("transport_stats.csv"));
+    if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+      File sFile = fc.getSelectedFile();
+      if (!sFile.getName().contains(".")) {
+        sFile = new File(sFile.getAbsolutePath() + ".csv");
+      }
+      if (sFile.exists() && !doWarningDialog("Overwrite Existing file?")) {
+        return;
+      }
+      Utility.saveFile(sFile, linkStats.toCsv());
+      infoPrintln("Transport stats exported to " + sFile.getAbsolutePath());
+    }
+  }
+
   public boolean decodeUpdi () {
     return prefs.getBoolean("decode_updi", false);
   }
 
+  public Preferences getPrefs () {
+    return prefs;
+  }
+
+  public LinkStats getLinkStats () {
+    return linkStats;
+  }
+
+  public JFrame getFrame () {
+    return this;
+  }
+
   public void infoPrintln (String msg) {
     infoPane.append(msg + "\n");
   }
@@ -163,8 +261,11 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
       return programmer;
     }
     if (progVidPid != null && progVidPid.matches("[a-fA-F0-9]{4}\\-[a-fA-F0-9]{4}")) {
-      programmer = new EDBG(this, jsscPort, getProgPidVid(), program);
-     } else if (jsscPort != null && jsscPort.postSelected()) {
+      programmer = EDBG.getInstance(this, jsscPort, getProgPidVid(), program);
+     } else if (SimTarget.SERIAL_PORT.equals(progVidPid)) {
+      SimTarget target = SimTarget.getTarget(chipTypes.get(avrChip));
+      programmer = new SDBG(this, new SimSerialPort(prefs, target, prefs.getInt("sim_latency", 1000)));
+    } else if (jsscPort != null && jsscPort.postSelected()) {
       programmer = new SDBG(this, jsscPort);
     } else {
       throw new IllegalStateException("Unvalid Progerammer");
@@ -298,9 +399,17 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     prefs.putBoolean("symbol_table", prefs.getBoolean("symbol_table", false));
     prefs.putBoolean("vector_names", prefs.getBoolean("vector_names", true));
     prefs.putInt("sdbg_baud", prefs.getInt("sdbg_baud", 57600));
+    prefs.putBoolean("sdbg_burst", prefs.getBoolean("sdbg_burst", true));
+    prefs.putBoolean("sdbg_fast_baud", prefs.getBoolean("sdbg_fast_baud", false));
     prefs.putBoolean("enable_preprocessing", prefs.getBoolean("enable_preprocessing", false));
     prefs.putBoolean("decode_updi", prefs.getBoolean("decode_updi", false));
     prefs.putBoolean("show_dependencies", prefs.getBoolean("show_dependencies", false));
+    prefs.putBoolean("delta_flash", prefs.getBoolean("delta_flash", false));
+    prefs.putBoolean("crc_verify", prefs.getBoolean("crc_verify", false));
+    prefs.putBoolean("updi_autoclock", prefs.getBoolean("updi_autoclock", false));
+    prefs.putBoolean("simulate_target", prefs.getBoolean("simulate_target", false));
+    prefs.putInt("sim_latency", prefs.getInt("sim_latency", 1000));
+    prefs.putInt("obj_cache_size", prefs.getInt("obj_cache_size", 64));
   }
 
   private JFileChooser getFileChooser () {
@@ -387,6 +496,9 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
         "java.io.tmpdir: " + tempBase + "\n" +
         "tmpDir: " + tmpDir + "\n" +
         "tmpExe: " + tmpExe + "\n" +
+        "tmpCache: " + tmpCache + "\n" +
+        "tmpRes: " + tmpRes + "\n" +
+        "coreDir: " + coreDir + "\n" +
         "Java Version: " + System.getProperty("java.version") + "\n" +
         "Java Simple Serial Connector: " + SerialNativeInterface.getLibraryVersion() + "\n" +
         "JSSC Native Code DLL Version: " + SerialNativeInterface.getNativeLibraryVersion() + "\n",
@@ -400,12 +512,20 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     items.add(new ParmDialog.Item("Interleave Source and ASM", "*[INTERLEAVE]*", "interleave", true));
     items.add(new ParmDialog.Item("Add Vector Names in Listing", "*[VECNAMES]*", "vector_names", true));
     items.add(new ParmDialog.Item("Include Full Symbol Table in Listing", "*[SYMTABLE]*", "symbol_table", false));
+    items.add(new ParmDialog.Item("Object Cache Size (MB):0:16:64:256", "*[OBJ_CACHE]*", "obj_cache_size", 64));
     items.add(new ParmDialog.Item("Serial Programmer Baud Rate:19200:38400:57600:115200:256000", "*[PROGBAUD]*", "sdbg_baud", 57600));
+    items.add(new ParmDialog.Item("Serial Programmer Burst Writes", "*[SDBG_BURST]*", "sdbg_burst", true));
+    items.add(new ParmDialog.Item("Serial Programmer Auto Baud Rate", "*[SDBG_FAST_BAUD]*", "sdbg_fast_baud", false));
+    items.add(new ParmDialog.Item("Only Program Changed Flash Pages", "*[DELTA_FLASH]*", "delta_flash", false));
+    items.add(new ParmDialog.Item("Serial Programmer On-Chip CRC Verify", "*[CRC_VERIFY]*", "crc_verify", false));
+    items.add(new ParmDialog.Item("Auto Tune UPDI Clock (EDBG)", "*[UPDI_AUTOCLOCK]*", "updi_autoclock", false));
     if ((modifiers & InputEvent.CTRL_MASK) != 0) {
       // Developer features
       items.add(new ParmDialog.Item("Enable Preprocessing (Developer)", "*[PREPROCESS]*", "enable_preprocessing", false));
       items.add(new ParmDialog.Item("Decode UPDI Commands", "*[UPDI_DECODE]*", "decode_updi", false));
       items.add(new ParmDialog.Item("Show Dependencies", "*[SHOW_DEPENDENCIES]*", "show_dependencies", false));
+      items.add(new ParmDialog.Item("Simulate Target", "*[SIMULATE_TARGET]*", "simulate_target", false));
+      items.add(new ParmDialog.Item("Simulated Link Latency (us):0:125:1000:4000:16000", "*[SIM_LATENCY]*", "sim_latency", 1000));
     }
     ParmDialog.Item[] parmSet = items.toArray(new ParmDialog.Item[0]);
     ParmDialog dialog = (new ParmDialog("Edit Preferences", parmSet, new String[] {"Save", "Cancel"}));
@@ -419,10 +539,18 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     try {
       tmpDir = Utility.createDir(tempBase + "avr-temp-code");
       tmpExe = Utility.createDir(tempBase + "avr-toolchain");
+      tmpCache = Utility.createDir(tempBase + "avr-obj-cache");
+      tmpRes = Utility.createDir(tempBase + "avr-resources");
     } catch (IOException ex) {
       showErrorDialog("Unable to create temporary working directories");
       System.exit(1);
     }
+    // Setup directory for prebuilt Arduino core libraries (if not available, the core is compiled each build)
+    try {
+      coreDir = Utility.createDir(new File(Utility.getAppSupportDirectoryPath("MegaTinyIDE"), "cores").getPath());
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
     // Load version info
     try {
       versionInfo = Utility.getResourceMap("version.props");
@@ -458,6 +586,18 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     infoPane.append("os:           " + os.toString() + "\n");
     infoPane.append("java.home:    " + System.getProperty("java.home") + "\n");
     infoPane.append("java.version: " + System.getProperty("java.version") + "\n");
+    // Put the Monitor pane in a panel, so the Live Transport Stats view can be shown below it
+    int infoTab = tabPane.indexOfTab("Monitor");
+    Component infoScroll = tabPane.getComponentAt(infoTab);
+    JPanel infoPanel = new JPanel(new BorderLayout());
+    tabPane.setComponentAt(infoTab, infoPanel);
+    infoPanel.add(infoScroll, BorderLayout.CENTER);
+    statsView.setFont(tFont);
+    statsView.setEditable(false);
+    statsView.setRows(12);
+    statsScroll.setBorder(BorderFactory.createTitledBorder("Live Transport Stats"));
+    statsScroll.setVisible(false);
+    infoPanel.add(statsScroll, BorderLayout.SOUTH);
     infoPane.addMouseListener(new MouseAdapter() {
       @Override
       public void mouseClicked (MouseEvent ev) {
@@ -467,11 +607,31 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
           JMenuItem menuItem = new JMenuItem("Clear Screen");
           menuItem.addActionListener(e -> SwingUtilities.invokeLater(() -> infoPane.setText("")));
           popup.add(menuItem);
+          popup.addSeparator();
+          menuItem = new JMenuItem("Show Transport Stats");
+          menuItem.addActionListener(e -> infoPane.append(linkStats.report()));
+          popup.add(menuItem);
+          JCheckBoxMenuItem liveItem = new JCheckBoxMenuItem("Live Transport Stats", statsScroll.isVisible());
+          liveItem.addActionListener(e -> showStatsView(liveItem.isSelected()));
+          popup.add(liveItem);
+          menuItem = new JMenuItem("Export Transport Stats as CSV...");
+          menuItem.addActionListener(e -> exportLinkStats());
+          popup.add(menuItem);
+          menuItem = new JMenuItem("Reset Transport Stats");
+          menuItem.addActionListener(e -> {
+            linkStats.reset();
+            if (statsScroll.isVisible()) {
+              updateStatsView();
+            }
+          });
+          popup.add(menuItem);
           popup.show(ev.getComponent(), ev.getX(), ev.getY());
         }
       }
     });
     infoPane.setToolTipText("<html>Click Right Mouse Button<br>for Command Menu</html>");
+    serialMonitor = new SerialMonitor(prefs);
+    tabPane.addTab("Serial Monitor", null, serialMonitor, "Displays text, or plots CSV values, received from the target's UART");
     // Add menu bar and menus
     JMenuBar menuBar = new JMenuBar();
     JMenuItem mItem;
@@ -615,6 +775,7 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     mItem.setAccelerator(QUIT_KEY);
     mItem.addActionListener(e -> {
       if (!codeDirty || discardChanges()) {
+        EDBG.closeIdle();
         System.exit(0);
       }
     });
@@ -708,6 +869,7 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
               tags.put("TEXE", tmpExe);
               tags.put("IDIR", tmpExe + "avr" + fileSep + "include" + fileSep);
               tags.put("FNAME", fName);
+              tags.put("RDIR", tmpRes);
               tags.put("PREPROCESS", "PREONLY");
               compileMap = MegaTinyCompiler.compileBuild(codePane.getText(), tags, prefs, this);
               if (compileMap == null) {
@@ -760,9 +922,9 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
                 edbg.setProgressMessage("Reading Flash");
                 byte[] data1 = edbg.readFlash(0, flashSize);
                 edbg.setProgressMessage("Verifying...");
-                byte[] data2 = edbg.readFlash(0, flashSize);
+                boolean verified = verifyFlashRead(edbg, data1);
                 edbg.closeProgressBar();
-                if (Arrays.equals(data1, data2)) {
+                if (verified) {
                   HexEditPane flashPane = new HexEditPane(MegaTinyIDE.this, 16, 16);
                   flashPane.showDialog("Flash Code", "Flash Code", 0, data1, null);
                 } else {
@@ -800,9 +962,9 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
               edbg.setProgressMessage("Reading Flash");
               byte[] data1 = edbg.readFlash(0, flashSize);
               edbg.setProgressMessage("Verifying...");
-              byte[] data2 = edbg.readFlash(0, flashSize);
+              boolean verified = verifyFlashRead(edbg, data1);
               edbg.closeProgressBar();
-              if (Arrays.equals(data1, data2)) {
+              if (verified) {
                 disassemble(chip, listPane, data1);
                 tabPane.setSelectedIndex(Tab.LIST.num);
               } else {
@@ -832,12 +994,37 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
           new Thread(() -> {
             try {
               edbg.setProgressMessage("Writing Flash");
-              edbg.eraseTarget(0, 0);         //
-              edbg.writeFlash(0, codeImg.data);
-              edbg.setProgressMessage("Verifying...");
-              byte[] data2 = edbg.readFlash(0, codeImg.data.length);
+              ChipInfo chip = chipTypes.get(avrChip);
+              int fPage = chip.getInt("fpage");
+              int flashSize = chip.getInt("flash") * 1024;
+              boolean crcVerify = useCrcVerify(edbg);
+              boolean deltaFlash = prefs.getBoolean("delta_flash", false);
+              boolean verified;
+              if (deltaFlash || crcVerify) {
+                if (deltaFlash) {
+                  int pages = flashCache.program(edbg, codeImg.data, fPage, crcVerify ? flashSize : 0);
+                  infoPrintln(String.format("Program Flash: wrote %d of %d pages", pages, (codeImg.data.length + fPage - 1) / fPage));
+                } else {
+                  edbg.eraseTarget(0, 0);       //
+                  edbg.writeFlash(0, codeImg.data);
+                }
+                edbg.setProgressMessage("Verifying...");
+                if (crcVerify && FlashCrc.writeAndVerify(edbg, codeImg.data, fPage, flashSize)) {
+                  verified = true;
+                } else {
+                  byte[] data2 = edbg.readFlash(0, codeImg.data.length);
+                  verified = Arrays.equals(codeImg.data, data2);
+                }
+              } else {
+                // Erase, write and verify in one programming session
+                verified = edbg.runJob(new Programmer.ProgramJob(codeImg.data, null, null, null, null));
+              }
               edbg.closeProgressBar();
-              if (!Arrays.equals(codeImg.data, data2)) {
+              if (!verified) {
+                if (deltaFlash) {
+                  // Forget the page hashes flashCache.program() just saved for this target
+                  flashCache.invalidate();
+                }
                 showErrorDialog("Verify failed");
               } else {
                 showMessageDialog(this, "Done");
@@ -853,6 +1040,79 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
         }
       }
     });
+    /*
+     *    "Program All" Menu Item
+     *    Reads the target's EEPROM, USERROW and fuses, lets each be modified, then writes them and the code in
+     *    the Hex Output pane in one programming session (see Programmer.runJob())
+     */
+    actions.add(progAll);
+    progAll.setToolTipText("Used to Upload Program Code, EEPROM, USERROW and Fuses to Device in one Session");
+    progAll.addActionListener(e -> {
+      if (avrChip != null && canProgram()) {
+        Programmer edbg = null;
+        try {
+          Utility.CodeImage codeImg = Utility.parseIntelHex(hexPane.getText());
+          ChipInfo chip = chipTypes.get(avrChip);
+          edbg = getProgrammerInstance(true);
+          byte[] eeprom = edbg.readEeprom(0, chip.getInt("eeprom"));
+          new HexEditPane(this, 8, 8).showDialog("EEPROM", null, 0, eeprom, (offset, value) -> eeprom[offset] = (byte) value);
+          byte[] userRow = edbg.readUserRow(0, 32);
+          new HexEditPane(this, 8, 8).showDialog("USERROW", null, 0, userRow, (offset, value) -> userRow[offset] = (byte) value);
+          FusePane fusePane = new FusePane(chip);
+          int[] offsets = new int[] {0, 1, 2, 4, 5, 6, 7, 8};
+          byte[] fuses = edbg.readFuses(offsets);
+          for (int ii = 0; ii < offsets.length; ii++) {
+            fusePane.setFuse(offsets[ii], fuses[ii]);
+          }
+          if (JOptionPane.showConfirmDialog(this, fusePane, "FUSES for " + chip.name, OK_CANCEL_OPTION, PLAIN_MESSAGE) != 0) {
+            edbg.close();
+            return;
+          }
+          // Only write fuses that were changed
+          int[] cOffs = Arrays.stream(offsets).filter(fusePane::hasChanged).toArray();
+          byte[] cFuses = new byte[cOffs.length];
+          StringBuilder msg = new StringBuilder("<html>Program Flash, EEPROM and USERROW");
+          if (cOffs.length > 0) {
+            msg.append(" and update changed fuses?<br><br><p style=\"font-family:Courier;font-size:12\">");
+            for (int ii = 0; ii < cOffs.length; ii++) {
+              cFuses[ii] = fusePane.getFuse(cOffs[ii]);
+              int oldVal = fuses[Arrays.binarySearch(offsets, cOffs[ii])] & 0xFF;
+              msg.append(String.format("Fuse 0x%02X: 0x%02X -> 0x%02X<br>", cOffs[ii], oldVal, cFuses[ii] & 0xFF));
+            }
+            msg.append("</p><br>Note: Changes will not take effect until<br>processor is RESET</html>");
+          } else {
+            msg.append("?</html>");
+          }
+          if (!doWarningDialog(msg.toString())) {
+            edbg.close();
+            return;
+          }
+          Programmer.ProgramJob job = new Programmer.ProgramJob(codeImg.data, eeprom, userRow,
+              cOffs.length > 0 ? cOffs : null, cOffs.length > 0 ? cFuses : null);
+          Programmer prog = edbg;
+          new Thread(() -> {
+            try {
+              boolean verified = prog.runJob(job);
+              prog.closeProgressBar();
+              if (!verified) {
+                showErrorDialog("Verify failed");
+              } else {
+                showMessageDialog(this, "Done");
+              }
+            } catch (EDBG.EDBGException ex) {
+              showErrorDialog("Unable to write: " + ex.getMessage());
+            } finally {
+              prog.close();
+            }
+          }).start();
+        } catch (EDBG.EDBGException ex) {
+          showErrorDialog(ex.getMessage());
+          if (edbg != null) {
+            edbg.close();
+          }
+        }
+      }
+    });
     /*
      *    Read/Modify Fuses Menu Item
      */
@@ -1046,44 +1306,35 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     settings.add(codePane.getFontSizeMenu());
     settings.addSeparator();
     // Add "Programmer" Menu
+    DeviceRegistry.start(jsscPort);
     progMenu = new JMenu("Programmer");
     progVidPid = prefs.get("progVidPid", "");
     progMenu.addMenuListener(new MenuListener() {
       @Override
       public void menuSelected (MenuEvent e) {
-        // Populate menu on demand sos we can plug and unplug program and debug devices (caution...)
+        // Populate menu on demand from DeviceRegistry's latest scan so we can plug and unplug program and debug devices
         progMenu.removeAll();
         ButtonGroup progGroup = new ButtonGroup();
-        // Scan for Microchip/Atmel programmers/debuggers supported by EDBG class
-        // New experimental code
         List<Programmer.DeviceInfo> devices = new ArrayList<>();
-        // Add Atmel/Microchip programmers and debuggers
-        try {
-          PropertyMap progs = new PropertyMap("programmers.props");
-          for (Programmer.DebugDevice prog : EDBG.getDebuggers()) {
-            PropertyMap.ParmSet parmSet = progs.get(prog.key);
-            devices.add(new Programmer.DebugDevice(parmSet, prog.key));
-          }
-        } catch (Exception ex) {
-          // Hidapi did not initialise: com/sun/jna/Structure$ByReference
-          showErrorDialog("Unable to load programmers.props file");
+        // Add Atmel/Microchip programmers and debuggers supported by EDBG class
+        devices.addAll(DeviceRegistry.getDebuggers());
+        if (prefs.getBoolean("simulate_target", false)) {
+          devices.add(Programmer.getProgrammer(SimTarget.EDBG_KEY));
         }
         // Add USB serial devices to list
         for (String pName : jsscPort.getSerialDeviceNames()) {
           devices.add(new Programmer.SerialDevice(pName));
         }
+        if (prefs.getBoolean("simulate_target", false)) {
+          devices.add(new Programmer.SerialDevice(SimTarget.SERIAL_PORT));
+        }
         // Build final menu
         for (Programmer.DeviceInfo device : devices) {
           boolean selected = prefs.get("progVidPid", "").equals(device.getKey());
-          String key = device.getKey();
           JRadioButtonMenuItem item = new JRadioButtonMenuItem(device.getName(), selected);
           if (device instanceof Programmer.DebugDevice) {
-            // Add tooltip showing detailed info on the device
-            Programmer.DebugDevice prog = Programmer.getProgrammer(key);
-            if (prog != null) {
-              String tooltip = prog.getInfo();
-              item.setToolTipText(tooltip);
-            }
+            // Add tooltip showing detailed info on the device, including its vRef capability
+            item.setToolTipText(device.getInfo());
           }
           progMenu.add(item);
           progGroup.add(item);
@@ -1096,6 +1347,7 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
               prefs.put("serial.port", "");
             }
             removeProgrammer();
+            EDBG.closeIdle();
           });
         }
       }
@@ -1163,6 +1415,8 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
       public void windowClosing (WindowEvent ev) {
         listPane.statusPane.setActive(false);
         if (!codeDirty  ||  discardChanges()) {
+          serialMonitor.close();
+          EDBG.closeIdle();
           System.exit(0);
         }
       }
@@ -1253,6 +1507,11 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
           tags.put("IDIR", tmpExe + "avr" + fileSep + "include" + fileSep);
           tags.put("FNAME", fName);
           tags.put("EFILE", editFile);
+          tags.put("RDIR", tmpRes);
+          tags.put("CDIR", tmpCache);
+          if (coreDir != null) {
+            tags.put("ADIR", coreDir);
+          }
           if (prefs.getBoolean("gen_prototypes", false)) {
             tags.put("PREPROCESS", "GENPROTOS");
           }
@@ -1371,7 +1630,7 @@ public class MegaTinyIDE extends JFrame implements ListingPane.DebugListener {
     return false;
   }
 
-  void appendToInfoPane (String text) {
+  public void appendToInfoPane (String text) {
     if (infoPane != null) {
       infoPane.append(text);
     }
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+  /*
+   * Persistent cache of compiled object files which lets a build skip the compiler for any file whose source,
+   * headers and compile command are unchanged since a previous build.
+   *
+   * Each entry is keyed by a SHA-256 hash of the compile command (which includes the CHIP, CLOCK, ARDUINO and
+   * DEFINES values), the size and date of the compiler executable and the content of the source file.  An entry
+   * is stored as two files in the cache directory, "<key>.o", which is a copy of the object file and "<key>.dep",
+   * which lists each file the compiler read (taken from the .d file written by the -MMD option) along with a
+   * hash of its content.  A lookup is a hit only if every file in the .dep list still has the same hash, so an
+   * edit to a header causes every file that includes it to be recompiled.  Hashes are computed from file content,
+   * rather than file dates, because the temp directory is cleared and refilled before each build.
+   *
+   * Entries are "touched" when used and, after each build, trim() deletes the least recently used entries until
+   * the cache is no larger than the size set by the "obj_cache_size" preference (in MB).
+   */
+class ObjectCache {
+  private static final String         OBJ_EXT = ".o";
+  private static final String         DEP_EXT = ".dep";
+  private final File                  cacheDir;
+  private final long                  maxSize;                // Max size of cache (bytes)
+  private final Map<String, String>   hashes = new ConcurrentHashMap<>(); // Dependency hashes for this build
+
+  /**
+   * Create an ObjectCache for one build
+   * @param dir     path to cache directory
+   * @param maxSize maximum size of cache in bytes
+   */
+  ObjectCache (String dir, long maxSize) {
+    this.cacheDir = new File(dir);
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Compute the cache key for a source file
+   * @param cmd compile command
+   * @param src path to source file
+   * @return hex key, or null if the source file can't be read
+   */
+  String getKey (String cmd, String src) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      hashCommand(md, cmd);
+      md.update(Files.readAllBytes(new File(src).toPath()));
+      return toHex(md.digest());
+    } catch (IOException | NoSuchAlgorithmException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * If a cached object exists for key and none of its dependencies have changed, copy it to objFile
+   * @param key     key returned by getKey()
+   * @param objFile path to object file the compiler would have written
+   * @return true if objFile was restored from the cache
+   */
+  boolean fetch (String key, String objFile) {
+    if (key == null) {
+      return false;
+    }
+    File obj = new File(cacheDir, key + OBJ_EXT);
+    File dep = new File(cacheDir, key + DEP_EXT);
+    if (!obj.exists() || !dep.exists()) {
+      return false;
+    }
+    try {
+      for (String line : Files.readAllLines(dep.toPath(), StandardCharsets.UTF_8)) {
+        int idx = line.lastIndexOf('\t');
+        if (idx < 0 || !line.substring(idx + 1).equals(hashFile(line.substring(0, idx)))) {
+          return false;
+        }
+      }
+      File dst = new File(objFile);
+      dst.getParentFile().mkdirs();
+      Files.copy(obj.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      long now = System.currentTimeMillis();
+      obj.setLastModified(now);
+      dep.setLastModified(now);
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Add a newly compiled object file to the cache (failures are ignored, as the cache is only an optimization)
+   * @param key     key returned by getKey()
+   * @param objFile path to object file written by the compiler
+   * @param depFile path to .d file written by the compiler
+   */
+  void store (String key, String objFile, String depFile) {
+    if (key == null) {
+      return;
+    }
+    try {
+      StringBuilder buf = new StringBuilder();
+      for (String path : parseDepFile(Utility.getFile(depFile))) {
+        String hash = hashFile(path);
+        if (hash.isEmpty()) {
+          return;
+        }
+        buf.append(path).append('\t').append(hash).append('\n');
+      }
+      // Write to temp files, then rename, so a concurrent, or interrupted build never sees a partial entry
+      String tmp = ".tmp" + Thread.currentThread().getId();
+      File obj = new File(cacheDir, key + OBJ_EXT);
+      File dep = new File(cacheDir, key + DEP_EXT);
+      File objTmp = new File(cacheDir, key + OBJ_EXT + tmp);
+      File depTmp = new File(cacheDir, key + DEP_EXT + tmp);
+      Files.copy(new File(objFile).toPath(), objTmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Files.write(depTmp.toPath(), buf.toString().getBytes(StandardCharsets.UTF_8));
+      Files.move(objTmp.toPath(), obj.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Files.move(depTmp.toPath(), dep.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Delete least recently used entries (and any stray files) until the cache is no larger than maxSize
+   */
+  void trim () {
+    File[] files = cacheDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Map<String, List<File>> entries = new HashMap<>();
+    long total = 0;
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(OBJ_EXT) || name.endsWith(DEP_EXT)) {
+        entries.computeIfAbsent(name.substring(0, name.lastIndexOf('.')), k -> new ArrayList<>()).add(file);
+        total += file.length();
+      } else {
+        file.delete();                                      // Leftover temp file from an interrupted build
+      }
+    }
+    List<List<File>> lru = new ArrayList<>(entries.values());
+    lru.sort(Comparator.comparingLong(entry -> entry.get(0).lastModified()));
+    for (List<File> entry : lru) {
+      if (total <= maxSize && entry.size() == 2) {
+        continue;                                           // Keep complete entries once under maxSize
+      }
+      for (File file : entry) {
+        total -= file.length();
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Add a command, and the size and date of the program it runs, to a hash so that a toolchain update
+   * (which may not change the command) gives a different hash
+   * @param md  MessageDigest to update
+   * @param cmd command line
+   */
+  static void hashCommand (MessageDigest md, String cmd) {
+    md.update(cmd.getBytes(StandardCharsets.UTF_8));
+    File exe = new File(cmd.substring(0, Math.max(0, cmd.indexOf(' '))));
+    exe = exe.exists() ? exe : new File(exe.getPath() + ".exe");
+    md.update((exe.length() + ":" + exe.lastModified() + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String hashFile (String path) {
+    return hashes.computeIfAbsent(path, key -> {
+      try {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        return toHex(md.digest(Files.readAllBytes(new File(key).toPath())));
+      } catch (IOException | NoSuchAlgorithmException ex) {
+        return "";                                          // Missing file never matches a stored hash
+      }
+    });
+  }
+
+  /**
+   * Parse the prerequisites from a make-style dependency file written by the compiler's -MMD option, such as
+   * "file.o: file.c dir/a\ b.h \" + newline + " c.h"
+   * @param dep contents of .d file
+   * @return List of paths to each prerequisite
+   */
+  static List<String> parseDepFile (String dep) {
+    List<String> paths = new ArrayList<>();
+    dep = dep.replace("\\\r\n", " ").replace("\\\n", " ");
+    int idx = dep.indexOf(": ");
+    if (idx < 0) {
+      return paths;
+    }
+    StringBuilder path = new StringBuilder();
+    for (int ii = idx + 2; ii <= dep.length(); ii++) {
+      char cc = ii < dep.length() ? dep.charAt(ii) : ' ';
+      if (cc == '\\' && ii + 1 < dep.length() && dep.charAt(ii + 1) == ' ') {
+        path.append(' ');                                   // Escaped space in path
+        ii++;
+      } else if (cc == '$' && ii + 1 < dep.length() && dep.charAt(ii + 1) == '$') {
+        path.append('$');
+        ii++;
+      } else if (Character.isWhitespace(cc)) {
+        if (path.length() > 0) {
+          paths.add(path.toString());
+          path.setLength(0);
+        }
+      } else {
+        path.append(cc);
+      }
+    }
+    return paths;
+  }
+
+  static String toHex (byte[] data) {
+    StringBuilder buf = new StringBuilder();
+    for (byte bb : data) {
+      buf.append(String.format("%02x", bb & 0xFF));
+    }
+    return buf.toString();
+  }
+}
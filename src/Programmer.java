@@ -2,8 +2,10 @@ import org.hid4java.HidDevice;
 import org.hid4java.HidManager;
 import org.hid4java.HidServices;
 
+import javax.swing.*;
 import java.io.IOException;
 import java.util.*;
+import java.util.prefs.Preferences;
 
 abstract public class Programmer {
   // System base addresses
@@ -13,6 +15,16 @@ abstract public class Programmer {
   static final int FUSES_BASE = 0x1280;       // FUSES
   static final int LOCKBITS_BASE = 0x128A;    // LOCKBITS
   static final int USERROW_BASE = 0x1300;     // USERROW
+  static final int SP_SREG_BASE = 0x003D;     // SPL, SPH and SREG
+  static final int PORT_BASE = 0x0400;        // PORTA (PORTB = 0x0420, PORTC = 0x0440)
+  static final int PORT_SIZE = 0x20;          // Offset between PORTx base addresses
+  static final int PORT_DIR = 0x00;           // PORTx.DIR offset
+  static final int PORT_IN = 0x08;            // PORTx.IN offset
+  static final int CRCSCAN_BASE = 0x0120;     // CRCSCAN
+  static final int CRCSCAN_CTRLA = 0x00;      // CRCSCAN.CTRLA (bit 7 = RESET, bit 0 = ENABLE)
+  static final int CRCSCAN_CTRLB = 0x01;      // CRCSCAN.CTRLB (bits 5:4 = MODE, bits 1:0 = SRC, 0 = FLASH)
+  static final int CRCSCAN_STATUS = 0x02;     // CRCSCAN.STATUS (bit 1 = OK, bit 0 = BUSY)
+  static final int MAX_FLASH_PAGE = 128;      // Largest flash page size (reads rounded up to this are page aligned)
   static final Map<String, DebugDevice> programmers = new TreeMap<>();
 
   public static class EDBGException extends IllegalStateException {
@@ -37,6 +49,21 @@ abstract public class Programmer {
     }
   }
 
+  /*
+   * Services a Programmer needs from the application using it.  These are implemented by MegaTinyIDE, and by
+   * SimHarness, which runs programming flows against a SimTarget without a GUI
+   */
+  interface Host {
+    Preferences getPrefs ();
+    LinkStats getLinkStats ();
+    String getAvrChip ();
+    boolean decodeUpdi ();
+    void infoPrintln (String msg);
+    void appendToInfoPane (String text);
+    void removeProgrammer ();
+    JFrame getFrame ();                       // Parent for progress bars, or null if there is no GUI
+  }
+
   interface DeviceInfo {
     String getKey();
     String getName();
@@ -95,8 +122,94 @@ abstract public class Programmer {
     }
 
     public String getInfo () {
-      return String.format("<html><b>Product</b>: %s <br><b>VID</b>: 0x%04X<br><b>PID</b>: " +
-        "0x%02X<br><b>Serial</b>: %s <br><b>Release:</b> %d </html>", product, vid, pid, serialNum, release);
+      return String.format("<html><b>Name</b>: %s <br><b>Product</b>: %s <br><b>VID</b>: 0x%04X<br><b>PID</b>: " +
+        "0x%02X<br><b>Serial</b>: %s <br><b>Release:</b> %d <br><b>vRef</b>: %s </html>", name, product, vid, pid,
+        serialNum, release, hasVRef ? "can measure target Vcc" : "no");
+    }
+  }
+
+  /*
+   * Immutable snapshot of the target's state taken when it's stopped (see getDebugState())
+   */
+  public static final class DebugState {
+    public final int      pc;           // Program Counter (byte address)
+    public final int      sp;           // Stack Pointer
+    public final byte     sreg;         // Status Register (flags)
+    private final byte[]  regs;         // r0 - r31
+    private final byte[]  ports;        // PORTA - PORTC I/O window (0x0400 - 0x044F), or null
+
+    DebugState (byte[] regs, int pc, int sp, byte sreg, byte[] ports) {
+      this.regs = regs.clone();
+      this.pc = pc;
+      this.sp = sp;
+      this.sreg = sreg;
+      this.ports = ports != null ? ports.clone() : null;
+    }
+
+    public byte[] getRegs () {
+      return regs.clone();
+    }
+
+    /**
+     * Get PORTx.IN value
+     * @param port 0 = PORTA, 1 = PORTB, 2 = PORTC
+     * @return value of PORTx.IN, or 0 if port was not read
+     */
+    public byte getPortIn (int port) {
+      int off = port * PORT_SIZE + PORT_IN;
+      return ports != null && off < ports.length ? ports[off] : 0;
+    }
+
+    /**
+     * Get PORTx.DIR value
+     * @param port 0 = PORTA, 1 = PORTB, 2 = PORTC
+     * @return value of PORTx.DIR, or 0 if port was not read
+     */
+    public byte getPortDir (int port) {
+      int off = port * PORT_SIZE + PORT_DIR;
+      return ports != null && off < ports.length ? ports[off] : 0;
+    }
+  }
+
+  /*
+   * Set of images to write in one programming session (see runJob()).  Any image can be null to leave that
+   * memory unchanged.  The flash, EEPROM and USERROW images are written starting at offset 0 in each memory
+   */
+  public static final class ProgramJob {
+    public final byte[]   flash;        // Code image (erases the chip before writing)
+    public final byte[]   eeprom;       // EEPROM image
+    public final byte[]   userRow;      // USERROW image
+    public final int[]    fuseOffsets;  // Offsets from FUSES_BASE of fuses to write
+    public final byte[]   fuses;        // Values for fuses selected by fuseOffsets[]
+
+    public ProgramJob (byte[] flash, byte[] eeprom, byte[] userRow, int[] fuseOffsets, byte[] fuses) {
+      if ((fuseOffsets == null) != (fuses == null) || (fuses != null && fuses.length != fuseOffsets.length)) {
+        throw new IllegalArgumentException("ProgramJob() length of fuseOffsets[] does not match length of fuses[]");
+      }
+      this.flash = flash;
+      this.eeprom = eeprom;
+      this.userRow = userRow;
+      this.fuseOffsets = fuseOffsets;
+      this.fuses = fuses;
+    }
+
+    /**
+     * Get the fuses to compare when verifying (LOCKBIT is skipped, as the target can't be read once locked)
+     * @return offsets of fuses to verify
+     */
+    int[] verifyOffsets () {
+      return Arrays.stream(fuseOffsets).filter(off -> off != LOCKBITS_BASE - FUSES_BASE).toArray();
+    }
+
+    byte[] verifyFuses () {
+      int[] offsets = verifyOffsets();
+      byte[] values = new byte[offsets.length];
+      for (int ii = 0, jj = 0; ii < fuseOffsets.length; ii++) {
+        if (fuseOffsets[ii] != LOCKBITS_BASE - FUSES_BASE) {
+          values[jj++] = fuses[ii];
+        }
+      }
+      return values;
     }
   }
 
@@ -107,28 +220,23 @@ abstract public class Programmer {
   /**
    * Scan USB for connected HID devices that can use UPDI to debug and program target devices
    * Note: resource file "programmers.props" use to specify VID-PID values for these devices
+   * Note: slow on some systems, so menus use DeviceRegistry.getDebuggers(), which returns the latest scan
    * @return List of devices detected
    */
   public static List<DebugDevice> getDebuggers () {
     List<DebugDevice> list = new ArrayList<>();
-    HidServices hidServices = HidManager.getHidServices();
-    for (String key : programmers.keySet()) {
-      DebugDevice prog = programmers.get(key);
-      HidDevice device = null;
-      try {
-        device = hidServices.getHidDevice(prog.vid, prog.pid, null);
-        if (device != null) {
+    synchronized (DeviceRegistry.HID_LOCK) {
+      // Enumerate HID devices once and look each one up, rather than enumerate once per programmer
+      HidServices hidServices = HidManager.getHidServices();
+      for (HidDevice device : hidServices.getAttachedHidDevices()) {
+        String key = String.format("%04X-%04X", device.getVendorId(), device.getProductId());
+        DebugDevice prog = programmers.get(key);
+        if (prog != null && !key.equals(SimTarget.EDBG_KEY) && !list.contains(prog)) {
           prog.product = device.getProduct();
           prog.serialNum = device.getSerialNumber();
           prog.release = device.getReleaseNumber();
           list.add(prog);
         }
-      } catch (Exception ex) {
-        // ignore
-      } finally {
-        if (device != null) {
-          device.close();
-        }
       }
     }
     return list;
@@ -157,6 +265,15 @@ abstract public class Programmer {
 
   abstract public void writeFlash (int address, byte[] data) throws EDBGException;
 
+  /**
+   * Erase and write only the flash pages selected in pages (used for delta programming, see FlashPageCache)
+   * @param address  starting address of data[] (multiple of pageSize)
+   * @param data     data to write (length is a multiple of pageSize)
+   * @param pageSize target's flash page size (in bytes)
+   * @param pages    set bit n to erase and write the page at data[n * pageSize]
+   */
+  abstract public void writeFlashPages (int address, byte[] data, int pageSize, BitSet pages) throws EDBGException;
+
   abstract public byte[] readFuses (int[] offsets) throws EDBGException;
 
   abstract  public void writeFuses (int[] offsets, byte[] fuses) throws EDBGException;
@@ -173,6 +290,64 @@ abstract public class Programmer {
 
   abstract public void close ();
 
+  /**
+   * Write all the images in job in one programming session in this order: chip erase (only if job has a flash
+   * image), flash, EEPROM and USERROW, then a single verify pass over them.  Fuses are written and verified last,
+   * and only if everything else verified, so a fuse that changes how the target runs, or locks it, can't affect
+   * the other steps, or be applied to a badly programmed board.
+   * Note: subclasses override this to avoid repeating per operation setup, such as entering program mode
+   * @param job images to write
+   * @return true if everything written reads back correctly
+   */
+  public boolean runJob (ProgramJob job) throws EDBGException {
+    if (job.flash != null) {
+      setProgressMessage("Erasing");
+      eraseTarget(0, 0);
+      setProgressMessage("Writing Flash");
+      writeFlash(0, job.flash);
+    }
+    if (job.eeprom != null) {
+      setProgressMessage("Writing EEPROM");
+      writeEeprom(0, job.eeprom);
+    }
+    if (job.userRow != null) {
+      setProgressMessage("Writing USERROW");
+      writeUserRow(0, job.userRow);
+    }
+    setProgressMessage("Verifying...");
+    boolean verified = true;
+    if (job.flash != null) {
+      // Read whole pages, as some programmers can only read flash a page at a time
+      int len = (job.flash.length + MAX_FLASH_PAGE - 1) / MAX_FLASH_PAGE * MAX_FLASH_PAGE;
+      verified = Arrays.equals(job.flash, Arrays.copyOf(readFlash(0, len), job.flash.length));
+    }
+    verified &= (job.eeprom == null || Arrays.equals(job.eeprom, readEeprom(0, job.eeprom.length))) &&
+                (job.userRow == null || Arrays.equals(job.userRow, readUserRow(0, job.userRow.length)));
+    if (verified && job.fuses != null) {
+      setProgressMessage("Writing Fuses");
+      writeFuses(job.fuseOffsets, job.fuses);
+      int[] offsets = job.verifyOffsets();
+      verified = offsets.length == 0 || Arrays.equals(job.verifyFuses(), readFuses(offsets));
+    }
+    return verified;
+  }
+
+  /**
+   * Run the target's CRCSCAN peripheral over all of flash (see FlashCrc)
+   * @return true if CRCSCAN reports flash matches the checksum stored in the last two bytes of flash
+   */
+  public boolean crcScanFlash () throws EDBGException {
+    throw new EDBGException("Programmer.crcScanFlash() not implemented");
+  }
+
+  /**
+   * Check if crcScanFlash() can be called while in program mode
+   * @return true if supported
+   */
+  public boolean canCrcScan () {
+    return false;
+  }
+
   // Target Debugging Methods (Note: currently these are only implmeneted in the EDBG class)
   public void resetTarget () throws EDBGException {
     throw new EDBGException("Programmer.resetTarget() not implemented");
@@ -234,6 +409,26 @@ abstract public class Programmer {
     throw new EDBGException("Programmer.getStatusRegister() not implemented");
   }
 
+  /**
+   * Read the register file, PC, SP, SREG and the I/O window for the ports in use with as few transfers
+   * as possible.  SP and SREG are read in a single 3 byte SRAM read (0x003D - 0x003F) and the ports are read
+   * in a single SRAM block read starting at PORTA (up to 0x0400 - 0x0448 if PORTC is used)
+   * @param portMask mask of usable pins (bits 0-7 = PORTA, bits 8-15 = PORTB, bits 16-23 = PORTC)
+   * @return immutable snapshot of target's state
+   */
+  public DebugState getDebugState (int portMask) throws EDBGException {
+    byte[] regs = readRegisters(0, 32);
+    int pc = getProgramCounter();
+    byte[] spSreg = readSRam(SP_SREG_BASE, 3);
+    int sp = (spSreg[0] & 0xFF) + ((spSreg[1] & 0xFF) << 8);
+    byte[] ports = null;
+    int lastPort = (portMask & 0xFF0000) != 0 ? 2 : (portMask & 0xFF00) != 0 ? 1 : (portMask & 0xFF) != 0 ? 0 : -1;
+    if (lastPort >= 0) {
+      ports = readSRam(PORT_BASE, lastPort * PORT_SIZE + PORT_IN + 1);
+    }
+    return new DebugState(regs, pc, sp, spSreg[2], ports);
+  }
+
   public double targetVoltage () {
     throw new EDBGException("Programmer.targetVoltage() not implemented");
   }
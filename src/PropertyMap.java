@@ -16,6 +16,9 @@ import java.util.*;
    * will look like this:
    *    valset1: val1 = 1, val2 = 4, val3 = 5
    *    valset2: val1 = 5, val2 = 3, val3 = 1
+   *
+   * A value set in the entry itself takes precedence over the same key imported from "base", such as:
+   *    valset3: base = baseVals, val2 = 8      // val2 = 8, not 4
    */
 public class PropertyMap {
   private final Map<String,ParmSet> properties = new TreeMap<>();
@@ -73,7 +76,9 @@ public class PropertyMap {
         if ("base".equals(key2)) {
           String val = propMap.get(key2);
           Map<String,String> exMap = properties.get(val);
-          propMap.putAll(exMap);
+          for (Map.Entry<String,String> ent : exMap.entrySet()) {
+            propMap.putIfAbsent(ent.getKey(), ent.getValue());
+          }
           exList.add(val);
           propMap.remove("base");
           break;
@@ -4,6 +4,8 @@ import jssc.SerialPortTimeoutException;
 
 import java.io.ByteArrayOutputStream;
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.prefs.Preferences;
 
 public class SDBG extends Programmer {
   public static final int     SYNC = 0x55;            // Sync character
@@ -100,15 +102,38 @@ public class SDBG extends Programmer {
   // Misc constants
   public static final int     BYTE = 0;                 // Byte address or data
   public static final int     WORD = 1;                 // Word address or data
+  public static final int     UPDICLK_16MHZ = 0x01;     // ASI_CTRLA.UPDICLKSEL value for 16 MHz UPDI clock
+  public static final int     UPDICLK_4MHZ = 0x03;      // ASI_CTRLA.UPDICLKSEL value for 4 MHz UPDI clock (default)
+  private static final long   POLL_MIN_NS = 50000;      // First delay between NVM busy polls
+  private static final long   POLL_MAX_NS = 2000000;    // Longest delay between NVM busy polls
+  // Baud rates tried, in order, by negotiateBaud()
+  private static final int[]  FAST_BAUDS = {115200, 230400, 460800, 921600};
+  // Names used by LinkStats (indexed by UPDI opcode >> 5, with raw data bytes last)
+  private static final String   TOOL_NAME = "Serial UPDI";
+  private static final String[] INSTR_NAMES = {"LDS", "LD", "STS", "ST", "LDCS", "REPEAT", "STCS", "KEY", "data"};
+  private static final String[] RSP_NAMES = new String[INSTR_NAMES.length];
+  static {
+    for (int ii = 0; ii < INSTR_NAMES.length; ii++) {
+      RSP_NAMES[ii] = INSTR_NAMES[ii] + " response";
+    }
+  }
   // Variables
+  private int                 lastInstr = INSTR_NAMES.length - 1;
+  private final boolean       burst, fastBaud;
+  private final int           baseBaud;
+  private int                 baudRate;
+  private final MegaTinyIDE.ChipInfo chip;
   private final JSSCPort      jPort;
   private Utility.ProgressBar progress;
-  private final MegaTinyIDE   frame;
+  private final Host          frame;
 
-  public SDBG (MegaTinyIDE frame, JSSCPort jPort) {
+  public SDBG (Host frame, JSSCPort jPort) {
     this.frame = frame;
     this.jPort = jPort;
-    int baudRate = frame.prefs.getInt("sdbg_baud", SerialPort.BAUDRATE_115200);
+    burst = frame.getPrefs().getBoolean("sdbg_burst", true);
+    fastBaud = frame.getPrefs().getBoolean("sdbg_fast_baud", false);
+    baudRate = baseBaud = frame.getPrefs().getInt("sdbg_baud", SerialPort.BAUDRATE_115200);
+    chip = MegaTinyIDE.getChipInfo(frame.getAvrChip());
     //    setParameters(int,      int,                   int,                   int)
     jPort.setParameters(baudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_2, SerialPort.PARITY_EVEN);
   }
@@ -116,10 +141,12 @@ public class SDBG extends Programmer {
   // Progress Bar methods
 
   public void setProgressMessage (String msg) {
-    if (progress == null) {
-      progress = new Utility.ProgressBar(frame, "");
+    if (progress == null && frame.getFrame() != null) {
+      progress = new Utility.ProgressBar(frame.getFrame(), "");
+    }
+    if (progress != null) {
+      progress.setMessage(msg);
     }
-    progress.setMessage(msg);
   }
 
   public void setProgressValue (int value) {
@@ -143,6 +170,7 @@ public class SDBG extends Programmer {
     int retry = 5;
     do {
       try {
+        setBaud(baseBaud);
         jPort.sendDoubleBreak();
         stcs(UPDI_CTRLB, 1 << 3);                                     // CCDETDIS: Collision and Contention Detection Disable
         stcs(UPDI_CTRLA, 1 << 7);                                     // IBDLY: Inter-Byte Delay Enable
@@ -163,16 +191,99 @@ public class SDBG extends Programmer {
         } else {
           ldcs(UPDI_STATUSA);
           ldcs(UPDI_STATUSB);
+          if (fastBaud) {
+            negotiateBaud();
+          }
           return;
         }
       } catch (Exception ex) {
         System.out.printf("init() " + ex.getMessage() + ", retry = %d\n", retry);
       }
+      frame.getLinkStats().retry(TOOL_NAME, "init");
       retry--;
     } while (retry > 0);
     throw new IllegalStateException("init() timeout");
   }
 
+  /**
+   * Switch the UPDI link to the fastest baud rate this serial adapter and target can use.  The rate found
+   * is saved for each serial port and tried first the next time.  Otherwise, each rate in FAST_BAUDS that
+   * is higher than the base rate (sdbg_baud) is probed in turn until one fails, and the link falls back to
+   * the last rate that worked.  Rates above 115200 baud also switch the UPDI clock to 16 MHz.
+   * @throws SerialPortException
+   */
+  private void negotiateBaud () throws SerialPortException {
+    String key = "sdbg_rate." + jPort.getPortName();
+    key = key.substring(0, Math.min(key.length(), Preferences.MAX_KEY_LENGTH));
+    byte[] ref = readMemory(SIGNATURE_BASE, 16);
+    int saved = frame.getPrefs().getInt(key, 0);
+    if (saved > baseBaud) {
+      if (probeBaud(saved, ref)) {
+        return;
+      }
+      resetLink(baseBaud);
+    }
+    int best = baseBaud;
+    for (int rate : FAST_BAUDS) {
+      if (rate > best) {
+        if (!probeBaud(rate, ref)) {
+          resetLink(best);
+          break;
+        }
+        best = rate;
+      }
+    }
+    frame.getPrefs().putInt(key, best);
+  }
+
+  /**
+   * Switch the link to rate and check that it works by reading back the first 16 bytes of the signature
+   * row and checking UPDI_STATUSB for parity, frame, or contention errors
+   * @param rate baud rate to try
+   * @param ref  first 16 bytes of the signature row, as read at the base rate
+   * @return true if the link works at rate, else false
+   */
+  private boolean probeBaud (int rate, byte[] ref) {
+    try {
+      stcs(ASI_CTRLA, rate > SerialPort.BAUDRATE_115200 ? UPDICLK_16MHZ : UPDICLK_4MHZ);
+      setBaud(rate);
+      if (Arrays.equals(readMemory(SIGNATURE_BASE, 16), ref) && (ldcs(UPDI_STATUSB) & PESIG) == 0) {
+        return true;
+      }
+    } catch (Exception ex) {
+      // Fall through
+    }
+    frame.getLinkStats().retry(TOOL_NAME, "baud " + rate);
+    return false;
+  }
+
+  /**
+   * Reset the UPDI link with a double BREAK at the base rate and then switch to rate
+   * @param rate baud rate (previously checked by probeBaud())
+   * @throws SerialPortException
+   */
+  private void resetLink (int rate) throws SerialPortException {
+    setBaud(baseBaud);
+    jPort.sendDoubleBreak();
+    stcs(UPDI_CTRLB, 1 << 3);                                         // CCDETDIS: Collision and Contention Detection Disable
+    stcs(UPDI_CTRLA, 1 << 7);                                         // IBDLY: Inter-Byte Delay Enable
+    ldcs(UPDI_STATUSB);                                               // Clear error signature
+    if (rate != baseBaud) {
+      stcs(ASI_CTRLA, rate > SerialPort.BAUDRATE_115200 ? UPDICLK_16MHZ : UPDICLK_4MHZ);
+      setBaud(rate);
+    }
+  }
+
+  /**
+   * Set the serial port's baud rate (also used to compute read timeouts)
+   * @param rate baud rate
+   * @throws SerialPortException
+   */
+  private void setBaud (int rate) throws SerialPortException {
+    baudRate = rate;
+    jPort.setBaudRate(rate);
+  }
+
   /**
    * Send byte[] of data to serial poirt and read back echoed values
    * Note: compares the data read back to that send and throws an exception
@@ -181,14 +292,20 @@ public class SDBG extends Programmer {
    * @throws SerialPortException
    */
   void sendBytes (byte[] data) throws SerialPortException {
-    jPort.writeBytes(data);
+    long start = System.nanoTime();
+    lastInstr = data.length > 1 && (data[0] & 0xFF) == SYNC ? (data[1] & 0xE0) >> 5 : INSTR_NAMES.length - 1;
+    boolean failed = true;
     try {
+      jPort.writeBytes(data);
       byte[] readback = jPort.readBytes(data.length, 500);
       if (!Arrays.equals(data, readback)) {
         throw new IllegalStateException("Readback mismatch");
       }
+      failed = false;
     } catch (SerialPortTimeoutException ex) {
       throw new IllegalStateException("SDBG.readBytes() Timeout");
+    } finally {
+      frame.getLinkStats().command(TOOL_NAME, INSTR_NAMES[lastInstr], System.nanoTime() - start, 0, failed);
     }
   }
 
@@ -200,11 +317,60 @@ public class SDBG extends Programmer {
    * @throws SerialPortException
    */
   public byte[] getBytes (int size) throws SerialPortException {
+    long start = System.nanoTime();
+    boolean failed = true;
     try {
-      return jPort.readBytes(size, 100);
+      byte[] data = jPort.readBytes(size, 100);
+      failed = false;
+      return data;
     } catch (SerialPortTimeoutException ex) {
       throw new IllegalStateException("SDBG.readBytes() Timeout");
+    } finally {
+      frame.getLinkStats().command(TOOL_NAME, RSP_NAMES[lastInstr], System.nanoTime() - start, 0, failed);
+    }
+  }
+
+  /**
+   * Read size bytes of data from the serial port directly into buf[] starting at off
+   * Notes; the timeout allows for the time size bytes take at the current baud rate
+   * @param buf  array to read into
+   * @param off  offset into buf[] of first byte
+   * @param size number of bytes to read
+   * @throws SerialPortException
+   */
+  public void getBytes (byte[] buf, int off, int size) throws SerialPortException {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      jPort.readBytes(buf, off, size, 100 + size * 12 * 1000 / baudRate);
+      failed = false;
+    } catch (SerialPortTimeoutException ex) {
+      throw new IllegalStateException("SDBG.readBytes() Timeout");
+    } finally {
+      frame.getLinkStats().command(TOOL_NAME, RSP_NAMES[lastInstr], System.nanoTime() - start, 0, failed);
+    }
+  }
+
+  /**
+   * Get the name of the memory type at a direct address (used by LinkStats)
+   * @param address direct memory address
+   * @return memory type name
+   */
+  private static String getMemType (int address) {
+    if (address >= FLASH_BASE) {
+      return "FLASH";
+    } else if (address >= 0x3400) {
+      return "SRAM";
+    } else if (address >= EEPROM_BASE) {
+      return "EEPROM";
+    } else if (address >= USERROW_BASE) {
+      return "USERROW";
+    } else if (address >= FUSE_BASE) {
+      return "FUSES";
+    } else if (address >= SIGNATURE_BASE) {
+      return "SIGNATURE";
     }
+    return "IO";
   }
 
   // = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =
@@ -472,9 +638,44 @@ public class SDBG extends Programmer {
     if (size > 256) {
       throw new IllegalStateException("readMemory() size > 256");
     }
+    long start = System.nanoTime();
     stWord(PTR, address);                                             // Write address to ptr
     setRepeat(size - 1);                                              // Set repeat
-    return ld(AT_PTR_PP, BYTE, size);                                 // Read data bytes
+    byte[] data = ld(AT_PTR_PP, BYTE, size);                          // Read data bytes
+    frame.getLinkStats().bytes(TOOL_NAME, getMemType(address), false, size, System.nanoTime() - start);
+    return data;
+  }
+
+  /**
+   * Stream len bytes of memory starting at address directly into dst[] starting at off.  The pointer is set
+   * only once because LD *(ptr++) leaves it pointing at the start of the next block.  Each block (up to 256
+   * words) then needs only a REPEAT and an LD, sent together in one write, and the next block's command goes
+   * out as soon as the last byte of the current block arrives.
+   * Note: UPDI is half duplex, so a command cannot be sent while the target is still sending data
+   *
+   * @param address direct memory address
+   * @param dst     array to read into
+   * @param off     offset into dst[] of first byte
+   * @param len     number of bytes to read
+   * @throws SerialPortException
+   */
+  public void readStream (int address, byte[] dst, int off, int len) throws SerialPortException {
+    long start = System.nanoTime();
+    stWord(PTR, address);                                             // Write address to ptr
+    for (int idx = 0; idx < len; ) {
+      int count = Math.min(512, len - idx);
+      int dataType = count > 1 ? WORD : BYTE;
+      if (dataType == WORD) {
+        count &= ~1;                                                  // Odd last byte is read by itself
+      }
+      int repeat = (dataType == WORD ? count / 2 : count) - 1;
+      sendBytes(new byte[] {SYNC, (byte) REPEAT, (byte) repeat, SYNC, (byte) (LD | (AT_PTR_PP << 2) | dataType)});
+      lastInstr = LD >> 5;                                            // Count data as an LD response
+      getBytes(dst, off + idx, count);
+      idx += count;
+      setProgressValue((int) ((float) idx / len * 100.0));
+    }
+    frame.getLinkStats().bytes(TOOL_NAME, getMemType(address), false, len, System.nanoTime() - start);
   }
 
   /**
@@ -485,30 +686,125 @@ public class SDBG extends Programmer {
    * @throws SerialPortException
    */
   public void writeMemory (int address, byte[] data) throws SerialPortException {
-    if (data.length > 256) {
-      throw new IllegalStateException("readMemory() size > 256");
+    writeMemory(address, data, 0, data.length);
+  }
+
+  /**
+   * Write len bytes of data[] starting at off to address
+   * @param address direct memory address
+   * @param data    byte[] array of data to write
+   * @param off     offset into data[] of first byte to write
+   * @param len     number of bytes to write (max 256)
+   * @throws SerialPortException
+   */
+  private void writeMemory (int address, byte[] data, int off, int len) throws SerialPortException {
+    if (len > 256) {
+      throw new IllegalStateException("writeMemory() size > 256");
     }
-    stWord(PTR, address);                                             // Write address to ptr
-    setRepeat(data.length - 1);                                       // Set repeat
-    stByte(AT_PTR_PP, data[0] & 0xFF);                                // Write first data byte via *(ptr++)
-    for (int ii = 1; ii < data.length; ii++) {
-      sendBytes(new byte[] {data[ii]});
-      getAck();
+    long start = System.nanoTime();
+    if (burst) {
+      writeBurst(address, data, off, len, BYTE);
+    } else {
+      stWord(PTR, address);                                           // Write address to ptr
+      setRepeat(len - 1);                                             // Set repeat
+      stByte(AT_PTR_PP, data[off] & 0xFF);                            // Write first data byte via *(ptr++)
+      for (int ii = 1; ii < len; ii++) {
+        sendBytes(new byte[] {data[off + ii]});
+        getAck();
+      }
     }
+    frame.getLinkStats().bytes(TOOL_NAME, getMemType(address), true, len, System.nanoTime() - start);
   }
 
-  public void waitFlash () throws SerialPortException {
-    for (int ii = 0; ii < 10; ii++) {
-      int status = lds(WORD, NVMCTRL_BASE + NVM_STATUS, 1)[0];
-      if ((status & (1 << 2)) != 0) {                                 // Write error
-        throw new IllegalStateException("waitFlash() write errir");
+  /**
+   * Write len bytes of data[] starting at off to address using a single REPEAT'ed ST *(ptr++) instruction
+   * with CTRLA.RSD set, so the target sends no ACK after each byte, or word.  The pointer, REPEAT and ST
+   * instructions and all the data go out in one writeBytes() call and the echo is checked once, then
+   * STATUSB is read to make sure the target did not signal an error while ACKs were disabled
+   * @param address  direct memory address
+   * @param data     byte[] array of data to write
+   * @param off      offset into data[] of first byte to write
+   * @param len      number of bytes to write (max of 256 BYTE, or 256 WORD transfers)
+   * @param dataType BYTE or WORD
+   * @throws SerialPortException
+   */
+  private void writeBurst (int address, byte[] data, int off, int len, int dataType) throws SerialPortException {
+    int count = dataType == WORD ? len / 2 : len;
+    if (count < 1 || count > 256 || (dataType == WORD && (len & 1) != 0)) {
+      throw new IllegalStateException("writeBurst() invalid length");
+    }
+    stcs(UPDI_CTRLA, IBDLY | RSD);                                    // Disable ACKs
+    try {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      buf.write(SYNC);
+      buf.write(ST | (PTR << 2) | WORD);                              // address -> ptr
+      buf.write(address & 0xFF);
+      buf.write((address >> 8) & 0xFF);
+      buf.write(SYNC);
+      buf.write(REPEAT);                                              // Repeat following ST count - 1 times
+      buf.write(count - 1);
+      buf.write(SYNC);
+      buf.write(ST | (AT_PTR_PP << 2) | dataType);                    // Write data via *(ptr++)
+      buf.write(data, off, len);
+      sendBytes(buf.toByteArray());
+    } finally {
+      stcs(UPDI_CTRLA, IBDLY);                                        // Enable ACKs
+    }
+    int code = ldcs(UPDI_STATUSB) & PESIG;
+    if (code != 0) {
+      throw new IllegalStateException("writeBurst() UPDI error " + code);
+    }
+  }
+
+  /**
+   * Wait for the NVM operation just started by a write to NVMCTRL.CTRLA to finish and check WRERROR.  Rather
+   * than poll NVMCTRL.STATUS as fast as the link allows, first sleep for the operation's datasheet time (see
+   * getNvmTime()) and then poll, doubling the delay between polls from POLL_MIN_NS up to POLL_MAX_NS.  Each
+   * wait is recorded in LinkStats as "wait <op>" and each poll that finds the NVM still busy as a retry.
+   * @param op     name of NVM command (used by LinkStats)
+   * @param expect expected time for operation (in microseconds)
+   * @throws SerialPortException
+   */
+  private void waitNvm (String op, int expect) throws SerialPortException {
+    long start = System.nanoTime();
+    long limit = start + expect * 10000L + 100000000L;                // 10x expected time + 100 ms
+    long delay = POLL_MIN_NS;
+    boolean failed = true;
+    sleep(expect * 1000L);
+    try {
+      int status;
+      while (((status = ldsByte(NVMCTRL_BASE + NVM_STATUS)) & 0x03) != 0) {   // Wait for FBUSY and EEBUSY == 0
+        if (System.nanoTime() > limit) {
+          throw new IllegalStateException("waitNvm() " + op + " timeout");
+        }
+        frame.getLinkStats().retry(TOOL_NAME, "wait " + op);
+        sleep(delay);
+        delay = Math.min(delay * 2, POLL_MAX_NS);
       }
-      if ((status & (1 << 1)) != 0 || (status & (1 << 0)) != 0) {     // Flash or EEPROM busy
-        continue;
+      if ((status & (1 << 2)) != 0) {                                 // WRERROR
+        throw new IllegalStateException("NVM write error (" + op + ")");
       }
-      return;
+      failed = false;
+    } finally {
+      frame.getLinkStats().command(TOOL_NAME, "wait " + op, System.nanoTime() - start, 0, failed);
+    }
+  }
+
+  /**
+   * Get the datasheet time for an NVM operation from the chip's attinys.props entry
+   * @param key name of time, such as "pageWrite"
+   * @return time (in microseconds), or 0 if not known
+   */
+  private int getNvmTime (String key) {
+    String val = chip != null ? chip.get(key) : null;
+    return val != null ? Integer.parseInt(val) : 0;
+  }
+
+  private static void sleep (long ns) {
+    long end = System.nanoTime() + ns;
+    for (long left = ns; left > 0; left = end - System.nanoTime()) {
+      LockSupport.parkNanos(left);
     }
-    throw new IllegalStateException("waitFlashReady() timeout");
   }
 
   /**
@@ -519,11 +815,14 @@ public class SDBG extends Programmer {
    */
   private void waitRegBitClear (int register, int bit) throws SerialPortException{
     int timeout = 100;
-    do {
+    long delay = POLL_MIN_NS;
+    while ((ldcs(register) & (1 << bit)) != 0) {                      // Wait for bit == 0
       if (timeout-- == 0) {
         throw new IllegalStateException("waitRegBitClear() timeout");
       }
-    } while ((ldcs(register) & (1 << bit)) != 0);                     // Wait for bit == 0
+      sleep(delay);
+      delay = Math.min(delay * 2, POLL_MAX_NS);
+    }
   }
 
   /**
@@ -534,35 +833,34 @@ public class SDBG extends Programmer {
    */
   private void waitRegBitSet (int register, int bit) throws SerialPortException{
     int timeout = 100;
-    do {
+    long delay = POLL_MIN_NS;
+    while ((ldcs(register) & (1 << bit)) == 0) {                      // Wait for bit != 0
       if (timeout-- == 0) {
         throw new IllegalStateException("waitRegBitSet() timeout");
       }
-    } while ((ldcs(register) & (1 << bit)) == 0);                     // Wait for bit != 0
+      sleep(delay);
+      delay = Math.min(delay * 2, POLL_MAX_NS);
+    }
   }
 
-  /** Wait for value in register ANDed with mask to goto zero
-   * @param register selected register
-   * @param mask selected bits mask
-   * @throws SerialPortException
-   */
-  private void waitRegMaskZero (int register, int mask) throws SerialPortException{
-    int timeout = 100;
-    do {
-      if (timeout-- == 0) {
-        throw new IllegalStateException("waitRegMaskZero() timeout");
-      }
-    } while ((ldcs(register) & mask) != 0);                     // Wait for (value & mask) != 0
+  private static int getWord (byte[] data, int off) {
+    return (data[off] & 0xFF) + ((data[off + 1] & 0xFF) << 8);
   }
 
-  private int[] bytesToWords (byte[] data) {
-    int[] words = new int[data.length / 2];
-    int idx = 0;
-    for (int ii = 0; ii < words.length; ii++) {
-      words[ii] = (data[idx] & 0xFF) + (((data[idx + 1] & 0xFF) << 8));
-      idx += 2;
+  /**
+   * Check if the bytes of data[] starting at off are all 0xFF (bytes past the end of data[] count as 0xFF)
+   * @param data byte[] array of code
+   * @param off  offset into data[] of first byte
+   * @param len  number of bytes to check
+   * @return true if all 0xFF, else false
+   */
+  private static boolean isBlank (byte[] data, int off, int len) {
+    for (int ii = off; ii < Math.min(off + len, data.length); ii++) {
+      if (data[ii] != (byte) 0xFF) {
+        return false;
+      }
     }
-    return words;
+    return true;
   }
 
   /**
@@ -571,7 +869,7 @@ public class SDBG extends Programmer {
   class NvmHandler {
     byte[] doAction () {
       try {
-        jPort.open(null);
+        jPort.openBuffered();                                         // So getBytes() reads straight into the caller's array
         init();
         enterNvmProgMode();
         byte[] ret = action();
@@ -641,21 +939,16 @@ public class SDBG extends Programmer {
     return new NvmHandler() {
       @Override
       byte[] action () throws SerialPortException {
-        byte[] buf = new byte[256];
-        for (int idx = 0; idx < data.length; idx += buf.length) {
-          int remain = Math.min(256, data.length - idx);
-          buf = readMemory(FLASH_BASE + address + idx, remain);
-          setProgressValue((int) ((float) idx / data.length * 100.0));
-          System.arraycopy(buf, 0, data, idx, remain);
-        }
+        readStream(FLASH_BASE + address, data, 0, data.length);
         return data;
       }
     }.doAction();
   }
 
   /**
-   * Write code to flash in 32 word chunks
-   * @param address zero-based address
+   * Erase the chip and write code to flash a page at a time (page size from the chip's "fpage" value)
+   * Note: pages that are all 0xFF are left as erased
+   * @param address zero-based address (multiple of page size)
    * @param data byte[] array of code
    * @throws EDBGException
    */
@@ -664,36 +957,126 @@ public class SDBG extends Programmer {
     new NvmHandler() {
       @Override
       byte[] action () throws SerialPortException {
-        int pageSize = 64;                                            // 32 words
-        waitRegMaskZero(NVMCTRL_BASE + NVM_STATUS, 0x03);             // Wait for FBUSY and EEBUSY == 0
-        stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_CHER);                  // 0x05 -> NVM.NVM.CTRLA (Chip erase)
-        waitRegMaskZero(NVMCTRL_BASE + NVM_STATUS, 0x03);             // Wait for FBUSY and EEBUSY == 0
-        for (int idx = 0; idx < data.length; idx += pageSize) {
-          stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_PBC);                 // 0x04 -> NVM.NVM.CTRLA (Page buffer clear)
-          waitRegMaskZero(NVMCTRL_BASE + NVM_STATUS, 0x03);           // Wait for FBUSY and EEBUSY == 0
-          stWord(PTR, FLASH_BASE + address + idx);                    // FLASH_BASE + address + idx -> ptr
-          byte[] page = new byte[pageSize];
-          int remain = Math.min(pageSize, data.length - idx);         // remaining bytes to write in page
-          System.arraycopy(data, idx, page, 0, remain);               // Copy bytes into page[] array
-          for (int ii = remain; ii < pageSize; ii++) {
-            page[ii] = (byte) 0xFF;                                   // Fill unused bytes with 0xFF
-          }
-          int[] words = bytesToWords(page);
-          setRepeat(pageSize / 2 - 1);                                // Repeat fllowing command pageSize / 2 -1 times
-          stWord(AT_PTR_PP, words[0]);                                // Write first word to ptr
-          for (int ii = 1; ii < words.length; ii++) {
-            int word = words[ii];
-            sendBytes(new byte[] {(byte) word, (byte) (word >> 8)});
-            getAck();
-          }
-          stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_WP);                  // 0x01 -> NVM.NVM.CTRLA (Write page buffer to memory)
-          waitRegMaskZero(NVMCTRL_BASE + NVM_STATUS, 0x03);           // Wait for FBUSY and EEBUSY == 0
-          setProgressValue((int) ((float) idx / data.length * 100.0));
+        programFlash(address, data);
+        return null;
+      }
+    }.doAction();
+  }
+
+  /**
+   * Erase the chip and write the pages of data[] that aren't blank (must be in NVM programming mode)
+   * @param address zero-based address (multiple of page size)
+   * @param data byte[] array of code
+   * @throws SerialPortException
+   */
+  private void programFlash (int address, byte[] data) throws SerialPortException {
+    int pageSize = chip != null ? chip.getInt("fpage") : 64;
+    waitNvm("busy", 0);                                               // Wait for FBUSY and EEBUSY == 0
+    stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_CHER);                      // 0x05 -> NVM.NVM.CTRLA (Chip erase)
+    waitNvm("CHER", getNvmTime("chipErase"));
+    for (int idx = 0; idx < data.length; idx += pageSize) {
+      if (!isBlank(data, idx, pageSize)) {
+        loadPageBuffer(address + idx, data, idx, pageSize);
+        stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_WP);                    // 0x01 -> NVM.NVM.CTRLA (Write page buffer to memory)
+        waitNvm("WP", getNvmTime("pageWrite"));
+      }
+      setProgressValue((int) ((float) idx / data.length * 100.0));
+    }
+  }
+
+  /**
+   * Erase and write only the flash pages selected in pages using the Erase and Write Page (ERWP) command
+   * @param address  zero-based address of data[] (multiple of pageSize)
+   * @param data     byte[] array of code (length is a multiple of pageSize)
+   * @param pageSize target's flash page size (in bytes)
+   * @param pages    set bit n to erase and write the page at data[n * pageSize]
+   * @throws EDBGException
+   */
+  @Override
+  public void writeFlashPages (int address, byte[] data, int pageSize, BitSet pages) throws EDBGException {
+    new NvmHandler() {
+      @Override
+      byte[] action () throws SerialPortException {
+        int count = 0;
+        int numPages = data.length / pageSize;
+        for (int page = pages.nextSetBit(0); page >= 0 && page < numPages; page = pages.nextSetBit(page + 1)) {
+          int idx = page * pageSize;
+          loadPageBuffer(address + idx, data, idx, pageSize);
+          stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_ERWP);                // 0x03 -> NVM.NVM.CTRLA (Erase and write page)
+          waitNvm("ERWP", getNvmTime("pageErase") + getNvmTime("pageWrite"));
+          setProgressValue((int) ((float) ++count / pages.cardinality() * 100.0));
         }
         return null;
       }
     }.doAction();
+  }
+
+  /**
+   * Clear the NVM page buffer and load it with one page of data[] starting at off (only a partial last page
+   * is copied, so bytes past the end of data[] can be filled with 0xFF)
+   * @param address  zero-based flash address of page
+   * @param data     byte[] array of code
+   * @param off      offset into data[] of first byte in page
+   * @param pageSize target's flash page size (in bytes)
+   * @throws SerialPortException
+   */
+  private void loadPageBuffer (int address, byte[] data, int off, int pageSize) throws SerialPortException {
+    stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_PBC);                       // 0x04 -> NVM.NVM.CTRLA (Page buffer clear)
+    waitNvm("PBC", 0);
+    long start = System.nanoTime();
+    byte[] page = data;
+    int remain = data.length - off;                                   // remaining bytes to write
+    if (remain < pageSize) {
+      page = new byte[pageSize];
+      Arrays.fill(page, (byte) 0xFF);                                 // Fill unused bytes in last page with 0xFF
+      System.arraycopy(data, off, page, 0, remain);
+      off = 0;
+    }
+    if (burst) {
+      writeBurst(FLASH_BASE + address, page, off, pageSize, WORD);
+    } else {
+      stWord(PTR, FLASH_BASE + address);                              // FLASH_BASE + address -> ptr
+      setRepeat(pageSize / 2 - 1);                                    // Repeat fllowing command pageSize / 2 -1 times
+      stWord(AT_PTR_PP, getWord(page, off));                          // Write first word to ptr
+      for (int ii = 2; ii < pageSize; ii += 2) {
+        int word = getWord(page, off + ii);
+        sendBytes(new byte[] {(byte) word, (byte) (word >> 8)});
+        getAck();
+      }
+    }
+    frame.getLinkStats().bytes(TOOL_NAME, "FLASH", true, pageSize, System.nanoTime() - start);
+  }
+
+  /**
+   * Run the CRCSCAN peripheral over all of flash and wait for it to finish
+   * @return true if CRCSCAN reports flash matches the checksum stored in the last two bytes of flash
+   * @throws EDBGException
+   */
+  @Override
+  public boolean crcScanFlash () throws EDBGException {
+    byte[] ret = new NvmHandler() {
+      @Override
+      byte[] action () throws SerialPortException {
+        stsByte(CRCSCAN_BASE + CRCSCAN_CTRLA, 0x80);                  // Reset CRCSCAN
+        stsByte(CRCSCAN_BASE + CRCSCAN_CTRLB, 0x00);                  // SRC = FLASH, MODE = PRIORITY
+        stsByte(CRCSCAN_BASE + CRCSCAN_CTRLA, 0x01);                  // ENABLE
+        int timeout = 100;
+        int status;
+        do {
+          if (timeout-- == 0) {
+            throw new IllegalStateException("crcScanFlash() timeout");
+          }
+        } while (((status = ldsByte(CRCSCAN_BASE + CRCSCAN_STATUS)) & 0x01) != 0);   // Wait for BUSY == 0
+        stsByte(CRCSCAN_BASE + CRCSCAN_CTRLA, 0x80);                  // Reset CRCSCAN
+        return new byte[] {(byte) status};
+      }
+    }.doAction();
+    return (ret[0] & 0x02) != 0;                                      // OK
+  }
 
+  @Override
+  public boolean canCrcScan () {
+    return true;
   }
 
   /**
@@ -776,23 +1159,30 @@ public class SDBG extends Programmer {
   public void writeFuses (int[] offsets, byte[] fuses) throws EDBGException {
     new NvmHandler() {
       byte[] action () throws SerialPortException {
-        for (int idx = 0; idx < offsets.length; idx++) {
-          waitRegBitSet(ASI_SYS_STATUS, 3);                           // Wait for NVMPROG == 1
-          int address = FUSES_BASE + offsets[idx];
-          stsByte(NVMCTRL_BASE + NVM_ADDL, address & 0xFF);           // address & 0xFF -> NVM_ADDL
-          stsByte(NVMCTRL_BASE + NVM_ADDH, (address >> 8) & 0xFF);    // address >> 8 -> NVM_ADDH
-          stsByte(NVMCTRL_BASE + NVM_DATAL, fuses[idx]);              // fuse -> NVM_DATAL
-          stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_WFU);                 // NVM_WFU (0x07) -> NVM_WFU (Write fuse)
-          int status;
-          do {
-            status = ldsByte(NVMCTRL_BASE + NVM_STATUS);
-          } while ((status & 0x03) != 0);                             // Wait for EEBUSY & FBUSY == 0
-        }
+        programFuses(offsets, fuses);
         return null;
       }
     }.doAction();
   }
 
+  /**
+   * Write fuses one byte at a time (must be in NVM programming mode)
+   * @param offsets array of offsets to FUSE_BASE from which to write fuses
+   * @param fuses   fuse data bytes to write
+   * @throws SerialPortException
+   */
+  private void programFuses (int[] offsets, byte[] fuses) throws SerialPortException {
+    for (int idx = 0; idx < offsets.length; idx++) {
+      waitRegBitSet(ASI_SYS_STATUS, 3);                               // Wait for NVMPROG == 1
+      int address = FUSES_BASE + offsets[idx];
+      stsByte(NVMCTRL_BASE + NVM_ADDL, address & 0xFF);               // address & 0xFF -> NVM_ADDL
+      stsByte(NVMCTRL_BASE + NVM_ADDH, (address >> 8) & 0xFF);        // address >> 8 -> NVM_ADDH
+      stsByte(NVMCTRL_BASE + NVM_DATAL, fuses[idx]);                  // fuse -> NVM_DATAL
+      stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_WFU);                     // NVM_WFU (0x07) -> NVM_WFU (Write fuse)
+      waitNvm("WFU", getNvmTime("fuseWrite"));
+    }
+  }
+
   /**
    * Read EEPROM
    *
@@ -806,7 +1196,7 @@ public class SDBG extends Programmer {
     return new NvmHandler() {
       @Override
       byte[] action () throws SerialPortException {
-        waitFlash();
+        waitNvm("busy", 0);                                           // Wait for FBUSY and EEBUSY == 0
         return readMemory(EEPROM_BASE + address, size);
       }
     }.doAction();
@@ -824,23 +1214,35 @@ public class SDBG extends Programmer {
     new NvmHandler() {
       @Override
       byte[] action () throws SerialPortException {
-        waitFlash();
+        waitNvm("busy", 0);                                           // Wait for FBUSY and EEBUSY == 0
         stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_EEER);                  // 0x06 (Erase EEPROM)
-        for (int idx = 0; idx < data.length; idx += 32) {
-          int remain = Math.min(32, data.length - idx);
-          byte[] buf = new byte[remain];
-          System.arraycopy(data, idx, buf, 0, buf.length);
-          waitFlash();
-          stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_PBC);                 // 0x04 (Page buffer clear)
-          writeMemory(EEPROM_BASE + address + idx, buf);
-          stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_WP);                  // 0x01 (Write page buffer to memory)
-        }
-        waitFlash();
+        waitNvm("EEER", getNvmTime("eeErase"));
+        programPages(EEPROM_BASE + address, data, NVM_WP);
         return null;
       }
     }.doAction();
   }
 
+  /**
+   * Write data[] to EEPROM, or USERROW one EEPROM page ("epage" in attinys.props) at a time using the page
+   * buffer (only the bytes loaded into the page buffer are erased, or written)
+   * @param address data space address
+   * @param data    byte[] array of data to write
+   * @param cmd     NVM_WP (if already erased), or NVM_ERWP
+   * @throws SerialPortException
+   */
+  private void programPages (int address, byte[] data, int cmd) throws SerialPortException {
+    int time = getNvmTime("eeWrite") + (cmd == NVM_ERWP ? getNvmTime("eeErase") : 0);
+    int page = chip != null ? chip.getInt("epage") : 32;
+    for (int idx = 0; idx < data.length; idx += page) {
+      stsByte(NVMCTRL_BASE + NVM_CTRLA, NVM_PBC);                     // 0x04 (Page buffer clear)
+      waitNvm("PBC", 0);
+      writeMemory(address + idx, data, idx, Math.min(page, data.length - idx));
+      stsByte(NVMCTRL_BASE + NVM_CTRLA, cmd);                         // 0x01 (Write page), or 0x03 (Erase and write page)
+      waitNvm(cmd == NVM_ERWP ? "ERWP" : "WP", time);
+    }
+  }
+
   /**
    * Read the USERROW data
    * @param address (relative to USERROW_BASE)
@@ -886,6 +1288,70 @@ public class SDBG extends Programmer {
     }.doAction();
   }
 
+  /**
+   * Write all the images in job using one NVM programming session (one port open, link setup and key), rather
+   * than one session per memory.  Flash is written after a single chip erase.  EEPROM pages only need to be
+   * erased if the chip erase didn't clear EEPROM (EESAVE set in SYSCFG0), and USERROW pages are written with
+   * Erase and Write Page through the page buffer, as chip erase unlocks the target (no USERROW key needed).
+   * @param job images to write
+   * @return true if everything written reads back correctly
+   * @throws EDBGException
+   */
+  @Override
+  public boolean runJob (ProgramJob job) throws EDBGException {
+    byte[] ret = new NvmHandler() {
+      @Override
+      byte[] action () throws SerialPortException {
+        boolean eeErased = false;
+        if (job.flash != null) {
+          setProgressMessage("Writing Flash");
+          programFlash(0, job.flash);
+          eeErased = (ldsByte(FUSE_BASE + 5) & 0x01) == 0;            // SYSCFG0.EESAVE == 0
+        }
+        if (job.eeprom != null) {
+          setProgressMessage("Writing EEPROM");
+          programPages(EEPROM_BASE, job.eeprom, eeErased ? NVM_WP : NVM_ERWP);
+        }
+        if (job.userRow != null) {
+          setProgressMessage("Writing USERROW");
+          programPages(USERROW_BASE, job.userRow, NVM_ERWP);
+        }
+        setProgressMessage("Verifying...");
+        boolean verified = verifyMemory(FLASH_BASE, job.flash) && verifyMemory(EEPROM_BASE, job.eeprom) &&
+                           verifyMemory(USERROW_BASE, job.userRow);
+        if (verified && job.fuses != null) {
+          setProgressMessage("Writing Fuses");
+          programFuses(job.fuseOffsets, job.fuses);
+          byte[] data = readMemory(FUSE_BASE, 11);
+          byte[] expect = job.verifyFuses();
+          int[] offsets = job.verifyOffsets();
+          for (int ii = 0; ii < offsets.length; ii++) {
+            verified &= data[offsets[ii]] == expect[ii];
+          }
+        }
+        return new byte[] {(byte) (verified ? 1 : 0)};
+      }
+    }.doAction();
+    return ret[0] != 0;
+  }
+
+  /**
+   * Read back memory and compare it to data[] (must be in NVM programming mode)
+   * @param address data space address
+   * @param data    expected data (null to skip)
+   * @return true if memory matches data[], or data[] is null
+   * @throws SerialPortException
+   */
+  private boolean verifyMemory (int address, byte[] data) throws SerialPortException {
+    if (data == null) {
+      return true;
+    }
+    waitNvm("busy", 0);
+    byte[] buf = new byte[data.length];
+    readStream(address, buf, 0, buf.length);
+    return Arrays.equals(data, buf);
+  }
+
   @Override
   public void close () {
   }
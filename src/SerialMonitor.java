@@ -0,0 +1,466 @@
+import javax.swing.*;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
+import java.awt.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.prefs.Preferences;
+
+import jssc.SerialPort;
+
+  /*
+   * Serial Monitor pane used to view text, such as telemetry, sent by the target's UART
+   *
+   * The port is opened with JSSCPort.openBuffered(), so received bytes land in JSSCPort's ring buffer.  A reader
+   * thread drains the ring, splits the bytes into lines (lines longer than MAX_LINE are broken up) and, when
+   * "Plot CSV" is checked, parses lines holding only numbers separated by commas into the Plot's ring buffers.
+   * Completed lines are queued for the EDT, which picks up the whole queue once per frame (FRAME_MS) and adds
+   * it to the console in one batch.  The console is a JList with fixed size cells backed by a ring of MAX_LINES
+   * lines, so only the visible lines are ever laid out or painted, and the oldest lines are discarded as new
+   * ones arrive.  If the EDT falls more than MAX_LINES behind, queued lines are dropped rather than buffered.
+   */
+class SerialMonitor extends JPanel implements Runnable {
+  private static final int[]          BAUD_RATES = {9600, 19200, 38400, 57600, 115200, 230400, 250000, 460800,
+                                                    500000, 921600, 1000000};
+  private static final int            MAX_LINES = 5000;             // Lines kept in console (and queued for EDT)
+  private static final int            MAX_LINE = 160;               // Longer lines are split at this length
+  private static final int            FRAME_MS = 33;                // Console/plot update period (ms)
+  private static final long           IDLE_NS = 2000000;            // Reader wait when ring is empty (ns)
+  private static final int            READ_BLOCK = 4096;
+  private static final Font           codeFont = Utility.getCodeFont(12);
+  private final Preferences           prefs;
+  private final JSSCPort              port;
+  private final ConsoleModel          model = new ConsoleModel();
+  private final JList<String>         console = new JList<>(model);
+  private final JScrollPane           scroll = new JScrollPane(console);
+  private final Plot                  plot = new Plot();
+  private final JComboBox<String>     portSelect = new JComboBox<>();
+  private final JComboBox<Integer>    baudSelect = new JComboBox<>();
+  private final JButton               openButton = new JButton("Open");
+  private final JLabel                status = new JLabel();
+  private final Timer                 frameTimer = new Timer(FRAME_MS, ev -> updateFrame());
+  private final ArrayDeque<String>    pending = new ArrayDeque<>();  // Lines waiting for EDT (lock on pending)
+  private final char[]                line = new char[MAX_LINE];    // Line being assembled (reader thread only)
+  private int                         lineLen;
+  private volatile String             partial;                      // Incomplete last line, if any
+  private volatile boolean            running, plotting;
+  private volatile long               rxCount, droppedLines;
+  private Thread                      reader;
+  private long                        rateTime, rateCount;
+  private String                      rateText = "";
+
+  SerialMonitor (Preferences prefs) {
+    super(new BorderLayout());
+    this.prefs = prefs;
+    port = new JSSCPort(prefs);
+    // Setup controls
+    JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 2));
+    controls.add(new JLabel("Port:"));
+    String portName = prefs.get("monitor.port", null);
+    if (portName != null) {
+      portSelect.addItem(portName);
+    }
+    portSelect.setPrototypeDisplayValue("/dev/cu.usbserial-XXXXXX");
+    portSelect.addPopupMenuListener(new PopupMenuListener() {
+      @Override
+      public void popupMenuWillBecomeVisible (PopupMenuEvent ev) {
+        // Rescan ports on demand
+        Object sel = portSelect.getSelectedItem();
+        portSelect.removeAllItems();
+        for (String name : port.getSerialDeviceNames()) {
+          portSelect.addItem(name);
+        }
+        portSelect.setSelectedItem(sel);
+      }
+
+      @Override
+      public void popupMenuWillBecomeInvisible (PopupMenuEvent ev) { }
+
+      @Override
+      public void popupMenuCanceled (PopupMenuEvent ev) { }
+    });
+    controls.add(portSelect);
+    controls.add(new JLabel("Baud:"));
+    for (int rate : BAUD_RATES) {
+      baudSelect.addItem(rate);
+    }
+    baudSelect.setSelectedItem(prefs.getInt("monitor.baud", 115200));
+    baudSelect.addActionListener(ev -> {
+      int rate = (Integer) baudSelect.getSelectedItem();
+      prefs.putInt("monitor.baud", rate);
+      if (port.isOpen()) {
+        try {
+          port.setBaudRate(rate);
+        } catch (Exception ex) {
+          status.setText(ex.getMessage());
+        }
+      }
+    });
+    controls.add(baudSelect);
+    openButton.addActionListener(ev -> {
+      if (port.isOpen()) {
+        close();
+      } else {
+        open();
+      }
+    });
+    controls.add(openButton);
+    JButton clear = new JButton("Clear");
+    clear.addActionListener(ev -> {
+      model.clear();
+      plot.clear();
+    });
+    controls.add(clear);
+    JCheckBox plotBox = new JCheckBox("Plot CSV", prefs.getBoolean("monitor.plot", false));
+    plotBox.addActionListener(ev -> {
+      prefs.putBoolean("monitor.plot", plotting = plotBox.isSelected());
+      plot.setVisible(plotting);
+      revalidate();
+    });
+    controls.add(plotBox);
+    controls.add(status);
+    add("North", controls);
+    // Setup console (fixed cell size lets JList skip measuring every line)
+    console.setFont(codeFont);
+    FontMetrics fm = console.getFontMetrics(codeFont);
+    console.setFixedCellHeight(fm.getHeight());
+    console.setFixedCellWidth(fm.charWidth('m') * MAX_LINE + 10);
+    JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, scroll, plot);
+    split.setResizeWeight(0.5);
+    plot.setPreferredSize(new Dimension(400, 250));
+    plot.setVisible(plotting = plotBox.isSelected());
+    add("Center", split);
+  }
+
+  private void open () {
+    String portName = (String) portSelect.getSelectedItem();
+    if (portName == null) {
+      status.setText("Select a port");
+      return;
+    }
+    int rate = (Integer) baudSelect.getSelectedItem();
+    try {
+      port.setPort(portName);
+      port.setParameters(rate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+      port.openBuffered();
+    } catch (Exception ex) {
+      status.setText("Unable to open " + portName + ": " + ex.getMessage());
+      return;
+    }
+    prefs.put("monitor.port", portName);
+    lineLen = 0;
+    partial = null;
+    running = true;
+    reader = new Thread(this, "Serial monitor");
+    reader.setDaemon(true);
+    reader.start();
+    rateTime = System.currentTimeMillis();
+    rateCount = rxCount;
+    frameTimer.start();
+    openButton.setText("Close");
+  }
+
+  /**
+   * Stop the reader thread and close the port (if open)
+   */
+  void close () {
+    running = false;
+    if (reader != null) {
+      try {
+        reader.join(500);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      reader = null;
+    }
+    try {
+      port.close();
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    frameTimer.stop();
+    updateFrame();
+    openButton.setText("Open");
+  }
+
+  /**
+   * Reader thread: drain JSSCPort's ring buffer and split the bytes into lines
+   */
+  public void run () {
+    byte[] buf = new byte[READ_BLOCK];
+    while (running) {
+      int count = port.readAvailable(buf, 0, buf.length);
+      if (count == 0) {
+        LockSupport.parkNanos(IDLE_NS);
+        continue;
+      }
+      rxCount += count;
+      for (int ii = 0; ii < count; ii++) {
+        char cc = (char) (buf[ii] & 0xFF);
+        if (cc == '\n') {
+          addLine();
+        } else if (cc != '\r') {
+          if (lineLen == MAX_LINE) {
+            addLine();
+          }
+          line[lineLen++] = cc;
+        }
+      }
+      partial = lineLen > 0 ? new String(line, 0, lineLen) : null;
+    }
+  }
+
+  private void addLine () {
+    String text = new String(line, 0, lineLen);
+    lineLen = 0;
+    if (plotting) {
+      plot.parse(text);
+    }
+    synchronized (pending) {
+      if (pending.size() >= MAX_LINES) {
+        pending.removeFirst();
+        droppedLines++;
+      }
+      pending.addLast(text);
+    }
+  }
+
+  /**
+   * Called by frameTimer on the EDT to move queued lines into the console and repaint the plot
+   */
+  private void updateFrame () {
+    List<String> batch;
+    synchronized (pending) {
+      batch = new ArrayList<>(pending);
+      pending.clear();
+    }
+    String part = partial;
+    if (batch.size() > 0 || part != model.partial) {
+      JScrollBar bar = scroll.getVerticalScrollBar();
+      boolean atEnd = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - console.getFixedCellHeight();
+      int removed = model.append(batch, part);
+      if (atEnd) {
+        console.ensureIndexIsVisible(model.getSize() - 1);
+      } else if (removed > 0) {
+        // Keep the lines being viewed in place as older lines are discarded
+        bar.setValue(bar.getValue() - removed * console.getFixedCellHeight());
+      }
+    }
+    if (plotting) {
+      plot.update();
+    }
+    long now = System.currentTimeMillis();
+    if (now - rateTime >= 1000) {
+      long bytes = rxCount;
+      rateText = String.format("%,d bytes/sec", (bytes - rateCount) * 1000 / (now - rateTime));
+      rateTime = now;
+      rateCount = bytes;
+    }
+    long dropped = port.getDropped() + droppedLines;
+    status.setText(port.isOpen() ? rateText + (dropped > 0 ? ", dropped " + dropped : "") : "");
+  }
+
+  /*
+   * Console lines held in a ring of MAX_LINES Strings (accessed only on the EDT)
+   */
+  private static class ConsoleModel extends AbstractListModel<String> {
+    private final String[]  lines = new String[MAX_LINES];
+    private long            first, end;                           // Total lines discarded, total lines added
+    private String          partial;
+
+    @Override
+    public int getSize () {
+      return (int) (end - first) + (partial != null ? 1 : 0);
+    }
+
+    @Override
+    public String getElementAt (int index) {
+      if (index < end - first) {
+        return lines[(int) ((first + index) % MAX_LINES)];
+      }
+      return partial;
+    }
+
+    /**
+     * Add a batch of lines, discarding the oldest lines if more than MAX_LINES are held
+     * @param batch completed lines (no more than MAX_LINES)
+     * @param part incomplete last line, or null
+     * @return number of lines discarded
+     */
+    int append (List<String> batch, String part) {
+      int oldSize = getSize();
+      boolean hadPartial = partial != null;
+      for (String text : batch) {
+        lines[(int) (end++ % MAX_LINES)] = text;
+      }
+      int removed = (int) Math.max(0, end - first - MAX_LINES);
+      first += removed;
+      partial = part;
+      int mid = oldSize - removed;
+      if (removed > 0) {
+        fireIntervalRemoved(this, 0, removed - 1);
+      }
+      int newSize = getSize();
+      if (newSize > mid) {
+        fireIntervalAdded(this, mid, newSize - 1);
+      } else if (newSize < mid) {
+        fireIntervalRemoved(this, newSize, mid - 1);
+      }
+      if (hadPartial && mid > 0 && mid <= newSize) {
+        // Prior incomplete line was replaced
+        fireContentsChanged(this, mid - 1, mid - 1);
+      }
+      return removed;
+    }
+
+    void clear () {
+      int size = getSize();
+      first = end;
+      partial = null;
+      if (size > 0) {
+        fireIntervalRemoved(this, 0, size - 1);
+      }
+    }
+  }
+
+  /*
+   * Real-time plot of up to MAX_SERIES values per line, each series held in a primitive ring of MAX_POINTS
+   * samples.  parse() is called by the reader thread, and paintComponent() by the EDT (both lock on the Plot)
+   */
+  private static class Plot extends JComponent {
+    private static final int      MAX_SERIES = 8;
+    private static final int      MAX_POINTS = 2048;              // Must be a power of 2
+    private static final Color[]  colors = {Color.blue, Color.red, new Color(0, 150, 0), Color.magenta,
+                                            Color.orange, Color.cyan.darker(), Color.gray, Color.black};
+    private final double[][]      data = new double[MAX_SERIES][MAX_POINTS];
+    private final double[]        values = new double[MAX_SERIES];
+    private final int[]           xPoints = new int[MAX_POINTS];
+    private final int[]           yPoints = new int[MAX_POINTS];
+    private long                  count, painted;                 // Total samples added, samples at last repaint
+    private int                   series;
+
+    Plot () {
+      setBackground(Color.white);
+      setOpaque(true);
+    }
+
+    /**
+     * If text holds only numbers separated by commas, add them as one sample
+     * @param text line of text
+     */
+    void parse (String text) {
+      int num = 0;
+      int start = 0;
+      int len = text.length();
+      while (start <= len && num < MAX_SERIES) {
+        int comma = text.indexOf(',', start);
+        int end = comma >= 0 ? comma : len;
+        String field = text.substring(start, end).trim();
+        if (field.isEmpty() || !isNumber(field)) {
+          return;
+        }
+        try {
+          values[num++] = Double.parseDouble(field);
+        } catch (NumberFormatException ex) {
+          return;
+        }
+        start = end + 1;
+      }
+      synchronized (this) {
+        int idx = (int) count & (MAX_POINTS - 1);
+        for (int ii = 0; ii < MAX_SERIES; ii++) {
+          // Series this line has no field for are set to NaN, so they show a gap rather than a stale value
+          data[ii][idx] = ii < num ? values[ii] : Double.NaN;
+        }
+        series = Math.max(series, num);
+        count++;
+      }
+    }
+
+    private static boolean isNumber (String field) {
+      for (int ii = 0; ii < field.length(); ii++) {
+        char cc = field.charAt(ii);
+        if ((cc < '0' || cc > '9') && cc != '.' && cc != '-' && cc != '+' && cc != 'e' && cc != 'E') {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Repaint if samples were added since the last repaint (called once per frame on the EDT)
+     */
+    void update () {
+      synchronized (this) {
+        if (count == painted) {
+          return;
+        }
+        painted = count;
+      }
+      repaint();
+    }
+
+    synchronized void clear () {
+      count = painted = 0;
+      series = 0;
+      repaint();
+    }
+
+    @Override
+    protected synchronized void paintComponent (Graphics g) {
+      Dimension size = getSize();
+      g.setColor(getBackground());
+      g.fillRect(0, 0, size.width, size.height);
+      int points = (int) Math.min(count, MAX_POINTS);
+      if (points < 2) {
+        return;
+      }
+      // Auto scale Y axis to range of values held (NaN marks a sample with no value for a series)
+      double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+      for (int ss = 0; ss < series; ss++) {
+        for (int ii = 0; ii < points; ii++) {
+          double val = data[ss][ii];
+          if (!Double.isNaN(val)) {
+            min = Math.min(min, val);
+            max = Math.max(max, val);
+          }
+        }
+      }
+      if (min > max) {
+        return;
+      }
+      if (max == min) {
+        max += 1;
+        min -= 1;
+      }
+      int top = 14, height = size.height - top - 4;
+      double yScale = height / (max - min);
+      double xScale = (double) (size.width - 1) / (MAX_POINTS - 1);
+      long base = count - points;
+      Graphics2D g2 = (Graphics2D) g;
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      for (int ss = 0; ss < series; ss++) {
+        g2.setColor(colors[ss]);
+        // Draw each run of samples that have a value for this series as a separate polyline
+        int run = 0;
+        for (int ii = 0; ii <= points; ii++) {
+          double val = ii < points ? data[ss][(int) (base + ii) & (MAX_POINTS - 1)] : Double.NaN;
+          if (Double.isNaN(val)) {
+            if (run > 1) {
+              g2.drawPolyline(xPoints, yPoints, run);
+            }
+            run = 0;
+          } else {
+            xPoints[run] = (int) Math.round(ii * xScale);
+            yPoints[run++] = top + (int) Math.round((max - val) * yScale);
+          }
+        }
+      }
+      g2.setColor(Color.darkGray);
+      g2.setFont(codeFont);
+      g2.drawString(String.format("max: %.4g  min: %.4g", max, min), 4, top - 2);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+  /*
+   * Runs the EDBG and SDBG programming flows against a SimTarget without a GUI, programmer, or target, such as
+   * on a CI build machine with no display.  For each chip named on the command line (attiny1614, if none), and
+   * for each simulated tool, it erases the target and writes and verifies flash, EEPROM, USERROW and fuses, first
+   * one memory at a time and then as a single ProgramJob.  Each step is listed with its time and result, and the
+   * exit status is 1 if any step fails.
+   *
+   * Usage (from the project directory):
+   *
+   *    javac -encoding UTF-8 -d out/harness -cp "lib/*" src/*.java
+   *    java -Djava.awt.headless=true -cp "out/harness:resources:lib/*" SimHarness [chip ...]
+   *
+   * Settings are kept in their own Preferences node, which is cleared before each run, so a run doesn't depend
+   * on, or change MegaTinyIDE's settings.
+   */
+class SimHarness implements Programmer.Host {
+  private static final int[]    FUSE_OFFSETS = {2, 5};        // OSCCFG and SYSCFG0
+  private final Preferences     prefs = Preferences.userRoot().node("MegaTinyIDE-SimHarness");
+  private final LinkStats       linkStats = new LinkStats();
+  private final Random          rnd = new Random(1);
+  private String                avrChip;
+  private int                   failures;
+
+  public static void main (String[] args) throws BackingStoreException {
+    SimHarness harness = new SimHarness();
+    harness.prefs.clear();
+    for (String chip : args.length > 0 ? args : new String[] {"attiny1614"}) {
+      harness.run(chip.toLowerCase());
+    }
+    EDBG.closeIdle();
+    System.out.println(harness.failures == 0 ? "All steps passed" : harness.failures + " step(s) failed");
+    System.exit(harness.failures == 0 ? 0 : 1);
+  }
+
+  private void run (String chip) {
+    MegaTinyIDE.ChipInfo info = MegaTinyIDE.getChipInfo(chip);
+    if (info == null) {
+      step(chip, "unknown chip type", false, 0);
+      return;
+    }
+    avrChip = chip;
+    for (String tool : new String[] {"EDBG", "SDBG"}) {
+      String name = chip + " " + tool;
+      long start = System.nanoTime();
+      Programmer prog;
+      try {
+        if (tool.equals("EDBG")) {
+          prog = EDBG.getInstance(this, null, SimTarget.EDBG_KEY, true);
+        } else {
+          SimTarget target = SimTarget.getTarget(info);
+          prog = new SDBG(this, new SimSerialPort(prefs, target, prefs.getInt("sim_latency", 1000)));
+        }
+      } catch (Exception ex) {
+        step(name, "connect: " + ex.getMessage(), false, start);
+        continue;
+      }
+      try {
+        step(name, "connect", true, start);
+        byte[] code = random(Math.min(4096, info.getInt("flash") * 1024 / 2));
+        byte[] eeprom = random(info.getInt("eeprom"));
+        byte[] userRow = random(32);
+        byte[] fuses = {0x02, (byte) 0xF6};
+        start = System.nanoTime();
+        prog.eraseTarget(0, 0);
+        prog.writeFlash(0, code);
+        step(name, "write flash", verify(prog, code, null, null, null), start);
+        start = System.nanoTime();
+        prog.writeEeprom(0, eeprom);
+        step(name, "write EEPROM", verify(prog, null, eeprom, null, null), start);
+        start = System.nanoTime();
+        prog.writeUserRow(0, userRow);
+        step(name, "write USERROW", verify(prog, null, null, userRow, null), start);
+        start = System.nanoTime();
+        prog.writeFuses(FUSE_OFFSETS, fuses);
+        step(name, "write fuses", verify(prog, null, null, null, fuses), start);
+        // Change every image, so the job's verify can't pass on what was written above
+        code = random(code.length);
+        eeprom = random(eeprom.length);
+        userRow = random(userRow.length);
+        fuses = new byte[] {0x01, (byte) 0xF7};
+        start = System.nanoTime();
+        boolean ok = prog.runJob(new Programmer.ProgramJob(code, eeprom, userRow, FUSE_OFFSETS, fuses));
+        step(name, "program job", ok && verify(prog, code, eeprom, userRow, fuses), start);
+      } catch (Exception ex) {
+        step(name, ex.getMessage(), false, start);
+      } finally {
+        prog.close();
+      }
+    }
+  }
+
+  /**
+   * Read back each image that isn't null and compare it to what was written
+   */
+  private static boolean verify (Programmer prog, byte[] code, byte[] eeprom, byte[] userRow, byte[] fuses) {
+    if (code != null) {
+      // Read whole pages, as some programmers can only read flash a page at a time
+      int len = (code.length + Programmer.MAX_FLASH_PAGE - 1) / Programmer.MAX_FLASH_PAGE * Programmer.MAX_FLASH_PAGE;
+      if (!Arrays.equals(code, Arrays.copyOf(prog.readFlash(0, len), code.length))) {
+        return false;
+      }
+    }
+    return (eeprom == null || Arrays.equals(eeprom, prog.readEeprom(0, eeprom.length))) &&
+           (userRow == null || Arrays.equals(userRow, prog.readUserRow(0, userRow.length))) &&
+           (fuses == null || Arrays.equals(fuses, prog.readFuses(FUSE_OFFSETS)));
+  }
+
+  private void step (String name, String step, boolean ok, long start) {
+    long ms = start > 0 ? (System.nanoTime() - start) / 1000000 : 0;
+    System.out.printf("%-20s %-20s %6d ms  %s%n", name, step, ms, ok ? "ok" : "FAILED");
+    if (!ok) {
+      failures++;
+    }
+  }
+
+  private byte[] random (int size) {
+    byte[] data = new byte[size];
+    rnd.nextBytes(data);
+    return data;
+  }
+
+  // Programmer.Host methods
+
+  public Preferences getPrefs () {
+    return prefs;
+  }
+
+  public LinkStats getLinkStats () {
+    return linkStats;
+  }
+
+  public String getAvrChip () {
+    return avrChip;
+  }
+
+  public boolean decodeUpdi () {
+    return false;
+  }
+
+  public void infoPrintln (String msg) {
+    System.out.println(msg);
+  }
+
+  public void appendToInfoPane (String text) {
+    System.out.print(text);
+  }
+
+  public void removeProgrammer () {
+    // Nothing to do, as SimHarness doesn't keep a current Programmer
+  }
+
+  public JFrame getFrame () {
+    return null;
+  }
+}
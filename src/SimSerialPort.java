@@ -0,0 +1,441 @@
+import jssc.SerialPort;
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+import java.util.Arrays;
+import java.util.prefs.Preferences;
+
+  /*
+   * Software stand-in for a serial UPDI adapter connected to a SimTarget
+   *
+   * Replaces the serial port used by SDBG, so SDBG's UPDI commands can be run without an adapter, or target.
+   * As on a real one wire UPDI connection, every byte written is echoed back before any response.  The UPDI
+   * responder decodes the instruction stream a byte at a time and answers LDS, LD, LDCS and KEY (SIB)
+   * instructions, sends an ACK after STS and ST unless CTRLA.RSD is set, and implements the REPEAT counter,
+   * the pointer register and the NvmProg, ChipErase and UserRow keys, including the reset sequence that
+   * activates them, ASI_SYS_STATUS and UROWWRITE_FINAL.  Data space accesses go to the SimTarget.
+   *
+   * The UPDI clock is set by ASI_CTRLA.UPDICLKSEL (4 MHz after a double BREAK) and, as on a real target,
+   * limits the baud rate UPDI can receive.  Above that rate the responder ignores the bytes it is sent and
+   * reports a frame error in STATUSB, though the adapter still echoes them.
+   *
+   * Time is modelled as the time each byte takes on the wire at the baud rate set by SDBG (12 bits per byte)
+   * plus latency for each read (a USB serial adapter delivers received bytes once per its latency timer).
+   * readBytes() throws SerialPortTimeoutException, just like the real port, if the responder has not sent
+   * enough bytes.
+   */
+class SimSerialPort extends JSSCPort {
+  private static final int      UPDI_FRAME_BITS = 12;         // Start, 8 data, parity and 2 stop bits
+  private static final long     BREAK_NS = 45000000;          // Time JSSCPort.sendBreak() takes at 300 baud
+  private static final int[]    UPDI_MAX_BAUD = {225000, 900000, 450000, 225000};  // Indexed by UPDICLKSEL
+  private static final int      SYNC = 0x55;
+  private static final int      ACK = 0x40;
+  private static final byte[]   SIB = "tinyAVR P:0D:1-3M2 (01.59B14.0)".getBytes();
+  // Keys (as sent, LSB first)
+  private static final byte[]   NVMPROG_KEY = {0x20, 0x67, 0x6F, 0x72, 0x50, 0x4D, 0x56, 0x4E};
+  private static final byte[]   CHIPERASE_KEY = {0x65, 0x73, 0x61, 0x72, 0x45, 0x4D, 0x56, 0x4E};
+  private static final byte[]   USERROW_KEY = {0x65, 0x74, 0x26, 0x73, 0x55, 0x4D, 0x56, 0x4E};
+  // ASI_KEY_STATUS bits
+  private static final int      CHIPERASE = 0x08;
+  private static final int      NVMPROG = 0x10;
+  private static final int      UROWWRITE = 0x20;
+  // Responder states
+  private static final int      IDLE = 0;                     // Waiting for SYNC
+  private static final int      OPCODE = 1;                   // Waiting for instruction
+  private static final int      OPERAND = 2;                  // Collecting operand bytes
+  private static final int      ST_DATA = 3;                  // Collecting data bytes for repeated ST
+  private final SimTarget       target;
+  private final SerialPort      simPort = new SerialPort(SimTarget.SERIAL_PORT);  // Names port in timeouts (never opened)
+  private final long            latency;
+  private final int[]           cs = new int[16];             // UPDI Control/Status registers
+  private final byte[]          operand = new byte[32];
+  private final byte[]          urowBuf = new byte[32];
+  private byte[]                rx = new byte[1024];
+  private int                   rxHead, rxTail;
+  private int                   state, opcode, need, got, phase, address, ptr, repeat;
+  private int                   keys;
+  private boolean               open, reset, nvmProg, urowProg;
+  private int                   baudRate;
+  private long                  byteNs, lineNs;
+
+  /**
+   * @param prefs   Preferences object (passed to JSSCPort)
+   * @param target  simulated target
+   * @param latency time to wait for each read (in microseconds)
+   */
+  SimSerialPort (Preferences prefs, SimTarget target, int latency) {
+    super(prefs);
+    this.target = target;
+    this.latency = latency * 1000L;
+    setPort(SimTarget.SERIAL_PORT);
+    cs[0x09] = 0x03;                                            // ASI_CTRLA.UPDICLKSEL = 4 MHz
+  }
+
+  @Override
+  public boolean postSelected () {
+    return true;
+  }
+
+  @Override
+  public boolean isOpen () {
+    return open;
+  }
+
+  @Override
+  public void setParameters (int baudRate, int dataBits, int stopBits, int parity) {
+    super.setParameters(baudRate, dataBits, stopBits, parity);
+    this.baudRate = baudRate;
+    byteNs = UPDI_FRAME_BITS * 1000000000L / baudRate;
+  }
+
+  @Override
+  void setBaudRate (int baudRate) throws SerialPortException {
+    super.setBaudRate(baudRate);
+    this.baudRate = baudRate;
+    byteNs = UPDI_FRAME_BITS * 1000000000L / baudRate;
+  }
+
+  @Override
+  void open (RXEvent handler) {
+    open = true;
+    rxHead = rxTail = 0;
+  }
+
+  @Override
+  void openBuffered () {
+    open(null);
+  }
+
+  @Override
+  public void close () {
+    open = false;
+  }
+
+  @Override
+  public void purgePort (int flags) {
+    rxHead = rxTail = 0;
+  }
+
+  /**
+   * A double BREAK resets the UPDI physical layer, but not the keys, or the target
+   */
+  @Override
+  public void sendDoubleBreak () {
+    sendBreak();
+    sendBreak();
+  }
+
+  @Override
+  public void sendBreak () {
+    SimTarget.delay(BREAK_NS);
+    rxHead = rxTail = 0;
+    state = IDLE;
+    repeat = 0;
+    cs[0x01] = cs[0x02] = cs[0x03] = 0;                         // STATUSB, CTRLA, CTRLB
+    cs[0x09] = 0x03;                                            // ASI_CTRLA.UPDICLKSEL = 4 MHz
+  }
+
+  @Override
+  void writeBytes (byte[] data) {
+    SimTarget.delay(data.length * byteNs);
+    boolean framed = baudRate <= UPDI_MAX_BAUD[cs[0x09] & 0x03];
+    for (byte cc : data) {
+      rxByte(cc & 0xFF);                                        // Echo
+      if (framed) {
+        process(cc & 0xFF);
+      } else {
+        cs[0x01] = 0x02;                                        // STATUSB.PESIG = Frame error
+        state = IDLE;
+      }
+    }
+  }
+
+  @Override
+  public byte[] readBytes (int size) throws SerialPortException {
+    try {
+      return readBytes(size, 100);
+    } catch (SerialPortTimeoutException ex) {
+      throw new IllegalStateException("readBytes() Timeout");
+    }
+  }
+
+  @Override
+  byte[] readBytes (int count, int timeout) throws SerialPortTimeoutException {
+    SimTarget.delay(latency + lineNs);
+    lineNs = 0;
+    if (rxTail - rxHead < count) {
+      SimTarget.delay(timeout * 1000000L);
+      throw new SerialPortTimeoutException(simPort, "readBytes()", timeout);
+    }
+    byte[] data = Arrays.copyOfRange(rx, rxHead, rxHead + count);
+    rxHead += count;
+    return data;
+  }
+
+  @Override
+  void readBytes (byte[] buf, int off, int count, int timeout) throws SerialPortTimeoutException {
+    SimTarget.delay(latency + lineNs);
+    lineNs = 0;
+    if (rxTail - rxHead < count) {
+      SimTarget.delay(timeout * 1000000L);
+      throw new SerialPortTimeoutException(simPort, "readBytes()", timeout);
+    }
+    System.arraycopy(rx, rxHead, buf, off, count);
+    rxHead += count;
+  }
+
+  private void rxByte (int val) {
+    if (rxTail == rx.length) {
+      System.arraycopy(rx, rxHead, rx, 0, rxTail - rxHead);
+      rxTail -= rxHead;
+      rxHead = 0;
+      if (rxTail == rx.length) {
+        rx = Arrays.copyOf(rx, rx.length * 2);
+      }
+    }
+    rx[rxTail++] = (byte) val;
+  }
+
+  /**
+   * Queue a byte sent by the target and count the time it takes on the wire
+   */
+  private void respond (int val) {
+    rxByte(val);
+    lineNs += byteNs;
+  }
+
+  private void ack () {
+    if ((cs[0x02] & 0x08) == 0) {                               // CTRLA.RSD
+      respond(ACK);
+    }
+  }
+
+  // = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =
+  //                    UPDI Responder
+  // = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =
+
+  private void process (int val) {
+    switch (state) {
+    case IDLE:
+      if (val == SYNC) {
+        state = OPCODE;
+      }
+      break;
+    case OPCODE:
+      opcode = val;
+      phase = 0;
+      state = IDLE;
+      switch (opcode & 0xE0) {
+      case 0x00:                                                // LDS
+      case 0x40:                                                // STS
+        expect(((opcode >> 2) & 0x03) + 1);                     // Address bytes
+        break;
+      case 0x20:                                                // LD
+        ld();
+        break;
+      case 0x60:                                                // ST
+        expect((opcode & 0x03) + 1);
+        break;
+      case 0x80:                                                // LDCS
+        respond(ldcs(opcode & 0x0F));
+        break;
+      case 0xA0:                                                // REPEAT
+        expect((opcode & 0x03) + 1);
+        break;
+      case 0xC0:                                                // STCS
+        expect(1);
+        break;
+      case 0xE0:                                                // KEY
+        if ((opcode & 0x04) != 0) {
+          // Send SIB (8, 16, or 32 bytes)
+          int len = 8 << (opcode & 0x03);
+          for (int ii = 0; ii < len; ii++) {
+            respond(ii < SIB.length ? SIB[ii] : 0);
+          }
+        } else {
+          expect(8 << (opcode & 0x03));
+        }
+        break;
+      }
+      break;
+    case OPERAND:
+    case ST_DATA:
+      operand[got++] = (byte) val;
+      if (got == need) {
+        boolean data = state == ST_DATA;
+        state = IDLE;
+        if (data) {
+          stData();
+        } else {
+          execute();
+        }
+      }
+      break;
+    }
+  }
+
+  private void expect (int count) {
+    need = count;
+    got = 0;
+    state = OPERAND;
+  }
+
+  private int getOperand (int count) {
+    int val = 0;
+    for (int ii = 0; ii < count; ii++) {
+      val |= (operand[ii] & 0xFF) << (ii * 8);
+    }
+    return val;
+  }
+
+  /**
+   * Called when all of an instruction's operand bytes have been received
+   */
+  private void execute () {
+    int dataSize = (opcode & 0x03) + 1;
+    switch (opcode & 0xE0) {
+    case 0x00:                                                  // LDS
+      address = getOperand(need);
+      for (int ii = 0; ii < dataSize; ii++) {
+        respond(target.read(address + ii));
+      }
+      break;
+    case 0x40:                                                  // STS
+      if (phase == 0) {
+        address = getOperand(need);
+        ack();
+        phase = 1;
+        expect(dataSize);
+      } else {
+        for (int ii = 0; ii < dataSize; ii++) {
+          write(address + ii, operand[ii] & 0xFF);
+        }
+        ack();
+      }
+      break;
+    case 0x60:                                                  // ST
+      if (((opcode >> 2) & 0x03) == 2) {                        // ptr
+        ptr = getOperand(need);
+        ack();
+      } else {
+        stData();
+      }
+      break;
+    case 0xA0:                                                  // REPEAT
+      repeat = getOperand(need);
+      break;
+    case 0xC0:                                                  // STCS
+      stcs(opcode & 0x0F, operand[0] & 0xFF);
+      break;
+    case 0xE0:                                                  // KEY
+      byte[] key = Arrays.copyOf(operand, 8);
+      if (Arrays.equals(key, NVMPROG_KEY)) {
+        keys |= NVMPROG;
+      } else if (Arrays.equals(key, CHIPERASE_KEY)) {
+        keys |= CHIPERASE;
+      } else if (Arrays.equals(key, USERROW_KEY)) {
+        keys |= UROWWRITE;
+      }
+      break;
+    }
+  }
+
+  /**
+   * Store the data for one ST *(ptr), or ST *(ptr++) and, if the REPEAT counter has not run out, wait for the
+   * next data (sent without SYNC, or opcode)
+   */
+  private void stData () {
+    int dataSize = (opcode & 0x03) + 1;
+    for (int ii = 0; ii < dataSize; ii++) {
+      write(ptr + ii, operand[ii] & 0xFF);
+    }
+    if (((opcode >> 2) & 0x03) == 1) {
+      ptr += dataSize;
+    }
+    ack();
+    if (repeat > 0) {
+      repeat--;
+      need = dataSize;
+      got = 0;
+      state = ST_DATA;
+    }
+  }
+
+  private void ld () {
+    int dataSize = (opcode & 0x03) + 1;
+    int mode = (opcode >> 2) & 0x03;
+    if (mode == 2) {                                            // ptr
+      for (int ii = 0; ii < dataSize; ii++) {
+        respond(ptr >> (ii * 8));
+      }
+      return;
+    }
+    for (int count = repeat; count >= 0; count--) {
+      for (int ii = 0; ii < dataSize; ii++) {
+        respond(target.read(ptr + ii));
+      }
+      if (mode == 1) {
+        ptr += dataSize;
+      }
+    }
+    repeat = 0;
+  }
+
+  /**
+   * Write to the data space, or to the user row buffer while user row programming is active
+   */
+  private void write (int addr, int val) {
+    if (urowProg && addr >= 0x1300 && addr < 0x1300 + urowBuf.length) {
+      urowBuf[addr - 0x1300] = (byte) val;
+    } else {
+      target.write(addr, val);
+    }
+  }
+
+  private int ldcs (int reg) {
+    switch (reg) {
+    case 0x00:                                                  // STATUSA
+      return 0x30;                                              // UPDIREV = 3
+    case 0x07:                                                  // ASI_KEY_STATUS
+      return keys;
+    case 0x0B:                                                  // ASI_SYS_STATUS
+      return (reset ? 0x20 : 0) | (nvmProg ? 0x08 : 0) | (urowProg ? 0x04 : 0) | (target.isLocked() ? 0x01 : 0);
+    default:
+      return cs[reg];
+    }
+  }
+
+  private void stcs (int reg, int val) {
+    switch (reg) {
+    case 0x07:                                                  // ASI_KEY_STATUS (write 1 to clear)
+      keys &= ~val;
+      break;
+    case 0x08:                                                  // ASI_RESET_REQ
+      if (val == 0x59) {
+        reset = true;
+      } else if (reset) {
+        // Leaving reset activates any keys that were entered
+        reset = false;
+        if ((keys & CHIPERASE) != 0) {
+          target.chipErase();
+        }
+        nvmProg = (keys & NVMPROG) != 0;
+        urowProg = (keys & UROWWRITE) != 0;
+        if (urowProg) {
+          Arrays.fill(urowBuf, (byte) 0xFF);
+        }
+        keys &= ~(CHIPERASE | NVMPROG);
+      }
+      break;
+    case 0x0A:                                                  // ASI_SYS_CTRLA
+      if ((val & 0x02) != 0 && urowProg) {                      // UROWWRITE_FINAL
+        target.writeUserRow(urowBuf);
+        urowProg = false;
+      }
+      break;
+    default:
+      cs[reg] = val;
+      break;
+    }
+  }
+}
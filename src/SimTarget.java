@@ -0,0 +1,328 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+  /*
+   * Software model of a tinyAVR target used by the simulated programmers, EDBGSim and SimSerialPort
+   *
+   * The target's memories are laid out in a byte array for each region of the UPDI data space and sized from
+   * the chip's entry in attinys.props:
+   *
+   *    0x0000 - 0x0FFF   I/O registers (CRCSCAN at 0x0120 is modelled, other registers just hold their value)
+   *    0x1000 - 0x103F   NVMCTRL (CTRLA, STATUS, DATA and ADDR are modelled)
+   *    0x1100 - 0x113F   Signature row (signature from attinys.props and a serial number made from the chip name)
+   *    0x1280 - 0x128A   Fuses (written with the WFU command, LOCKBIT at 0x128A)
+   *    0x1300 - 0x131F   User row
+   *    0x1400 -          EEPROM
+   *    sbase  - 0x3FFF   SRAM
+   *    0x8000 -          Flash
+   *
+   * Writes to flash, EEPROM, or the user row load the NVMCTRL page buffer and latch NVMCTRL.ADDR, as on the real
+   * chip, and the NVMCTRL commands then erase and write the selected page.  Like the real chip, writing a flash
+   * page ANDs the page buffer into the page, so a page must be erased before it can be rewritten.  Each command
+   * sets FBUSY, or EEBUSY in NVMCTRL.STATUS until the time the command would take on a real chip has passed.
+   *
+   * One SimTarget is kept for each chip type, so the memory contents persist from one connection to the next.
+   */
+class SimTarget {
+  static final String           EDBG_KEY = "0000-0000";       // progVidPid of "Simulated EDBG" (programmers.props)
+  static final String           SERIAL_PORT = "Simulated UPDI"; // serial.port of simulated serial UPDI adapter
+  // NVMCTRL Commands
+  static final int              NVM_WP = 1;                   // Write page buffer to memory
+  static final int              NVM_ER = 2;                   // Erase page
+  static final int              NVM_ERWP = 3;                 // Erase and write page
+  static final int              NVM_PBC = 4;                  // Page buffer clear
+  static final int              NVM_CHER = 5;                 // Chip erase
+  static final int              NVM_EEER = 6;                 // EEPROM erase
+  static final int              NVM_WFU = 7;                  // Write fuse
+  // NVMCTRL timing model (in microseconds)
+  private static final long     FLASH_WRITE_US = 2000;        // Flash page write
+  private static final long     FLASH_ERASE_US = 2000;        // Flash page erase
+  private static final long     EEPROM_US = 4000;             // EEPROM erase, write, or erase/write, and fuse write
+  private static final long     CHIP_ERASE_US = 10000;        // Chip erase (flash and EEPROM)
+  private static final long     CRC_NS_PER_BYTE = 100;        // CRCSCAN speed
+  // Data space map
+  private static final int      NVMCTRL_BASE = 0x1000;
+  private static final int      SIGROW_BASE = 0x1100;
+  private static final int      FUSE_BASE = 0x1280;
+  private static final int      USERROW_BASE = 0x1300;
+  private static final int      EEPROM_BASE = 0x1400;
+  private static final int      FLASH_BASE = 0x8000;
+  private static final int      LOCKBIT = 0x0A;               // Offset of LOCKBIT fuse
+  private static final int      UNLOCKED = 0xC5;              // LOCKBIT value for an unlocked chip
+  private static final int      FBUSY = 0x01;
+  private static final int      EEBUSY = 0x02;
+  private static final Map<String,SimTarget>  targets = new HashMap<>();
+  final byte[]                  flash, eeprom, sram;
+  final byte[]                  io = new byte[NVMCTRL_BASE];
+  final byte[]                  regs = new byte[32];          // r0 - r31 (only used by EDBGSim)
+  private final byte[]          nvm = new byte[0x40];
+  private final byte[]          sigRow = new byte[0x40];
+  private final byte[]          fuses = {0x00, 0x00, 0x02, (byte) 0xFF, 0x00, (byte) 0xF6, 0x07, 0x00, 0x00,
+                                         (byte) 0xFF, (byte) UNLOCKED};
+  private final byte[]          userRow = new byte[32];
+  private final byte[]          pageBuf;
+  private final boolean[]       loaded;
+  private final int             sbase, fpage, epage;
+  private long                  busyUntil, crcUntil;
+  private int                   busyBits;
+  private boolean               crcOk;
+
+  private SimTarget (MegaTinyIDE.ChipInfo chip) {
+    flash = new byte[Integer.parseInt(chip.flash.trim()) * 1024];
+    eeprom = new byte[Integer.parseInt(chip.eeprom.trim())];
+    sram = new byte[Integer.parseInt(chip.sram.trim())];
+    sbase = chip.getInt("sbase");
+    fpage = chip.getInt("fpage");
+    epage = chip.getInt("epage");
+    pageBuf = new byte[Math.max(fpage, epage)];
+    loaded = new boolean[pageBuf.length];
+    Arrays.fill(flash, (byte) 0xFF);
+    Arrays.fill(eeprom, (byte) 0xFF);
+    Arrays.fill(userRow, (byte) 0xFF);
+    Arrays.fill(pageBuf, (byte) 0xFF);
+    for (int ii = 0; ii < 3; ii++) {
+      sigRow[ii] = (byte) Integer.parseInt(chip.signature.substring(ii * 2, ii * 2 + 2), 16);
+    }
+    // Serial number is made from the chip name, so each simulated chip type has its own serial number
+    byte[] serial = String.format("SIM-%-6s", chip.name.replace("attiny", "")).getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(serial, 0, sigRow, 3, 10);
+  }
+
+  /**
+   * Get the simulated target for a chip type
+   * @param chip chip type selected in the Target menu
+   * @return SimTarget for chip
+   */
+  static synchronized SimTarget getTarget (MegaTinyIDE.ChipInfo chip) {
+    return targets.computeIfAbsent(chip.name, k -> new SimTarget(chip));
+  }
+
+  /**
+   * Wait for the given number of nanoseconds to model time taken by the programmer, or the target
+   * @param ns time to wait (in nanoseconds)
+   */
+  static void delay (long ns) {
+    long end = System.nanoTime() + ns;
+    while (ns > 0) {
+      LockSupport.parkNanos(ns);
+      ns = end - System.nanoTime();
+    }
+  }
+
+  boolean isLocked () {
+    return (fuses[LOCKBIT] & 0xFF) != UNLOCKED;
+  }
+
+  int getFlashPageSize () {
+    return fpage;
+  }
+
+  int getEepromPageSize () {
+    return epage;
+  }
+
+  /**
+   * Read a byte from the data space
+   * @param address data space address
+   * @return byte value (0x00 if address is not mapped)
+   */
+  synchronized int read (int address) {
+    if (address >= FLASH_BASE) {
+      return address - FLASH_BASE < flash.length ? flash[address - FLASH_BASE] & 0xFF : 0xFF;
+    } else if (address >= sbase && address < sbase + sram.length) {
+      return sram[address - sbase] & 0xFF;
+    } else if (address >= EEPROM_BASE && address < EEPROM_BASE + eeprom.length) {
+      return eeprom[address - EEPROM_BASE] & 0xFF;
+    } else if (address >= USERROW_BASE && address < USERROW_BASE + userRow.length) {
+      return userRow[address - USERROW_BASE] & 0xFF;
+    } else if (address >= FUSE_BASE && address < FUSE_BASE + fuses.length) {
+      return fuses[address - FUSE_BASE] & 0xFF;
+    } else if (address >= SIGROW_BASE && address < SIGROW_BASE + sigRow.length) {
+      return sigRow[address - SIGROW_BASE] & 0xFF;
+    } else if (address >= NVMCTRL_BASE && address < NVMCTRL_BASE + nvm.length) {
+      if (address - NVMCTRL_BASE == 0x02) {                               // NVMCTRL.STATUS
+        return System.nanoTime() < busyUntil ? busyBits : 0;
+      }
+      return nvm[address - NVMCTRL_BASE] & 0xFF;
+    } else if (address == Programmer.CRCSCAN_BASE + Programmer.CRCSCAN_STATUS) {
+      return System.nanoTime() < crcUntil ? 0x01 : crcOk ? 0x02 : 0x00;
+    } else if (address < io.length) {
+      return io[address] & 0xFF;
+    }
+    return 0;
+  }
+
+  /**
+   * Write a byte to the data space
+   * @param address data space address
+   * @param value   byte value
+   */
+  synchronized void write (int address, int value) {
+    if (address >= FLASH_BASE) {
+      loadPageBuffer(address, fpage, value);
+    } else if (address >= sbase && address < sbase + sram.length) {
+      sram[address - sbase] = (byte) value;
+    } else if (address >= EEPROM_BASE && address < EEPROM_BASE + eeprom.length) {
+      loadPageBuffer(address, epage, value);
+    } else if (address >= USERROW_BASE && address < USERROW_BASE + userRow.length) {
+      loadPageBuffer(address, epage, value);
+    } else if (address >= NVMCTRL_BASE && address < NVMCTRL_BASE + nvm.length) {
+      nvm[address - NVMCTRL_BASE] = (byte) value;
+      if (address == NVMCTRL_BASE) {                                      // NVMCTRL.CTRLA
+        command(value & 0x07);
+      }
+    } else if (address == Programmer.CRCSCAN_BASE + Programmer.CRCSCAN_CTRLA) {
+      io[address] = (byte) value;
+      if ((value & 0x80) != 0) {                                          // RESET
+        crcUntil = 0;
+        crcOk = false;
+      } else if ((value & 0x01) != 0) {                                   // ENABLE
+        crcOk = FlashCrc.crc16(flash, 0, flash.length) == 0;
+        crcUntil = System.nanoTime() + flash.length * CRC_NS_PER_BYTE;
+      }
+    } else if (address < io.length) {
+      io[address] = (byte) value;
+    }
+  }
+
+  /**
+   * Write value into the page buffer and latch address into NVMCTRL.ADDR
+   */
+  private void loadPageBuffer (int address, int pageSize, int value) {
+    int idx = address & (pageSize - 1);
+    pageBuf[idx] = (byte) value;
+    loaded[idx] = true;
+    nvm[0x08] = Utility.lsb(address);                                     // NVMCTRL.ADDRL
+    nvm[0x09] = Utility.msb(address);                                     // NVMCTRL.ADDRH
+  }
+
+  /**
+   * Set NVMCTRL.ADDR and execute an NVMCTRL command
+   * @param address data space address selecting page, or fuse
+   * @param cmd     NVMCTRL command, such as NVM_ERWP
+   */
+  synchronized void execute (int address, int cmd) {
+    nvm[0x08] = Utility.lsb(address);
+    nvm[0x09] = Utility.msb(address);
+    command(cmd);
+  }
+
+  private void command (int cmd) {
+    int address = (nvm[0x08] & 0xFF) | ((nvm[0x09] & 0xFF) << 8);
+    if (System.nanoTime() < busyUntil && cmd != 0) {
+      nvm[0x02] |= 0x04;                                                  // WRERROR
+      return;
+    }
+    switch (cmd) {
+    case NVM_WP:
+    case NVM_ER:
+    case NVM_ERWP:
+      writePage(address, cmd != NVM_WP, cmd != NVM_ER);
+      break;
+    case NVM_PBC:
+      clearPageBuffer();
+      break;
+    case NVM_CHER:
+      chipErase();
+      break;
+    case NVM_EEER:
+      Arrays.fill(eeprom, (byte) 0xFF);
+      setBusy(EEBUSY, EEPROM_US);
+      break;
+    case NVM_WFU:
+      if (address >= FUSE_BASE && address < FUSE_BASE + fuses.length) {
+        fuses[address - FUSE_BASE] = nvm[0x06];                           // NVMCTRL.DATAL
+      }
+      setBusy(EEBUSY, EEPROM_US);
+      break;
+    }
+  }
+
+  /**
+   * Erase and/or write the page selected by address from the page buffer.  All of a flash page is erased and
+   * written, but only the bytes loaded into the page buffer are erased, or written for EEPROM and the user row
+   */
+  private void writePage (int address, boolean erase, boolean write) {
+    byte[] mem;
+    int off, pageSize;
+    if (address >= FLASH_BASE) {
+      mem = flash;
+      off = address - FLASH_BASE;
+      pageSize = fpage;
+    } else if (address >= EEPROM_BASE) {
+      mem = eeprom;
+      off = address - EEPROM_BASE;
+      pageSize = epage;
+    } else if (address >= USERROW_BASE) {
+      mem = userRow;
+      off = address - USERROW_BASE;
+      pageSize = epage;
+    } else {
+      nvm[0x02] |= 0x04;                                                  // WRERROR
+      return;
+    }
+    off &= ~(pageSize - 1);
+    boolean isFlash = mem == flash;
+    for (int ii = 0; ii < pageSize && off + ii < mem.length; ii++) {
+      if (isFlash || loaded[ii]) {
+        if (erase) {
+          mem[off + ii] = (byte) 0xFF;
+        }
+        if (write) {
+          mem[off + ii] &= pageBuf[ii];
+        }
+      }
+    }
+    clearPageBuffer();
+    if (isFlash) {
+      setBusy(FBUSY, (erase ? FLASH_ERASE_US : 0) + (write ? FLASH_WRITE_US : 0));
+    } else {
+      setBusy(EEBUSY, EEPROM_US);
+    }
+  }
+
+  private void clearPageBuffer () {
+    Arrays.fill(pageBuf, (byte) 0xFF);
+    Arrays.fill(loaded, false);
+  }
+
+  /**
+   * Erase flash and EEPROM (unless EESAVE is set in SYSCFG0) and clear the lock bits
+   */
+  synchronized void chipErase () {
+    Arrays.fill(flash, (byte) 0xFF);
+    if ((fuses[0x05] & 0x01) == 0) {
+      Arrays.fill(eeprom, (byte) 0xFF);
+    }
+    fuses[LOCKBIT] = (byte) UNLOCKED;
+    setBusy(FBUSY | EEBUSY, CHIP_ERASE_US);
+  }
+
+  /**
+   * Erase the user row and write data[] to it (used for UPDI's UROWWRITE_FINAL)
+   * @param data user row data (bytes not loaded are 0xFF)
+   */
+  synchronized void writeUserRow (byte[] data) {
+    System.arraycopy(data, 0, userRow, 0, Math.min(data.length, userRow.length));
+    setBusy(EEBUSY, EEPROM_US);
+  }
+
+  private void setBusy (int bits, long micros) {
+    busyBits = bits;
+    busyUntil = System.nanoTime() + micros * 1000;
+  }
+
+  /**
+   * Wait until the last NVMCTRL command completes
+   */
+  void waitReady () {
+    long wait;
+    synchronized (this) {
+      wait = busyUntil - System.nanoTime();
+    }
+    delay(wait);
+  }
+}
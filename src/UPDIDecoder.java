@@ -1,4 +1,3 @@
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 
@@ -160,178 +159,268 @@ public class UPDIDecoder {
    *     15 = DBG_OSC_FREQ  "3"
    */
 
-  public static ByteArrayOutputStream bbin = new ByteArrayOutputStream();
+  /*
+   *  The decoder is incremental, so it can be fed bytes as they arrive from the serial port.  Bytes are
+   *  appended to an internal buffer and each complete instruction is decoded.  Before decoding, instrEnd()
+   *  works out how many bytes the next instruction uses and, if the buffer ends partway through it, the bytes
+   *  for that instruction are kept until more bytes arrive.
+   */
+  private final ByteArrayOutputStream     bout = new ByteArrayOutputStream();
+  private final PrintStream               out = new PrintStream(bout);
+  private byte[]                          buf = new byte[256];
+  private int                             pos, limit;
+  private int                             repeat;
 
-  static int read (ByteArrayInputStream bin) {
-    int data = bin.read() & 0xFF;
-    bbin.write(data);
-    return data;
+  /**
+   * Decode a complete capture of UPDI bytes
+   *
+   * @param inp bytes captured from UPDI line
+   * @return decoded text
+   */
+  public static String decode (byte[] inp) {
+    StringBuilder text = new StringBuilder();
+    new UPDIDecoder().decode(inp, 0, inp.length, text);
+    return text.toString();
   }
 
-  public static String decode (byte[] inp) {
-    int state = 0;
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    PrintStream out = new PrintStream(bout);
-    ByteArrayInputStream bin = new ByteArrayInputStream(inp);
-    int repeat = 0;
-    while (bin.available() > 0) {
-      int code = read(bin);
-      switch (state) {
-        case 0:                                   // Waiting for SYNC (0x55)
-          if (code == 0x55) {
-            state = 1;
+  /**
+   * Append bytes captured from the UPDI line and decode all the complete instructions they contain
+   *
+   * @param inp  bytes captured from UPDI line
+   * @param off  offset to first byte
+   * @param len  number of bytes
+   * @param text decoded text is appended to this
+   */
+  public void decode (byte[] inp, int off, int len, StringBuilder text) {
+    if (limit + len > buf.length) {
+      // Discard bytes already decoded before growing buffer
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+      if (limit + len > buf.length) {
+        byte[] tmp = new byte[Math.max(buf.length * 2, limit + len)];
+        System.arraycopy(buf, 0, tmp, 0, limit);
+        buf = tmp;
+      }
+    }
+    System.arraycopy(inp, off, buf, limit, len);
+    limit += len;
+    while (pos < limit) {
+      if ((buf[pos] & 0xFF) != 0x55) {           // Waiting for SYNC (0x55)
+        pos++;
+        continue;
+      }
+      if (instrEnd(pos + 1) < 0) {
+        break;                                  // Instruction is incomplete, so wait for more bytes
+      }
+      pos++;
+      bout.reset();
+      int code = read();
+      out.printf("  0x55 0x%02X: ", code);
+      switch (code & 0xE0) {
+        case 0x00: {                            // LDS  (load)
+          int sizeA = (code >> 2) & 0x03;       // Size of address (0 = byte, 1 = word)
+          int sizeB = code & 0x03;              // Size of data (0 = byte[1], 1 = byte[2])
+          int addr = getData(sizeA);
+          int data = getData(sizeB);
+          if (sizeA == 1) {
+            // Address is 2 bytes (one word)
+            if (sizeB == 1) {
+              out.printf("LDS from addr: 0x%04X returns: 0x%04X\n", addr, data);          // data is 2 bytes
+            } else {
+              out.printf("LDS from addr: 0x%04X returns: 0x%02X\n", addr, data);          // data is 1 byte
+            }
+          } else {
+            // Address is one byte
+            if (sizeB == 1) {
+              out.printf("LDS from addr: 0x%02X returns: 0x%04X\n", addr, data);          // data is 2 bytes
+            } else {
+              out.printf("LDS from addr: 0x%02X returns: 0x%02X\n", addr, data);          // data is 1 byte
+            }
           }
-          break;
-        case 1:
-          out.printf("  0x55 0x%02X: ", code);
-          switch (code & 0xE0) {
-            case 0x00: {                            // LDS  (load)
-              int sizeA = (code >> 2) & 0x03;       // Size of address (0 = byte, 1 = word)
-              int sizeB = code & 0x03;              // Size of data (0 = byte[1], 1 = byte[2])
-              int addr = getData(bin, sizeA);
-              int data = getData(bin, sizeB);
+        } break;
+        case 0x20: {                            // LD  (load)
+          int ptr = (code >> 2) & 0x03;         // 0 = *(ptr), if 1 = *(ptr++), else 3 = ptr
+          int sizeB = code & 0x03;              // Size of data (0 = byte[1], 1 = byte[2])
+          int data = getData(sizeB);
+          if (sizeB == 1) {
+            out.printf("LD load via %s returns: 0x%04X\n", ptrs[ptr], data);              // data is 2 bytes
+          } else {
+            out.printf("LD load via %s returns: 0x%02X\n", ptrs[ptr], data);              // data is 1 byte
+          }
+          while (repeat-- > 0) {
+            data = getData(sizeB);
+            if (sizeB == 1) {
+              out.printf("  RPT: LD load via %s returns: 0x%04X\n", ptrs[ptr], data);       // data is 2 bytes
+            } else {
+              out.printf("  RPT: LD load via %s returns: 0x%02X\n", ptrs[ptr], data);       // data is 1 byte
+            }
+          }
+        } break;
+        case 0x40: {                          // STS (store)
+          int sizeA = (code >> 2) & 0x03;     // Size of address (0 = byte, 1 = word)
+          int sizeB = code & 0x03;            // Size of data (0 = byte[1], 1 = byte[2])
+          int addr = getData(sizeA);
+          int ack1 = read();
+          if (ack1 == 0x40) {
+            int data = getData(sizeB);
+            int ack2 = read();
+            if (ack2 == 0x40) {
               if (sizeA == 1) {
                 // Address is 2 bytes (one word)
                 if (sizeB == 1) {
-                  out.printf("LDS from addr: 0x%04X returns: 0x%04X\n", addr, data);          // data is 2 bytes
+                  out.printf("STS store data: 0x%04X into addr: 0x%04X\n", data, addr);   // data is 2 bytes
                 } else {
-                  out.printf("LDS from addr: 0x%04X returns: 0x%02X\n", addr, data);          // data is 1 byte
+                  out.printf("STS store data: 0x%02X into addr: 0x%04X\n", data, addr);   // data is 1 byte
                 }
               } else {
                 // Address is one byte
                 if (sizeB == 1) {
-                  out.printf("LDS from addr: 0x%02X returns: 0x%04X\n", addr, data);          // data is 2 bytes
+                  out.printf("STS store data: 0x%04X into addr: 0x%02X\n", data, addr);   // data is 2 bytes
                 } else {
-                  out.printf("LDS from addr: 0x%02X returns: 0x%02X\n", addr, data);          // data is 1 byte
+                  out.printf("STS store data: 0x%02X into addr: 0x%02X\n", data, addr);   // data is 1 byte
                 }
               }
-            } break;
-            case 0x20: {                            // LD  (load)
-              int ptr = (code >> 2) & 0x03;         // 0 = *(ptr), if 1 = *(ptr++), else 3 = ptr
-              int sizeB = code & 0x03;              // Size of data (0 = byte[1], 1 = byte[2])
-              int data = getData(bin, sizeB);
+            }
+          }
+        } break;
+        case 0x60: {                          // ST (store)
+          int ptr = (code >> 2) & 0x03;       // 0 = *(ptr), if 1 = *(ptr++), else 3 = ptr
+          int sizeB = code & 0x03;            // Size of data (0 = byte[1], 1 = byte[2])
+          int data = getData(sizeB);
+          int ack1 = read();
+          if (ack1 == 0x40) {
+            if (ptr == 2) {
+              out.printf("ST store data: 0x%04X into %s\n", data, ptrs[ptr]);
+            } else {
               if (sizeB == 1) {
-                out.printf("LD load via %s returns: 0x%04X\n", ptrs[ptr], data);              // data is 2 bytes
+                out.printf("ST store data: 0x%04X via %s\n", data, ptrs[ptr]);            // data is 2 bytes
               } else {
-                out.printf("LD load via %s returns: 0x%02X\n", ptrs[ptr], data);              // data is 1 byte
-              }
-              while (repeat-- > 0) {
-                data = getData(bin, sizeB);
-                if (sizeB == 1) {
-                  out.printf("  RPT: LD load via %s returns: 0x%04X\n", ptrs[ptr], data);       // data is 2 bytes
-                } else {
-                  out.printf("  RPT: LD load via %s returns: 0x%02X\n", ptrs[ptr], data);       // data is 1 byte
-                }
-              }
-            } break;
-            case 0x40: {                          // STS (store)
-              int sizeA = (code >> 2) & 0x03;     // Size of address (0 = byte, 1 = word)
-              int sizeB = code & 0x03;            // Size of data (0 = byte[1], 1 = byte[2])
-              int addr = getData(bin, sizeA);
-              int ack1 = read(bin);
-              if (ack1 == 0x40) {
-                int data = getData(bin, sizeB);
-                int ack2 = read(bin);
-                if (ack2 == 0x40) {
-                  if (sizeA == 1) {
-                    // Address is 2 bytes (one word)
-                    if (sizeB == 1) {
-                      out.printf("STS store data: 0x%04X into addr: 0x%04X\n", data, addr);   // data is 2 bytes
-                    } else {
-                      out.printf("STS store data: 0x%02X into addr: 0x%04X\n", data, addr);   // data is 1 byte
-                    }
-                  } else {
-                    // Address is one byte
-                    if (sizeB == 1) {
-                      out.printf("STS store data: 0x%04X into addr: 0x%02X\n", data, addr);   // data is 2 bytes
-                    } else {
-                      out.printf("STS store data: 0x%02X into addr: 0x%02X\n", data, addr);   // data is 1 byte
-                    }
-                  }
-                }
-              }
-            } break;
-            case 0x60: {                          // ST (store)
-              int ptr = (code >> 2) & 0x03;       // 0 = *(ptr), if 1 = *(ptr++), else 3 = ptr
-              int sizeB = code & 0x03;            // Size of data (0 = byte[1], 1 = byte[2])
-              int data = getData(bin, sizeB);
-              int ack1 = read(bin);
-              if (ack1 == 0x40) {
-                if (ptr == 2) {
-                  out.printf("ST store data: 0x%04X into %s\n", data, ptrs[ptr]);
-                } else {
-                  if (sizeB == 1) {
-                    out.printf("ST store data: 0x%04X via %s\n", data, ptrs[ptr]);            // data is 2 bytes
-                  } else {
-                    out.printf("ST store data: 0x%02X via %s\n", data, ptrs[ptr]);            // data is 1 byte
-                  }
-                }
-              }
-              while (repeat-- > 0) {
-                data = getData(bin, sizeB);
-                ack1 = read(bin);
-                if (ack1 == 0x40) {
-                  if (sizeB == 1) {
-                    out.printf("  RPT: ST store data: 0x%04X via %s\n", data, ptrs[ptr]);       // data is 2 bytes
-                  } else {
-                    out.printf("  RPT: ST store data: 0x%02X via %s\n", data, ptrs[ptr]);       // data is 1 byte
-                  }
-                }
+                out.printf("ST store data: 0x%02X via %s\n", data, ptrs[ptr]);            // data is 1 byte
               }
-            } break;
-            case 0x80: {                          // LDCS (load)
-              int reg = code & 0x0F;              // Register (0-15)
-              int data = read(bin);
-              out.printf("LDCS load from %s returns: 0x%02X\n", updi[reg], data);
-            } break;
-            case 0xA0: {                          // REPEAT
-              repeat = read(bin);
-              out.printf("REPEAT following instruction %d times\n", repeat + 1);
-            } break;
-            case 0xC0: {                          // STCS (store)
-              int reg = code & 0x0F;              // Register (0-15)
-              int data = read(bin);
-              out.printf("STCS store data 0x%02X into %s\n", data, updi[reg]);
-            } break;
-            case 0xE0: {                          // KEY
-              boolean sib = (code & 0x04) != 0;
-              byte[] data;
-              if (sib) {
-                out.print("SIB = ");
-                data = new byte[16];
+            }
+          }
+          while (repeat-- > 0) {
+            data = getData(sizeB);
+            ack1 = read();
+            if (ack1 == 0x40) {
+              if (sizeB == 1) {
+                out.printf("  RPT: ST store data: 0x%04X via %s\n", data, ptrs[ptr]);       // data is 2 bytes
               } else {
-                out.print("KEY = ");
-                data = new byte[8];
-              }
-              for (int ii = 0; ii < data.length; ii++) {
-                data[ii] = (byte) read(bin);
+                out.printf("  RPT: ST store data: 0x%02X via %s\n", data, ptrs[ptr]);       // data is 1 byte
               }
-              for (byte cc : data) {
-                out.printf("0x%02X ", ((int) cc & 0xFF));
-              }
-              out.print("\n                    ");
-              for (byte cc : data) {
-                out.printf("'%c'  ", (char) cc);
-              }
-              out.println();
-            } break;
-            default:
-              out.println("error");
-              break;
+            }
+          }
+        } break;
+        case 0x80: {                          // LDCS (load)
+          int reg = code & 0x0F;              // Register (0-15)
+          int data = read();
+          out.printf("LDCS load from %s returns: 0x%02X\n", updi[reg], data);
+        } break;
+        case 0xA0: {                          // REPEAT
+          repeat = read();
+          out.printf("REPEAT following instruction %d times\n", repeat + 1);
+        } break;
+        case 0xC0: {                          // STCS (store)
+          int reg = code & 0x0F;              // Register (0-15)
+          int data = read();
+          out.printf("STCS store data 0x%02X into %s\n", data, updi[reg]);
+        } break;
+        case 0xE0: {                          // KEY
+          boolean sib = (code & 0x04) != 0;
+          byte[] data;
+          if (sib) {
+            out.print("SIB = ");
+            data = new byte[16];
+          } else {
+            out.print("KEY = ");
+            data = new byte[8];
+          }
+          for (int ii = 0; ii < data.length; ii++) {
+            data[ii] = (byte) read();
+          }
+          for (byte cc : data) {
+            out.printf("0x%02X ", ((int) cc & 0xFF));
+          }
+          out.print("\n                    ");
+          for (byte cc : data) {
+            out.printf("'%c'  ", (char) cc);
           }
-          state = 0;
+          out.println();
+        } break;
+        default:
+          out.println("error");
+          break;
       }
+      out.flush();
+      text.append(bout.toString());
+    }
+  }
+
+  /**
+   * Work out where the instruction whose opcode is at buf[at] ends
+   * @param at index of opcode (the byte after SYNC)
+   * @return index of the byte after the instruction, or -1 if buf[] does not yet hold all of it
+   */
+  private int instrEnd (int at) {
+    if (at >= limit) {
+      return -1;
+    }
+    int code = buf[at] & 0xFF;
+    int sizeA = dataLen((code >> 2) & 0x03);
+    int sizeB = dataLen(code & 0x03);
+    int count = Math.max(repeat, 0) + 1;
+    int end = at + 1;
+    switch (code & 0xE0) {
+      case 0x00:                                // LDS
+        end += sizeA + sizeB;
+        break;
+      case 0x20:                                // LD
+        end += sizeB * count;
+        break;
+      case 0x40:                                // STS (data and second ACK only follow an ACK)
+        end += sizeA + 1;
+        if (end <= limit && (buf[end - 1] & 0xFF) == 0x40) {
+          end += sizeB + 1;
+        }
+        break;
+      case 0x60:                                // ST
+        end += (sizeB + 1) * count;
+        break;
+      case 0x80:                                // LDCS
+      case 0xA0:                                // REPEAT
+      case 0xC0:                                // STCS
+        end += 1;
+        break;
+      case 0xE0:                                // KEY, or SIB
+        end += (code & 0x04) != 0 ? 16 : 8;
+        break;
     }
-    return bout.toString();
+    return end <= limit ? end : -1;
   }
 
+  private static int dataLen (int size) {
+    return size == 0 ? 1 : 2;
+  }
+
+  /**
+   * Discard any bytes held for an incomplete instruction
+   */
+  public void reset () {
+    pos = limit = 0;
+    repeat = 0;
+  }
+
+  private int read () {
+    return buf[pos++] & 0xFF;
+  }
 
-  private static int getData (ByteArrayInputStream bin, int size) {
+  private int getData (int size) {
     if (size == 0) {
-      return read(bin);
+      return read();
     } else {
       // GET 16 BIT, LSB-ORDER DATA
-      return (read(bin) & 0xFF) + (read(bin) << 8);
+      return (read() & 0xFF) + (read() << 8);
     }
   }
 }
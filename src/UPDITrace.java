@@ -0,0 +1,129 @@
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+  /*
+   * Background capture and decode pipeline used when "Decode UPDI Commands" is enabled
+   *
+   * Bytes captured from the UPDI line go into the ring buffer of a JSSCPort opened with openBuffered(), and the
+   * decoder thread is the ring's only reader.  After each command, the programmer calls mark() to post a marker
+   * holding the command's name and the number of bytes the port has received so far, then carries on without
+   * waiting.  The decoder thread pulls the bytes up to each marker from the port with readAvailable(), decodes
+   * them with an incremental UPDIDecoder and appends the decoded lines, under the name of the command that caused
+   * them, to a batch that's written to the Info Pane whenever the batch fills, or no more markers are pending.
+   *
+   * Bytes can arrive a little after the command that caused them completes, so the bytes for the last marker
+   * are only decoded once SETTLE_TIME has passed, or the next marker is posted.  If the port's ring buffer fills
+   * because the decoder can't keep up, new bytes are dropped and the count of dropped bytes is reported.
+   */
+class UPDITrace extends Thread {
+  private static final long     SETTLE_TIME = 100;            // Wait for trailing bytes after last command (ms)
+  private static final long     IDLE_NS = 5000000;            // Idle time between checks for markers (ns)
+  private static final int      BATCH_MAX = 8192;             // Write decoded text to Info Pane at this size
+  private final byte[]          chunk = new byte[4096];       // Bytes read from port for decoding
+  private final JSSCPort        port;
+  private long                  decoded;                      // Port's received count up to the bytes decoded
+  private final Queue<Marker>   markers = new ConcurrentLinkedQueue<>();
+  private final UPDIDecoder     decoder = new UPDIDecoder();
+  private final Programmer.Host ide;
+  private volatile boolean      running = true;
+
+  private static final class Marker {
+    private final String  command;
+    private final long    position;
+    private final long    time;
+
+    private Marker (String command, long position) {
+      this.command = command;
+      this.position = position;
+      time = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * @param ide  Host used to output decoded text
+   * @param port JSSCPort capturing the UPDI line (must already be opened with openBuffered())
+   */
+  UPDITrace (Programmer.Host ide, JSSCPort port) {
+    super("UPDI trace");
+    this.ide = ide;
+    this.port = port;
+    decoded = port.getReceived();
+    setDaemon(true);
+  }
+
+  /**
+   * Tag all bytes captured since the previous call as caused by command (called after each command completes)
+   * @param command description of command
+   */
+  void mark (String command) {
+    markers.add(new Marker(command, port.getReceived()));
+    LockSupport.unpark(this);
+  }
+
+  /**
+   * Decode any bytes still pending and stop the decoder thread
+   */
+  void shutdown () {
+    running = false;
+    LockSupport.unpark(this);
+    try {
+      join(SETTLE_TIME * 5);
+    } catch (InterruptedException ex) {
+      // do nothing
+    }
+  }
+
+  public void run () {
+    StringBuilder batch = new StringBuilder();
+    long reported = port.getDropped();
+    while (running || !markers.isEmpty()) {
+      Iterator<Marker> iter = markers.iterator();
+      if (!iter.hasNext()) {
+        LockSupport.parkNanos(IDLE_NS);
+        continue;
+      }
+      Marker marker = iter.next();
+      long end = marker.position;
+      if (!iter.hasNext()) {
+        // Last marker, so wait for any trailing bytes unless another marker is posted, or shutting down
+        long wait = marker.time + SETTLE_TIME - System.currentTimeMillis();
+        if (wait > 0 && running) {
+          LockSupport.parkNanos(Math.min(wait * 1000000, IDLE_NS));
+          continue;
+        }
+        end = port.getReceived();
+      }
+      markers.poll();
+      batch.append(marker.command).append('\n');
+      decodeTo(end, batch);
+      long dropped = port.getDropped();
+      if (dropped != reported) {
+        batch.append(String.format("UPDI trace: %d bytes dropped\n", dropped - reported));
+        reported = dropped;
+      }
+      if (batch.length() >= BATCH_MAX || markers.isEmpty()) {
+        ide.appendToInfoPane(batch.toString());
+        batch.setLength(0);
+      }
+    }
+    if (batch.length() > 0) {
+      ide.appendToInfoPane(batch.toString());
+    }
+  }
+
+  /**
+   * Read and decode the bytes waiting in the port's ring buffer up to, but not including received count end
+   */
+  private void decodeTo (long end, StringBuilder text) {
+    while (decoded < end) {
+      int len = port.readAvailable(chunk, 0, (int) Math.min(chunk.length, end - decoded));
+      if (len == 0) {
+        break;
+      }
+      decoder.decode(chunk, 0, len, text);
+      decoded += len;
+    }
+  }
+}
@@ -20,6 +20,7 @@ import java.util.zip.CRC32;
 class Utility {
   private static final String   fileSep =  System.getProperty("file.separator");
   private static final Pattern  pat1 = Pattern.compile("(\\*\\[(.*?)]\\*)", Pattern.DOTALL | Pattern.MULTILINE);
+  private static final Map<String, String> stagedResources = new HashMap<>();   // Resource dir -> staged path
 
   static String createDir (String path) throws IOException {
     File base = (new File(path));
@@ -125,7 +126,15 @@ class Utility {
    * @return file path
    */
   public static File getAppSupportDirectoryPath (JComponent parent) {
-    String appName = parent.getName();
+    return getAppSupportDirectoryPath(parent.getName());
+  }
+
+  /**
+   * Get file path to Support Directory for appName
+   * @param appName name of application
+   * @return file path
+   */
+  static File getAppSupportDirectoryPath (String appName) {
     String os = System.getProperty("os.name").toLowerCase();
     String userHome = System.getProperty("user.home");
     if (os.contains("mac")) {
@@ -377,59 +386,77 @@ class Utility {
     }).collect(Collectors.joining());
   }
 
-  private static void copyResourceToDir (String fName, String tmpDir) throws IOException {
-    InputStream fis = Utility.class.getClassLoader().getResourceAsStream(fName);
-    tmpDir = tmpDir.endsWith("/") ? tmpDir : tmpDir + "/";
-    if (fis != null) {
-      File path = new File(tmpDir);
-      if (!path.exists() && !path.mkdirs()) {
-        throw new IOException("copyResourceToDir() unable to create path: " + path.getAbsolutePath());
-      }
-      byte[] data = new byte[fis.available()];
-      if (fis.read(data) != data.length) {
-        throw new IOException("getFile() not all bytes read from file: " + path.getPath());
-      }
-      fis.close();
-      File file = new File(tmpDir + (new File(fName)).getName());
-      FileOutputStream fOut = new FileOutputStream(file);
-      fOut.write(data);
-      fOut.close();
-    } else {
-      throw new IllegalStateException("copyResourceToDir('" + fName + "', '" + tmpDir + "') " + " unable to copy");
+  /**
+   * Extract a resource directory (such as "arduino", or a chip's variant) into a directory under stageBase so builds
+   * can use the files in place, via an include path, rather than copying them into the temp directory each time.
+   * The directory is named for a hash of the names, sizes and dates of the files in the resource directory, so the
+   * resources are only extracted again when they change (ie, in a new release), at which point older copies are
+   * deleted.  The path is remembered, so the jar is only opened on the first call for each resource directory.
+   * @param base      resource directory
+   * @param stageBase directory that holds staged resources
+   * @return path to staged directory
+   */
+  static synchronized String stageResources (String base, String stageBase) throws URISyntaxException, IOException {
+    String staged = stagedResources.get(base);
+    if (staged != null && new File(staged).exists()) {
+      return staged;
     }
-  }
-
-  static void copyResourcesToDir (String base, String tmpDir) throws URISyntaxException, IOException {
+    URL url = Utility.class.getResource(base);
+    if (url == null) {
+      throw new IllegalStateException("stageResources('" + base + "') unable to find resources");
+    }
+    URI uri = url.toURI();
     java.nio.file.FileSystem fileSystem = null;
-    if (base != null) {
-      try {
-        URL url = Utility.class.getResource(base);
-        if (url != null) {
-          URI uri = url.toURI();
-          Path myPath;
-          if (uri.getScheme().equals("jar")) {
-            fileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap());
-            myPath = fileSystem.getPath("/" + base);
-          } else {
-            myPath = Paths.get(uri);
-          }
-          Stream<Path> walk = Files.walk(myPath, FileVisitOption.FOLLOW_LINKS);
-          for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
-            Path item = it.next();
-            String fName = item.getFileName().toString();
-            if (fName.contains(".")) {
-              String srcFile = base + item.toString().substring(myPath.toString().length());
-              String dstBase = Paths.get(srcFile).getParent().toString().substring(base.length());
-              dstBase = dstBase.startsWith("/") ? dstBase.substring(1) : dstBase;
-              String dstPath = tmpDir + dstBase;
-              copyResourceToDir(srcFile, dstPath);
+    try {
+      Path srcPath;
+      if (uri.getScheme().equals("jar")) {
+        fileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap());
+        srcPath = fileSystem.getPath("/" + base);
+      } else {
+        srcPath = Paths.get(uri);
+      }
+      List<Path> files;
+      try (Stream<Path> walk = Files.walk(srcPath, FileVisitOption.FOLLOW_LINKS)) {
+        files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+      }
+      CRC32 crc = new CRC32();
+      for (Path item : files) {
+        String id = srcPath.relativize(item) + ":" + Files.size(item) + ":" + Files.getLastModifiedTime(item).toMillis() + "\n";
+        crc.update(id.getBytes(StandardCharsets.UTF_8));
+      }
+      String name = String.format("%s-%08X", base, crc.getValue());
+      File dst = new File(stageBase, name);
+      if (!dst.exists()) {
+        // Extract into a temp directory, then rename, so a partially extracted directory is never used
+        Path tmp = Files.createTempDirectory(Paths.get(stageBase), name + ".");
+        for (Path item : files) {
+          Path file = tmp.resolve(srcPath.relativize(item).toString());
+          Files.createDirectories(file.getParent());
+          Files.copy(item, file);
+        }
+        try {
+          Files.move(tmp, dst.toPath());
+        } catch (FileAlreadyExistsException | DirectoryNotEmptyException ex) {
+          removeFiles(tmp.toFile());                  // Staged by another instance of MegaTinyIDE
+          tmp.toFile().delete();
+        }
+        // Remove older versions of these resources
+        File[] old = new File(stageBase).listFiles((dir, fName) -> fName.matches(Pattern.quote(base) + "-[0-9A-F]{8}"));
+        if (old != null) {
+          for (File file : old) {
+            if (!file.equals(dst)) {
+              removeFiles(file);
+              file.delete();
             }
           }
         }
-      } finally {
-        if (fileSystem != null) {
-          fileSystem.close();
-        }
+      }
+      staged = dst.getAbsolutePath() + fileSep;
+      stagedResources.put(base, staged);
+      return staged;
+    } finally {
+      if (fileSystem != null) {
+        fileSystem.close();
       }
     }
   }